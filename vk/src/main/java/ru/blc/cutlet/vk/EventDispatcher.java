@@ -0,0 +1,238 @@
+package ru.blc.cutlet.vk;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import ru.blc.cutlet.api.Cutlet;
+import ru.blc.cutlet.vk.longpoll.UpdateQueue;
+import ru.blc.cutlet.vk.method.Deadline;
+import ru.blc.objconfig.ConfigurationSection;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Распределяет входящие события между несколькими потоками обработки по беседам.<br>
+ * События одной беседы (peer_id, а для событий без беседы - from_id или user_id) всегда попадают в один поток
+ * и обрабатываются в порядке поступления, события разных бесед обрабатываются параллельно.
+ * Поэтому долгая обработка в одной беседе задерживает только беседы, попавшие в тот же поток.<br>
+ * У каждого потока своя ограниченная очередь. Если она заполнена, передающий событие поток ждет места
+ */
+public class EventDispatcher implements Closeable {
+
+    private final List<Worker> workers;
+
+    /**
+     * @param workers количество потоков обработки
+     * @param queueCapacity сколько событий может ждать обработки в одном потоке
+     */
+    public EventDispatcher(int workers, int queueCapacity) {
+        Preconditions.checkArgument(workers > 0, "workers should be more than zero");
+        List<Worker> list = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            Worker worker = new Worker(new UpdateQueue<>(queueCapacity, UpdateQueue.Overflow.BLOCK));
+            worker.setDaemon(true);
+            worker.setName("VK event worker " + i);
+            list.add(worker);
+        }
+        this.workers = Collections.unmodifiableList(list);
+        this.workers.forEach(Thread::start);
+    }
+
+    /**
+     * Передает событие обработчику json бота, если пул не закрыт, иначе обрабатывает его в текущем потоке
+     * @param json событие
+     * @param bot бот, получивший событие
+     */
+    public void dispatch(@NotNull ConfigurationSection json, @NotNull VkBot bot) {
+        dispatch(json, bot, () -> {});
+    }
+
+    /**
+     * Передает событие обработчику json бота, если пул не закрыт, иначе обрабатывает его в текущем потоке
+     * @param json событие
+     * @param bot бот, получивший событие
+     * @param handled выполняется после обработки события, даже если обработчик завершился ошибкой
+     */
+    public void dispatch(@NotNull ConfigurationSection json, @NotNull VkBot bot, @NotNull Runnable handled) {
+        Preconditions.checkNotNull(json, "json");
+        Preconditions.checkNotNull(bot, "bot");
+        Preconditions.checkNotNull(handled, "handled");
+        dispatch(31L * bot.getGroupId() + keyOf(json), () -> {
+            try {
+                handle(json, bot);
+            } finally {
+                handled.run();
+            }
+        });
+    }
+
+    /**
+     * Выполняет задачу в потоке, выбранном по ключу. Задачи с одинаковым ключом выполняются по порядку
+     * @param key ключ, например беседа
+     * @param task задача
+     */
+    public void dispatch(long key, @NotNull Runnable task) {
+        Preconditions.checkNotNull(task, "task");
+        Worker worker = workers.get(shard(key, workers.size()));
+        try {
+            worker.queue.offer(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.run();
+        } catch (IllegalStateException e) {
+            // пул закрыт
+            task.run();
+        }
+    }
+
+    /**
+     * Обрабатывает событие в текущем потоке обработчиком json бота или модуля
+     * @param json событие
+     * @param bot бот, получивший событие
+     */
+    public static void handle(@NotNull ConfigurationSection json, @NotNull VkBot bot) {
+        VkModule vkModule = Cutlet.instance().getModule(VkModule.class);
+        JsonHandler jsonHandler = bot.getJsonHandler();
+        if (jsonHandler == null) jsonHandler = vkModule.getJsonHandler();
+        try {
+            JsonHandler handler = jsonHandler;
+            Deadline.with(VkModule.newEventDeadline(), () -> handler.handleJson(json, bot));
+        } catch (Exception e) {
+            vkModule.getLogger().error("Failed handling Json", e);
+        }
+    }
+
+    /**
+     * @param json событие
+     * @return беседа события, иначе автор события, иначе 0
+     */
+    public static long keyOf(@NotNull ConfigurationSection json) {
+        if (json.hasValue("object.message.peer_id")) return json.getInt("object.message.peer_id");
+        if (json.hasValue("object.peer_id")) return json.getInt("object.peer_id");
+        if (json.hasValue("object.from_id")) return json.getInt("object.from_id");
+        if (json.hasValue("object.user_id")) return json.getInt("object.user_id");
+        return 0L;
+    }
+
+    static int shard(long key, int shards) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(hash ^ (hash >>> 32), (long) shards);
+    }
+
+    /**
+     * @return количество потоков обработки
+     */
+    public int getWorkers() {
+        return workers.size();
+    }
+
+    /**
+     * @return сколько событий ждут обработки во всех потоках
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (Worker worker : workers) {
+            size += worker.queue.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return наибольшее количество событий, ждавших обработки в одном потоке
+     */
+    public int getMaxQueueSize() {
+        int size = 0;
+        for (Worker worker : workers) {
+            size = Math.max(size, worker.queue.getMaxSize());
+        }
+        return size;
+    }
+
+    /**
+     * @return наибольшее время ожидания обработки в миллисекундах
+     */
+    public double getMaxQueueTime() {
+        double time = 0;
+        for (Worker worker : workers) {
+            time = Math.max(time, worker.queue.getMaxQueueTime());
+        }
+        return time;
+    }
+
+    /**
+     * @return сколько событий обработано
+     */
+    public long getHandledCount() {
+        long count = 0;
+        for (Worker worker : workers) {
+            count += worker.queue.getTakenCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return сколько миллисекунд передающие потоки ждали места в очередях
+     */
+    public long getBlockedTime() {
+        long time = 0;
+        for (Worker worker : workers) {
+            time += worker.queue.getBlockedTime();
+        }
+        return time;
+    }
+
+    /**
+     * Прекращает прием событий. Уже принятые события будут обработаны
+     */
+    @Override
+    public void close() {
+        workers.forEach(worker -> worker.queue.close());
+    }
+
+    /**
+     * Ждет, пока потоки обработают принятые события. Имеет смысл после {@link #close()}
+     * @param timeout сколько ждать
+     * @param unit единица времени
+     * @return true, если все события обработаны
+     * @throws InterruptedException если поток прерван во время ожидания
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : workers) {
+            long left = end - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedJoin(worker, left);
+            if (worker.isAlive()) return false;
+        }
+        return true;
+    }
+
+    private static final class Worker extends Thread {
+        private final UpdateQueue<Runnable> queue;
+
+        private Worker(UpdateQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) return;
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Cutlet.instance().getLogger().error("Failed to run vk event task", e);
+                }
+            }
+        }
+    }
+}
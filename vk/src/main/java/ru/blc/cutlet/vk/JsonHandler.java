@@ -5,6 +5,7 @@ import org.jetbrains.annotations.NotNull;
 import ru.blc.cutlet.api.command.sender.CommandSender;
 import ru.blc.cutlet.api.event.Event;
 import ru.blc.cutlet.vk.event.chat.*;
+import ru.blc.cutlet.vk.method.ResponseCache;
 import ru.blc.cutlet.vk.method.messages.SendMessageEventAnswer;
 import ru.blc.cutlet.vk.objects.main.ChatAction;
 import ru.blc.cutlet.vk.objects.main.Message;
@@ -58,6 +59,18 @@ public class JsonHandler {
         }
     }
 
+    /**
+     * Удаляет из кэша ответов сведения о беседе, у которой изменился состав или название.<br>
+     * Чаты messages.getChat нумеруются для каждого пользователя отдельно, поэтому его ответы удаляются все
+     * @param peerId беседа
+     */
+    protected void invalidateChatCache(int peerId){
+        ResponseCache cache = VkModule.getResponseCache();
+        if (cache==null) return;
+        cache.invalidate(VkModule.METHODS.messages.getConversationMembers, "peer_id", String.valueOf(peerId));
+        cache.invalidate(VkModule.METHODS.messages.getChat);
+    }
+
     /**
      * Обработчик входящих событий с маркером "message_new"
      * @param json json
@@ -89,6 +102,7 @@ public class JsonHandler {
                     return true;
                 }
                 case CHAT_INVITE_USER:{
+                    invalidateChatCache(message.getPeerId());
                     ChatAction action = message.getAction();
                     int joinerId = message.getAction().getData().getInt("member_id");
                     int inviterId = message.getFromId();
@@ -103,6 +117,7 @@ public class JsonHandler {
                     return true;
                 }
                 case CHAT_KICK_USER:{
+                    invalidateChatCache(message.getPeerId());
                     ChatAction action = message.getAction();
                     int quiterId = message.getAction().getData().getInt("member_id");
                     int kickerId = message.getFromId();
@@ -117,11 +132,13 @@ public class JsonHandler {
                     return true;
                 }
                 case CHAT_INVITE_USER_BY_LINK:{
+                    invalidateChatCache(message.getPeerId());
                     Event event = new UserJoinChatEvent(message, message.getAction(), 0, UserJoinChatEvent.Reason.LINK_JOIN);
                     vkModule.getCutlet().getBotManager().callEvent(event, b -> b instanceof VkBot && ((VkBot) b).getGroupId()==group);
                     return true;
                 }
                 case CHAT_TITLE_UPDATE: {
+                    invalidateChatCache(message.getPeerId());
                     int updatedBy = message.getFromId();
                     String text = message.getAction().getData().getString("text");
                     Event event = new ChatTitleUpdateEvent(message, message.getAction(), updatedBy, text);
@@ -153,7 +170,7 @@ public class JsonHandler {
                             .delete
                             .getNewParamsSet()
                             .setMessageIds(message.getId())
-                            .setToken(bot.getDefaultToken())
+                            .setToken(bot.nextToken())
                             .call();
                 }
                 return true;
@@ -243,7 +260,7 @@ public class JsonHandler {
                 .setEventId(event.getText())
                 .setPeerId(event.getPeerId())
                 .setUserId(event.getFromId())
-                .setToken(bot.getDefaultToken())
+                .setToken(bot.nextToken())
                 .call();
     }
 }
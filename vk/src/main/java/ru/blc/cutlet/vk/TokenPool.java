@@ -0,0 +1,322 @@
+package ru.blc.cutlet.vk;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.method.RequestScheduler;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Несколько токенов одного бота, между которыми распределяются вызовы.<br>
+ * Токены выбираются по кругу, но токен, исчерпавший разрешенное количество запросов в эту секунду, пропускается.
+ * Токен, получивший ошибку авторизации, выводится из оборота на authRetireTime, получивший ошибку частоты запросов -
+ * на rateRetireTime, которое удваивается с каждой такой ошибкой подряд. Если выведены все токены,
+ * выбирается тот, который вернется раньше.<br>
+ * Результаты вызовов учитываются автоматически для всех токенов, входящих в открытые пулы. Если вызов повторяется
+ * ({@link ru.blc.cutlet.vk.method.RetryPolicy}), а пул вывел его токен после прошлой попытки, повтор выполняется
+ * со следующим токеном пула
+ */
+public class TokenPool implements Closeable {
+
+    private static final Map<String, TokenPool> POOLS = new ConcurrentHashMap<>();
+
+    private final List<TokenStats> tokens;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private Set<Integer> authCodes = new HashSet<>(Arrays.asList(5, 27, 28));
+    private Set<Integer> rateCodes = new HashSet<>(Arrays.asList(6, 9, 29));
+    private long authRetireTime = TimeUnit.MINUTES.toMillis(10);
+    private long rateRetireTime = 1000L;
+    private long maxRateRetireTime = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * @param tokens токены пула. Один токен не может входить в несколько пулов
+     */
+    public TokenPool(AccessToken... tokens) {
+        this(Arrays.asList(tokens));
+    }
+
+    /**
+     * @param tokens токены пула. Один токен не может входить в несколько пулов
+     */
+    public TokenPool(List<AccessToken> tokens) {
+        Preconditions.checkNotNull(tokens, "tokens");
+        Preconditions.checkArgument(!tokens.isEmpty(), "Token pool can not be empty");
+        List<TokenStats> list = new ArrayList<>(tokens.size());
+        for (AccessToken token : tokens) {
+            Preconditions.checkNotNull(token, "token");
+            list.add(new TokenStats(token));
+        }
+        this.tokens = Collections.unmodifiableList(list);
+        for (TokenStats stats : this.tokens) {
+            TokenPool other = POOLS.putIfAbsent(stats.token.getValue(), this);
+            if (other != null && other != this) {
+                close();
+                throw new IllegalArgumentException("Token already belongs to another pool");
+            }
+        }
+    }
+
+    /**
+     * @param token токен
+     * @return пул, в который входит токен, или null
+     */
+    @Nullable
+    public static TokenPool of(AccessToken token) {
+        return POOLS.get(token.getValue());
+    }
+
+    /**
+     * Учитывает результат вызова для пула, в который входит токен. Вызывается после каждой попытки вызова метода
+     * @param token токен вызова
+     * @param errorCode код ошибки вк или 0
+     * @param failed завершился ли вызов ошибкой, в том числе ошибкой соединения
+     */
+    public static void record(AccessToken token, int errorCode, boolean failed) {
+        TokenPool pool = of(token);
+        if (pool != null) pool.report(token, errorCode, failed);
+    }
+
+    /**
+     * @param codes коды ошибок авторизации. По умолчанию 5, 27 и 28
+     * @return this
+     */
+    public TokenPool setAuthCodes(Set<Integer> codes) {
+        this.authCodes = new HashSet<>(codes);
+        return this;
+    }
+
+    /**
+     * @param codes коды ошибок частоты запросов. По умолчанию 6, 9 и 29
+     * @return this
+     */
+    public TokenPool setRateCodes(Set<Integer> codes) {
+        this.rateCodes = new HashSet<>(codes);
+        return this;
+    }
+
+    /**
+     * @param authRetireTime на сколько миллисекунд выводить токен после ошибки авторизации
+     * @return this
+     */
+    public TokenPool setAuthRetireTime(long authRetireTime) {
+        Preconditions.checkArgument(authRetireTime >= 0, "time can not be negative");
+        this.authRetireTime = authRetireTime;
+        return this;
+    }
+
+    /**
+     * @param rateRetireTime на сколько миллисекунд выводить токен после первой ошибки частоты запросов
+     * @param maxRateRetireTime наибольшее время вывода после нескольких таких ошибок подряд
+     * @return this
+     */
+    public TokenPool setRateRetireTime(long rateRetireTime, long maxRateRetireTime) {
+        Preconditions.checkArgument(rateRetireTime >= 0, "time can not be negative");
+        Preconditions.checkArgument(maxRateRetireTime >= rateRetireTime, "max time can not be less than time");
+        this.rateRetireTime = rateRetireTime;
+        this.maxRateRetireTime = maxRateRetireTime;
+        return this;
+    }
+
+    /**
+     * @return следующий токен пула
+     */
+    public AccessToken next() {
+        return next(null);
+    }
+
+    /**
+     * @param type нужный тип токена или null - любой
+     * @return следующий токен пула этого типа
+     * @throws IllegalArgumentException если в пуле нет токенов этого типа
+     */
+    public AccessToken next(@Nullable AccessToken.AccessTokenType type) {
+        long now = System.nanoTime();
+        int start = Math.floorMod(cursor.getAndIncrement(), tokens.size());
+        TokenStats best = null;
+        TokenStats returning = null;
+        for (int i = 0; i < tokens.size(); i++) {
+            TokenStats stats = tokens.get((start + i) % tokens.size());
+            if (type != null && stats.token.getType() != type) continue;
+            if (stats.isRetired(now)) {
+                if (returning == null || stats.retiredUntil() - returning.retiredUntil() < 0) returning = stats;
+                continue;
+            }
+            if (stats.usage(now) < quota(stats.token)) {
+                best = stats;
+                break;
+            }
+            if (best == null || stats.usage(now) < best.usage(now)) best = stats;
+        }
+        if (best == null) best = returning;
+        Preconditions.checkArgument(best != null, "No tokens of type %s in pool", type);
+        best.use(now);
+        return best.token;
+    }
+
+    /**
+     * @return все токены пула
+     */
+    public List<AccessToken> getTokens() {
+        List<AccessToken> list = new ArrayList<>(tokens.size());
+        tokens.forEach(stats -> list.add(stats.token));
+        return list;
+    }
+
+    /**
+     * @param token токен пула
+     * @return статистика токена или null, если токен не из этого пула
+     */
+    @Nullable
+    public TokenStats getStats(AccessToken token) {
+        for (TokenStats stats : tokens) {
+            if (stats.token.getValue().equals(token.getValue())) return stats;
+        }
+        return null;
+    }
+
+    private void report(AccessToken token, int errorCode, boolean failed) {
+        TokenStats stats = getStats(token);
+        if (stats == null) return;
+        if (authCodes.contains(errorCode)) {
+            stats.failed(errorCode, authRetireTime, false);
+        } else if (rateCodes.contains(errorCode)) {
+            stats.failed(errorCode, rateRetireTime, true);
+        } else {
+            stats.completed(failed || errorCode != 0);
+        }
+    }
+
+    private double quota(AccessToken token) {
+        RequestScheduler scheduler = VkModule.getRequestScheduler();
+        if (scheduler != null) return scheduler.getRate(token.getType());
+        return token.getType() == AccessToken.AccessTokenType.GROUP ? 20 : 3;
+    }
+
+    /**
+     * Убирает токены пула из учета результатов. После закрытия токены могут войти в новый пул
+     */
+    @Override
+    public void close() {
+        for (TokenStats stats : tokens) {
+            POOLS.remove(stats.token.getValue(), this);
+        }
+    }
+
+    /**
+     * Использование и ошибки одного токена
+     */
+    public class TokenStats {
+        private final AccessToken token;
+        private long window;
+        private int usage;
+        private long calls;
+        private long errors;
+        private double errorRate;
+        private int rateErrors;
+        private long retiredUntil;
+        private boolean retired;
+        private int lastErrorCode;
+
+        private TokenStats(AccessToken token) {
+            this.token = token;
+            this.window = System.nanoTime();
+        }
+
+        public AccessToken getToken() {
+            return token;
+        }
+
+        private synchronized boolean isRetired(long now) {
+            if (retired && now - retiredUntil >= 0) retired = false;
+            return retired;
+        }
+
+        private synchronized long retiredUntil() {
+            return retiredUntil;
+        }
+
+        private synchronized int usage(long now) {
+            if (now - window >= TimeUnit.SECONDS.toNanos(1)) {
+                window = now;
+                usage = 0;
+            }
+            return usage;
+        }
+
+        private synchronized void use(long now) {
+            usage(now);
+            usage++;
+        }
+
+        private synchronized void completed(boolean failed) {
+            calls++;
+            if (failed) errors++;
+            errorRate += ((failed ? 1 : 0) - errorRate) * 0.05D;
+            if (!failed) rateErrors = 0;
+        }
+
+        private synchronized void failed(int code, long time, boolean rate) {
+            completed(true);
+            lastErrorCode = code;
+            if (rate) {
+                time = Math.min(maxRateRetireTime, time << Math.min(rateErrors, 30));
+                rateErrors++;
+            }
+            retired = true;
+            retiredUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time);
+        }
+
+        /**
+         * @return выведен ли токен из оборота сейчас
+         */
+        public boolean isRetired() {
+            return isRetired(System.nanoTime());
+        }
+
+        /**
+         * @return сколько миллисекунд осталось до возвращения токена, 0 если он не выведен
+         */
+        public synchronized long getRetiredFor() {
+            return isRetired(System.nanoTime()) ? TimeUnit.NANOSECONDS.toMillis(retiredUntil - System.nanoTime()) : 0;
+        }
+
+        /**
+         * @return сколько раз токен выбран в текущую секунду
+         */
+        public int getUsage() {
+            return usage(System.nanoTime());
+        }
+
+        public synchronized long getCallCount() {
+            return calls;
+        }
+
+        public synchronized long getErrorCount() {
+            return errors;
+        }
+
+        /**
+         * @return доля ошибок за последние вызовы от 0 до 1
+         */
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * @return код последней ошибки, из-за которой токен выводился, или 0
+         */
+        public synchronized int getLastErrorCode() {
+            return lastErrorCode;
+        }
+    }
+}
@@ -4,7 +4,11 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import ru.blc.cutlet.vk.command.SimpleCommandSender;
 import ru.blc.cutlet.vk.command.VkCommandSender;
+import ru.blc.cutlet.vk.method.users.UserLoader;
 import ru.blc.cutlet.vk.objects.main.Message;
+import ru.blc.cutlet.vk.objects.main.User;
+
+import java.util.concurrent.CompletableFuture;
 
 public interface VkBot {
 
@@ -18,6 +22,24 @@ public interface VkBot {
      */
     AccessToken getDefaultToken();
 
+    /**
+     * Пул токенов этого бота. Если он есть, вызовы от имени бота распределяются между его токенами
+     * @return пул токенов или null, если у бота один токен
+     */
+    @Nullable
+    default TokenPool getTokenPool(){
+        return null;
+    }
+
+    /**
+     * Токен для очередного вызова: следующий токен из {@link #getTokenPool() пула} или токен по умолчанию
+     * @return токен
+     */
+    default AccessToken nextToken(){
+        TokenPool pool = getTokenPool();
+        return pool == null ? getDefaultToken() : pool.next(getDefaultToken().getType());
+    }
+
     /**
      * Строка-подтверждение для этого бота. Может быть null, если не используется CallbackApi
      * @return поддтверждение
@@ -53,6 +75,17 @@ public interface VkBot {
         return new SimpleCommandSender(message, this);
     }
 
+    /**
+     * Загружает пользователя очередным токеном бота. Запросы, сделанные за короткое время, отправляются одним users.get
+     * @param userId id пользователя
+     * @param fields дополнительные поля, они доступны через {@link User#getSource()}
+     * @return задача, которая завершится пользователем или null, если вк его не вернул
+     * @see UserLoader
+     */
+    default CompletableFuture<User> getUser(int userId, String... fields){
+        return VkModule.getUserLoader().load(nextToken(), userId, fields);
+    }
+
 
     /**
      * @return Обработчик событий. Если null, используется стандартный
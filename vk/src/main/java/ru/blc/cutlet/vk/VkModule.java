@@ -2,22 +2,75 @@ package ru.blc.cutlet.vk;
 
 import com.google.common.base.Preconditions;
 import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.api.Cutlet;
 import ru.blc.cutlet.api.command.Messenger;
 import ru.blc.cutlet.api.module.Module;
 import ru.blc.cutlet.vk.callback.CallbackServer;
 import ru.blc.cutlet.vk.command.console.SetConfirmCommand;
+import ru.blc.cutlet.vk.command.console.StatsCommand;
+import ru.blc.cutlet.vk.event.CircuitStateChangeEvent;
+import ru.blc.cutlet.vk.http.ApacheTransport;
+import ru.blc.cutlet.vk.http.HttpTransport;
+import ru.blc.cutlet.vk.http.JdkTransport;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+import ru.blc.cutlet.vk.http.NioHttpClient;
+import ru.blc.cutlet.vk.http.VkHttpClient;
+import ru.blc.cutlet.vk.longpoll.Backoff;
+import ru.blc.cutlet.vk.longpoll.CheckpointStore;
 import ru.blc.cutlet.vk.longpoll.LongPollConnection;
+import ru.blc.cutlet.vk.longpoll.LongPollHealth;
+import ru.blc.cutlet.vk.longpoll.LongPollMultiplexer;
+import ru.blc.cutlet.vk.longpoll.UpdateQueue;
+import ru.blc.cutlet.vk.method.CircuitBreaker;
+import ru.blc.cutlet.vk.method.ConcurrencyLimiter;
+import ru.blc.cutlet.vk.method.Deadline;
+import ru.blc.cutlet.vk.method.ExecuteBatcher;
+import ru.blc.cutlet.vk.method.RequestScheduler;
 import ru.blc.cutlet.vk.method.Methods;
+import ru.blc.cutlet.vk.method.RequestCoalescer;
+import ru.blc.cutlet.vk.method.ResponseCache;
+import ru.blc.cutlet.vk.method.RetryPolicy;
+import ru.blc.cutlet.vk.method.Timeouts;
+import ru.blc.cutlet.vk.method.users.UserLoader;
+import ru.blc.cutlet.vk.upload.AttachmentCache;
+import ru.blc.cutlet.vk.upload.MediaUploader;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class VkModule extends Module {
     public static final int CONVERSATIONS_IDS_ADD = 2000000000;
     public static final Methods METHODS = new Methods();
     public static final Messenger VK_MESSENGER = new Messenger() {};
 
+    private static volatile VkHttpClient httpClient;
+    private static volatile HttpTransport transport;
+    @Nullable private static volatile ExecuteBatcher executeBatcher;
+    @Nullable private static volatile RequestScheduler requestScheduler;
+    @Nullable private static volatile ResponseCache responseCache;
+    @Nullable private static volatile RequestCoalescer requestCoalescer;
+    @Nullable private static volatile RetryPolicy retryPolicy;
+    @Nullable private static volatile CircuitBreaker circuitBreaker;
+    @Nullable private static volatile ConcurrencyLimiter concurrencyLimiter;
+    @Nullable private static volatile EventDispatcher eventDispatcher;
+    @Nullable private static volatile CheckpointStore checkpointStore;
+    private static volatile UserLoader userLoader;
+    private static volatile Timeouts timeouts;
+    private static volatile long eventTimeout;
+    private static volatile int updateQueueCapacity = 1000;
+    private static volatile UpdateQueue.Overflow updateQueueOverflow = UpdateQueue.Overflow.BLOCK;
+    private static volatile int longPollWait = 25;
+    private static volatile Backoff longPollBackoff = new Backoff(1000L, 60000L);
+    private static volatile MediaUploader mediaUploader;
+
     @Nullable private CallbackServer server;
+    @Nullable private LongPollMultiplexer longPollMultiplexer;
     private JsonHandler jsonHandler;
 
     private final Map<Integer, VkBot> callbackBots = new HashMap<>();
@@ -30,6 +83,176 @@ public class VkModule extends Module {
 
     @Override
     public void onEnable() {
+        VkHttpClient.Settings httpSettings = new VkHttpClient.Settings()
+                .setMaxTotal(getConfig().getInt("http.max_total", 200))
+                .setMaxPerRoute(getConfig().getInt("http.max_per_route", 50))
+                .setKeepAlive(getConfig().getInt("http.keep_alive", 30))
+                .setIdleTimeout(getConfig().getInt("http.idle_timeout", 60))
+                .setTimeToLive(getConfig().getInt("http.time_to_live", -1))
+                .setWarmUpConnections(getConfig().getInt("http.warm_up", 4))
+                .setCompression(getConfig().getBoolean("http.compression", true))
+                .setConnectTimeout(getConfig().getInt("http.connect_timeout", 10000))
+                .setConnectionRequestTimeout(getConfig().getInt("http.pool_timeout", 10000))
+                .setSocketTimeout(getConfig().getInt("http.socket_timeout", 60000));
+        replaceHttpClient(new VkHttpClient(httpSettings));
+        String transportName = getConfig().getString("http.transport", "apache");
+        switch (transportName.toLowerCase(Locale.ROOT)) {
+            case "jdk":
+                setTransport(new JdkTransport(httpSettings, getHttpClient().getContentEncoding()));
+                break;
+            case "apache":
+                setTransport(new ApacheTransport());
+                break;
+            default:
+                getLogger().error("Unknown http transport {}, apache will be used", transportName);
+                setTransport(new ApacheTransport());
+        }
+        if (httpSettings.getWarmUpConnections() > 0) {
+            CompletableFuture.runAsync(() -> {
+                int warmed = getHttpClient().warmUp(httpSettings.getWarmUpConnections());
+                getLogger().debug("Opened {} connection(s) to vk api", warmed);
+            });
+        }
+        replaceTimeouts(new Timeouts()
+                .setDefaultTimeout(getConfig().getLong("timeouts.default", 30000L))
+                .setTimeoutSource(method -> getConfig().getLong("timeouts.methods." + method.replace('.', '_'), -1L)));
+        eventTimeout = getConfig().getLong("timeouts.event", 0L);
+        updateQueueCapacity = Math.max(1, getConfig().getInt("long_poll.queue_capacity", 1000));
+        String overflow = getConfig().getString("long_poll.overflow", "block");
+        try {
+            updateQueueOverflow = UpdateQueue.Overflow.valueOf(overflow.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            getLogger().error("Unknown long poll queue overflow policy {}, block will be used", overflow);
+            updateQueueOverflow = UpdateQueue.Overflow.BLOCK;
+        }
+        longPollWait = Math.max(1, Math.min(90, getConfig().getInt("long_poll.wait", 25)));
+        long backoffBase = Math.max(1L, getConfig().getLong("long_poll.backoff.base_delay", 1000L));
+        longPollBackoff = new Backoff(backoffBase, Math.max(backoffBase, getConfig().getLong("long_poll.backoff.max_delay", 60000L)));
+        closeCheckpointStore();
+        if (getConfig().getBoolean("long_poll.checkpoints.enabled", true)) {
+            try {
+                checkpointStore = new CheckpointStore(
+                        getDirectory().toPath().resolve(getConfig().getString("long_poll.checkpoints.file", "longpoll.checkpoints")),
+                        Math.max(0L, getConfig().getLong("long_poll.checkpoints.flush_interval", 1000L)));
+            } catch (UncheckedIOException e) {
+                getLogger().error("Failed to open long poll checkpoints, events received while bots were offline will be lost", e);
+            }
+        }
+        closeEventDispatcher();
+        if (getConfig().getBoolean("dispatcher.enabled", true)) {
+            eventDispatcher = new EventDispatcher(
+                    Math.max(1, getConfig().getInt("dispatcher.workers", 8)),
+                    Math.max(1, getConfig().getInt("dispatcher.queue_capacity", 1000)));
+        }
+        if (longPollMultiplexer != null) {
+            longPollMultiplexer.close();
+            longPollMultiplexer = null;
+        }
+        if (getConfig().getBoolean("long_poll.multiplexed.enabled", false)) {
+            longPollMultiplexer = new LongPollMultiplexer(
+                    new NioHttpClient(Math.max(1, getConfig().getInt("long_poll.multiplexed.selectors", 2)),
+                            httpSettings.getConnectTimeout() > 0 ? httpSettings.getConnectTimeout() : 10000L,
+                            getHttpClient().getContentEncoding())
+                            .setMaxResponseSize(Math.max(1, getConfig().getInt("long_poll.multiplexed.max_response_size", 10485760))),
+                    Math.max(1, getConfig().getInt("long_poll.multiplexed.handlers", 4)));
+        }
+        RetryPolicy oldRetryPolicy = retryPolicy;
+        retryPolicy = null;
+        if (oldRetryPolicy != null) {
+            oldRetryPolicy.close();
+        }
+        if (getConfig().getBoolean("retry.enabled", true)) {
+            retryPolicy = new RetryPolicy()
+                    .setMaxAttempts(getConfig().getInt("retry.max_attempts", 3))
+                    .setBaseDelay(getConfig().getLong("retry.base_delay", 200L))
+                    .setMaxDelay(getConfig().getLong("retry.max_delay", 5000L))
+                    .setBudget(getConfig().getDouble("retry.budget.ratio", 0.1D), getConfig().getDouble("retry.budget.reserve", 10D));
+            if (getConfig().hasValue("retry.rejected_codes")) {
+                retryPolicy.setRejectedCodes(new HashSet<>(getConfig().getIntegerList("retry.rejected_codes")));
+            }
+            if (getConfig().hasValue("retry.transient_codes")) {
+                retryPolicy.setTransientCodes(new HashSet<>(getConfig().getIntegerList("retry.transient_codes")));
+            }
+        }
+        RequestScheduler oldScheduler = requestScheduler;
+        requestScheduler = null;
+        if (oldScheduler != null) {
+            oldScheduler.close();
+        }
+        if (getConfig().getBoolean("rate_limit.enabled", true)) {
+            int schedulerRetries = Math.max(0, getConfig().getInt("rate_limit.retries", 0));
+            RetryPolicy retry = retryPolicy;
+            if (schedulerRetries > 0 && retry != null && retry.getRejectedCodes().contains(RequestScheduler.TOO_MANY_REQUESTS)) {
+                // повторы обоих слоев умножались бы друг на друга и обходили бюджет повторов
+                getLogger().warn("Error 6 is already repeated by retry policy, rate_limit.retries is ignored");
+                schedulerRetries = 0;
+            }
+            requestScheduler = new RequestScheduler()
+                    .setRate(AccessToken.AccessTokenType.GROUP, getConfig().getDouble("rate_limit.group", 20D))
+                    .setRate(AccessToken.AccessTokenType.USER, getConfig().getDouble("rate_limit.user", 3D))
+                    .setRate(AccessToken.AccessTokenType.SERVICE, getConfig().getDouble("rate_limit.service", 3D))
+                    .setMaxRetries(schedulerRetries)
+                    .setRetryDelay(getConfig().getLong("rate_limit.retry_delay", 300L));
+        }
+        circuitBreaker = null;
+        if (getConfig().getBoolean("circuit_breaker.enabled", true)) {
+            CircuitBreaker breaker = new CircuitBreaker(
+                    getConfig().getInt("circuit_breaker.failure_threshold", 5),
+                    getConfig().getLong("circuit_breaker.open_time", 30000L));
+            if (getConfig().hasValue("circuit_breaker.failure_codes")) {
+                breaker.setFailureCodes(new HashSet<>(getConfig().getIntegerList("circuit_breaker.failure_codes")));
+            }
+            breaker.setListener((method, token, from, to) -> {
+                getLogger().warn("Circuit for method {} changed from {} to {}", method, from, to);
+                getCutlet().getBotManager().callEvent(new CircuitStateChangeEvent(method, token, from, to), b -> b instanceof VkBot);
+            });
+            circuitBreaker = breaker;
+        }
+        concurrencyLimiter = null;
+        if (getConfig().getBoolean("concurrency.enabled", true)) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(
+                    getConfig().getInt("concurrency.initial_limit", 20),
+                    getConfig().getInt("concurrency.min_limit", 2),
+                    getConfig().getInt("concurrency.max_limit", 200))
+                    .setBackoff(getConfig().getDouble("concurrency.backoff", 0.9D))
+                    .setTolerance(getConfig().getDouble("concurrency.tolerance", 2D));
+            if (getConfig().hasValue("concurrency.overload_codes")) {
+                limiter.setOverloadCodes(new HashSet<>(getConfig().getIntegerList("concurrency.overload_codes")));
+            }
+            concurrencyLimiter = limiter;
+        }
+        ExecuteBatcher oldBatcher = executeBatcher;
+        executeBatcher = null;
+        if (oldBatcher != null) {
+            oldBatcher.close();
+        }
+        if (getConfig().getBoolean("batching.enabled", false)) {
+            executeBatcher = new ExecuteBatcher(getConfig().getLong("batching.window", 10L));
+        }
+        responseCache = null;
+        if (getConfig().getBoolean("cache.enabled", true)) {
+            responseCache = new ResponseCache(getConfig().getInt("cache.max_size", 10000))
+                    .setCacheTimeSource(method -> getConfig().getInt("cache.ttl." + method.replace('.', '_'), -1));
+        }
+        requestCoalescer = null;
+        if (getConfig().getBoolean("coalescing.enabled", true)) {
+            requestCoalescer = new RequestCoalescer();
+        }
+        replaceUserLoader(new UserLoader(getConfig().getLong("user_loader.tick", 5L)));
+        closeMediaUploader();
+        AttachmentCache attachments = null;
+        if (getConfig().getBoolean("upload.cache.enabled", true)) {
+            try {
+                attachments = new AttachmentCache(
+                        getDirectory().toPath().resolve(getConfig().getString("upload.cache.file", "attachments.cache")),
+                        getConfig().getInt("upload.cache.max_size", 10000),
+                        getConfig().getLong("upload.cache.max_age", 0L));
+            } catch (UncheckedIOException e) {
+                getLogger().error("Failed to open attachment cache, uploaded photos will not be reused", e);
+            }
+        }
+        mediaUploader = new MediaUploader(getConfig().getInt("upload.server_ttl", 600), attachments,
+                Math.max(1, getConfig().getInt("upload.threads", 4)));
         this.jsonHandler = new JsonHandler(this);
         if (getConfig().getBoolean("server.enabled")){
             server = new CallbackServer(this,
@@ -38,6 +261,7 @@ public class VkModule extends Module {
                     getConfig().getInt("server.port", 80));
         }
         getCutlet().getBotManager().registerCommand(null, new SetConfirmCommand());
+        getCutlet().getBotManager().registerCommand(null, new StatsCommand());
     }
 
     @Override
@@ -45,6 +269,388 @@ public class VkModule extends Module {
         if (getServer()!=null){
             getServer().stop();
         }
+        if (longPollMultiplexer != null) {
+            longPollMultiplexer.close();
+            longPollMultiplexer = null;
+        }
+        closeEventDispatcher();
+        closeCheckpointStore();
+        ExecuteBatcher batcher = executeBatcher;
+        executeBatcher = null;
+        if (batcher != null) {
+            batcher.close();
+        }
+        RequestScheduler scheduler = requestScheduler;
+        requestScheduler = null;
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        RetryPolicy retry = retryPolicy;
+        retryPolicy = null;
+        if (retry != null) {
+            retry.close();
+        }
+        circuitBreaker = null;
+        concurrencyLimiter = null;
+        responseCache = null;
+        requestCoalescer = null;
+        replaceUserLoader(null);
+        closeMediaUploader();
+        replaceTimeouts(null);
+        setTransport(null);
+        replaceHttpClient(null);
+    }
+
+    /**
+     * Общий http клиент для запросов к вк апи, long poll и загрузки файлов.<br>
+     * Если модуль ещё не включен, создается клиент с настройками по умолчанию
+     * @return http клиент
+     */
+    public static VkHttpClient getHttpClient() {
+        VkHttpClient client = httpClient;
+        if (client == null) {
+            synchronized (VkModule.class) {
+                client = httpClient;
+                if (client == null) {
+                    client = new VkHttpClient(new VkHttpClient.Settings());
+                    httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Транспорт, через который идут вызовы методов апи и long poll.<br>
+     * Если транспорт не задан, используется {@link ApacheTransport}
+     * @return транспорт
+     */
+    public static HttpTransport getTransport() {
+        HttpTransport current = transport;
+        if (current == null) {
+            synchronized (VkModule.class) {
+                current = transport;
+                if (current == null) {
+                    current = new ApacheTransport();
+                    transport = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Заменяет транспорт, например на {@link LoopbackTransport} для нагрузочных тестов. Старый транспорт закрывается.<br>
+     * При включении модуля транспорт снова выбирается по конфигурации
+     * @param value новый транспорт или null, чтобы вернуть транспорт по умолчанию
+     */
+    public static void setTransport(@Nullable HttpTransport value) {
+        HttpTransport old;
+        synchronized (VkModule.class) {
+            old = transport;
+            transport = value;
+        }
+        if (old != null && old != value) {
+            try {
+                old.close();
+            } catch (IOException e) {
+                Cutlet.instance().getLogger().error("Failed to close http transport", e);
+            }
+        }
+    }
+
+    /**
+     * @return объединитель запросов в execute, или null, если объединение выключено в конфигурации
+     */
+    @Nullable
+    public static ExecuteBatcher getExecuteBatcher() {
+        return executeBatcher;
+    }
+
+    /**
+     * Заменяет объединитель запросов в execute, например в тестах. Старый объединитель не закрывается.<br>
+     * При включении модуля объединитель снова создается по конфигурации
+     * @param value новый объединитель или null, чтобы выключить объединение
+     */
+    public static void setExecuteBatcher(@Nullable ExecuteBatcher value) {
+        executeBatcher = value;
+    }
+
+    /**
+     * @return планировщик запросов с ограничением частоты для каждого токена, или null, если он выключен в конфигурации
+     */
+    @Nullable
+    public static RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    /**
+     * @return повтор вызовов после временных ошибок, или null, если он выключен в конфигурации
+     */
+    @Nullable
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Заменяет повтор вызовов, например в тестах. Старый повтор не закрывается.<br>
+     * При включении модуля повтор снова создается по конфигурации
+     * @param value новый повтор или null, чтобы выключить его
+     */
+    public static void setRetryPolicy(@Nullable RetryPolicy value) {
+        retryPolicy = value;
+    }
+
+    /**
+     * @return размыкатель цепей для пар метод + токен, или null, если он выключен в конфигурации
+     */
+    @Nullable
+    public static CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Заменяет размыкатель цепей, например в тестах.<br>
+     * При включении модуля размыкатель снова создается по конфигурации
+     * @param value новый размыкатель или null, чтобы выключить его
+     */
+    public static void setCircuitBreaker(@Nullable CircuitBreaker value) {
+        circuitBreaker = value;
+    }
+
+    /**
+     * @return адаптивное ограничение одновременных вызовов апи, или null, если оно выключено в конфигурации
+     */
+    @Nullable
+    public static ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Заменяет ограничение одновременных вызовов, например в тестах.<br>
+     * При включении модуля ограничение снова создается по конфигурации
+     * @param value новое ограничение или null, чтобы выключить его
+     */
+    public static void setConcurrencyLimiter(@Nullable ConcurrencyLimiter value) {
+        concurrencyLimiter = value;
+    }
+
+    /**
+     * @return потоки обработки входящих событий по беседам, или null, если события обрабатываются в потоке,
+     * получившем их (выключено в конфигурации)
+     */
+    @Nullable
+    public static EventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /**
+     * @return сохраненные на диск ts long poll подключений, или null, если сохранение выключено в конфигурации
+     */
+    @Nullable
+    public static CheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    /**
+     * @return кэш ответов методов, только читающих данные, или null, если он выключен в конфигурации
+     */
+    @Nullable
+    public static ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Заменяет кэш ответов, например в тестах.<br>
+     * При включении модуля кэш снова создается по конфигурации
+     * @param value новый кэш или null, чтобы выключить кэширование
+     */
+    public static void setResponseCache(@Nullable ResponseCache value) {
+        responseCache = value;
+    }
+
+    /**
+     * @return объединитель одинаковых одновременных запросов, или null, если он выключен в конфигурации
+     */
+    @Nullable
+    public static RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Заменяет объединитель одинаковых запросов, например в тестах.<br>
+     * При включении модуля объединитель снова создается по конфигурации
+     * @param value новый объединитель или null, чтобы выключить объединение
+     */
+    public static void setRequestCoalescer(@Nullable RequestCoalescer value) {
+        requestCoalescer = value;
+    }
+
+    /**
+     * Сроки вызовов методов.<br>
+     * Если модуль ещё не включен, создаются сроки по умолчанию
+     * @return сроки вызовов
+     */
+    public static Timeouts getTimeouts() {
+        Timeouts result = timeouts;
+        if (result == null) {
+            synchronized (VkModule.class) {
+                result = timeouts;
+                if (result == null) {
+                    result = new Timeouts();
+                    timeouts = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Срок обработки входящего события. Вызовы апи, сделанные в потоке обработчика, завершаются не позже него
+     * @return срок или null, если время обработки не ограничено
+     */
+    @Nullable
+    public static Deadline newEventDeadline() {
+        long timeout = eventTimeout;
+        return timeout > 0 ? Deadline.after(timeout, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * Очередь между получением и обработкой обновлений long poll с размером и поведением при переполнении из конфигурации
+     * @param <E> тип обновлений
+     * @return новая очередь
+     */
+    public static <E> UpdateQueue<E> newUpdateQueue() {
+        return new UpdateQueue<>(updateQueueCapacity, updateQueueOverflow);
+    }
+
+    /**
+     * @return сколько секунд long poll сервер ждет событий, прежде чем ответить пустым списком
+     */
+    public static int getLongPollWait() {
+        return longPollWait;
+    }
+
+    /**
+     * @return паузы между попытками восстановить long poll подключение
+     */
+    public static Backoff getLongPollBackoff() {
+        return longPollBackoff;
+    }
+
+    /**
+     * Загрузчик пользователей, объединяющий одиночные запросы в один users.get.<br>
+     * Если модуль ещё не включен, создается загрузчик с настройками по умолчанию
+     * @return загрузчик пользователей
+     */
+    public static UserLoader getUserLoader() {
+        UserLoader loader = userLoader;
+        if (loader == null) {
+            synchronized (VkModule.class) {
+                loader = userLoader;
+                if (loader == null) {
+                    loader = new UserLoader(5L);
+                    userLoader = loader;
+                }
+            }
+        }
+        return loader;
+    }
+
+    /**
+     * Загрузчик фотографий и документов.<br>
+     * Если модуль ещё не включен, создается загрузчик с настройками по умолчанию
+     * @return загрузчик файлов
+     */
+    public static MediaUploader getMediaUploader() {
+        MediaUploader uploader = mediaUploader;
+        if (uploader == null) {
+            synchronized (VkModule.class) {
+                uploader = mediaUploader;
+                if (uploader == null) {
+                    uploader = new MediaUploader(600);
+                    mediaUploader = uploader;
+                }
+            }
+        }
+        return uploader;
+    }
+
+    private void closeMediaUploader() {
+        MediaUploader uploader = mediaUploader;
+        mediaUploader = null;
+        if (uploader == null) return;
+        uploader.close();
+        if (uploader.getAttachmentCache() == null) return;
+        try {
+            uploader.getAttachmentCache().close();
+        } catch (UncheckedIOException e) {
+            getLogger().error("Failed to save attachment cache", e);
+        }
+    }
+
+    private void closeCheckpointStore() {
+        CheckpointStore store = checkpointStore;
+        checkpointStore = null;
+        if (store == null) return;
+        try {
+            store.close();
+        } catch (UncheckedIOException e) {
+            getLogger().error("Failed to save long poll checkpoints", e);
+        }
+    }
+
+    private void closeEventDispatcher() {
+        EventDispatcher dispatcher = eventDispatcher;
+        eventDispatcher = null;
+        if (dispatcher != null) {
+            dispatcher.close();
+            // ts long poll подтверждаются после обработки событий, поэтому принятые события дообрабатываются до записи ts
+            try {
+                if (!dispatcher.awaitTermination(Math.max(0L, getConfig().getLong("dispatcher.shutdown_timeout", 10000L)), TimeUnit.MILLISECONDS)) {
+                    getLogger().warn("Event dispatcher did not handle queued events in time, they will be received again after restart");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void replaceTimeouts(@Nullable Timeouts value) {
+        Timeouts old;
+        synchronized (VkModule.class) {
+            old = timeouts;
+            timeouts = value;
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    private static void replaceUserLoader(@Nullable UserLoader loader) {
+        UserLoader old;
+        synchronized (VkModule.class) {
+            old = userLoader;
+            userLoader = loader;
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    private void replaceHttpClient(@Nullable VkHttpClient client) {
+        VkHttpClient old;
+        synchronized (VkModule.class) {
+            old = httpClient;
+            httpClient = client;
+        }
+        if (old != null) {
+            try {
+                old.close();
+            } catch (IOException e) {
+                getLogger().error("Failed to close http client", e);
+            }
+        }
     }
 
     /**
@@ -55,6 +661,29 @@ public class VkModule extends Module {
         return server;
     }
 
+    /**
+     * @return LongPoll для всех ботов через несколько потоков, или null, если у каждого бота свое подключение
+     */
+    @Nullable
+    public LongPollMultiplexer getLongPollMultiplexer() {
+        return longPollMultiplexer;
+    }
+
+    /**
+     * @param bot бот
+     * @return состояние long poll подключения бота или null, если бот не подключен к long poll
+     */
+    @Nullable
+    public LongPollHealth getLongPollHealth(VkBot bot) {
+        LongPollMultiplexer multiplexer = longPollMultiplexer;
+        if (multiplexer != null) {
+            LongPollHealth health = multiplexer.getHealth(bot);
+            if (health != null) return health;
+        }
+        LongPollConnection connection = LongPollConnection.findConnection(bot);
+        return connection == null ? null : connection.getHealth();
+    }
+
     /**
      * Отвечает за обработку всех входящих сообщений
      * @return JsonHandler
@@ -86,7 +715,11 @@ public class VkModule extends Module {
             return;
         }
         if (longPoll){
-            LongPollConnection.getConnection(bot);
+            if (longPollMultiplexer != null) {
+                longPollMultiplexer.register(bot);
+            } else {
+                LongPollConnection.getConnection(bot);
+            }
             return;
         }
         if (getServer()==null){
@@ -101,6 +734,9 @@ public class VkModule extends Module {
      */
     public void disconnectBot(VkBot bot){
         callbackBots.remove(bot.getGroupId());
+        if (longPollMultiplexer != null) {
+            longPollMultiplexer.unregister(bot);
+        }
         LongPollConnection.disconnect(bot);
     }
 
@@ -11,7 +11,7 @@ import org.apache.http.impl.bootstrap.ServerBootstrap;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
-import ru.blc.cutlet.vk.JsonHandler;
+import ru.blc.cutlet.vk.EventDispatcher;
 import ru.blc.cutlet.vk.VkBot;
 import ru.blc.cutlet.vk.VkModule;
 import ru.blc.objconfig.json.JsonConfiguration;
@@ -97,6 +97,53 @@ public class CallbackServer {
         vkModule.getLogger().info("Callback server stopped");
     }
 
+    /**
+     * Обрабатывает тело запроса от callback api без привязки к http серверу,
+     * поэтому события можно передавать и в обход сети, например в нагрузочных тестах
+     * @param input тело запроса
+     * @return ответ для вк или null, если отвечать нечем
+     */
+    public String handle(String input) {
+        vkModule.getLogger().debug("Received message {}", input);
+        JsonConfiguration json;
+        try {
+            json =JsonConfiguration.loadConfiguration(input);
+            if (!json.hasValue("group_id")) {
+                vkModule.getLogger().error("Received json without group id. json = {}", input);
+                return null;
+            }
+            int group = json.getInt("group_id");
+            VkBot bot = vkModule.getCallbackBot(group);
+            if (bot==null){
+                vkModule.getLogger().error("Received json from group {}, but bot not founded. json = {}", group, input);
+                return null;
+            }
+            if (!json.hasValue("type")){
+                vkModule.getLogger().error("Received json without type from group {}. json = {}", group, input);
+                return null;
+            }
+            if (!json.hasValue("secret")){
+                vkModule.getLogger().error("Received json without secret from group {}. json = {}", group, input);
+                return null;
+            }
+            if (json.getString("type").equalsIgnoreCase("confirmation")){
+                vkModule.getLogger().debug("Received confirmation for bot {}. Answer will {}", bot.getName(), bot.getConfirmation());
+                return bot.getConfirmation();
+            }
+            vkModule.getLogger().debug("Handling message");
+            EventDispatcher dispatcher = VkModule.getEventDispatcher();
+            if (dispatcher != null) {
+                dispatcher.dispatch(json, bot);
+            } else {
+                EventDispatcher.handle(json, bot);
+            }
+            return "ok";
+        }catch(Exception e) {
+            vkModule.getLogger().error("Error while parsing json. Input was "+input, e);
+            return "ok";
+        }
+    }
+
     public class LoggingHandler implements HttpRequestHandler {
 
         public void handle(HttpRequest httpRequest, HttpResponse httpResponse, HttpContext httpContext) throws IOException {
@@ -112,46 +159,9 @@ public class CallbackServer {
             }
             int bytesl = data.length;
             if (bytesl>0) {
-                String urlDecodedInput = new String(data, StandardCharsets.UTF_8);
-                vkModule.getLogger().debug("Received message {}", urlDecodedInput);
-                JsonConfiguration json;
-                try {
-                    json =JsonConfiguration.loadConfiguration(urlDecodedInput);
-                    if (!json.hasValue("group_id")) {
-                        vkModule.getLogger().error("Received json without group id. json = {}", urlDecodedInput);
-                        return;
-                    }
-                    int group = json.getInt("group_id");
-                    VkBot bot = vkModule.getCallbackBot(group);
-                    if (bot==null){
-                        vkModule.getLogger().error("Received json from group {}, but bot not founded. json = {}", group, urlDecodedInput);
-                        return;
-                    }
-                    if (!json.hasValue("type")){
-                        vkModule.getLogger().error("Received json without type from group {}. json = {}", group, urlDecodedInput);
-                        return;
-                    }
-                    if (!json.hasValue("secret")){
-                        vkModule.getLogger().error("Received json without secret from group {}. json = {}", group, urlDecodedInput);
-                        return;
-                    }
-                    if (json.getString("type").equalsIgnoreCase("confirmation")){
-                        vkModule.getLogger().debug("Received confirmation for bot {}. Answer will {}", bot.getName(), bot.getConfirmation());
-                        set200Result(httpResponse, bot.getConfirmation());
-                        return;
-                    }
-                    set200Result(httpResponse, "ok");
-                    try {
-                        vkModule.getLogger().debug("Handling message");
-                        JsonHandler jsonHandler = bot.getJsonHandler();
-                        if (jsonHandler==null) jsonHandler = vkModule.getJsonHandler();
-                        jsonHandler.handleJson(json, bot);
-                    }catch(Exception e) {
-                        vkModule.getLogger().error("Error while handling json. Json was "+urlDecodedInput, e);
-                    }
-                }catch(Exception e) {
-                    set200Result(httpResponse, "ok");
-                    vkModule.getLogger().error("Error while parsing json. Input was "+urlDecodedInput, e);
+                String answer = CallbackServer.this.handle(new String(data, StandardCharsets.UTF_8));
+                if (answer != null) {
+                    set200Result(httpResponse, answer);
                 }
             }
         }
@@ -10,10 +10,8 @@ import ru.blc.cutlet.vk.VkBot;
 import ru.blc.cutlet.vk.VkModule;
 import ru.blc.cutlet.vk.method.messages.Send;
 import ru.blc.cutlet.vk.objects.main.Message;
-import ru.blc.objconfig.json.JsonConfiguration;
 
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
 
 public class SimpleCommandSender implements VkCommandSender {
 
@@ -84,29 +82,29 @@ public class SimpleCommandSender implements VkCommandSender {
 
     private void sendMessage0(String message, boolean deleteAfter){
         bot.getLogger().debug("Sending message {} from bot {} for sender {}", message, bot.getName(), this);
-        CompletableFuture<String> future = VkModule.METHODS
+        Send.SendParamsSet params = (Send.SendParamsSet) VkModule.METHODS
                 .messages
                 .send
                 .getNewParamsSet()
                 .setMessage(message)
                 .setPeerId(getPeerId())
-                .setToken(bot.getDefaultToken())
-                .call();
-        if (deleteAfter){
-            future.whenComplete((s, t)->{
+                .setToken(bot.nextToken());
+        if (!deleteAfter){
+            params.call();
+        }else {
+            params.callMessageId().whenComplete((m, t)->{
                 if (t!=null){
                     bot.getLogger().error("Error while send and delete message ", t);
                     return;
                 }
-                bot.getLogger().debug("Answer for message is {}", s);
-                int m = JsonConfiguration.loadConfiguration(s).getInt("response");
+                bot.getLogger().debug("Answer for message is {}", m);
                 if (m>0){
                     VkModule.METHODS
                             .messages
                             .delete
                             .getNewParamsSet()
                             .setMessageIds(m)
-                            .setToken(bot.getDefaultToken())
+                            .setToken(bot.nextToken())
                             .call();
                 }
             });
@@ -115,24 +113,23 @@ public class SimpleCommandSender implements VkCommandSender {
 
     private void sendMessage0(Object message, boolean deleteAfter){
         if (message instanceof Send.SendParamsSet){
-            CompletableFuture<String> future = ((Send.SendParamsSet) message)
-                    .setPeerId(getPeerId())
-                    .setToken(bot.getDefaultToken())
-                    .call();
-            if (deleteAfter) {
-                future.whenComplete((s, t) -> {
+            Send.SendParamsSet params = ((Send.SendParamsSet) message).setPeerId(getPeerId());
+            params.setToken(bot.nextToken());
+            if (!deleteAfter) {
+                params.call();
+            } else {
+                params.callMessageId().whenComplete((m, t) -> {
                     if (t != null) {
                         bot.getLogger().error("Error while send and delete message ", t);
                         return;
                     }
-                    int m = JsonConfiguration.loadConfiguration(s).getInt("response");
                     if (m > 0) {
                         VkModule.METHODS
                                 .messages
                                 .delete
                                 .getNewParamsSet()
                                 .setMessageIds(m)
-                                .setToken(bot.getDefaultToken())
+                                .setToken(bot.nextToken())
                                 .call();
                     }
                 });
@@ -167,7 +164,7 @@ public class SimpleCommandSender implements VkCommandSender {
                 .send
                 .getNewParamsSet()
                 .setPeerId(getPeerId())
-                .setToken(bot.getDefaultToken());
+                .setToken(bot.nextToken());
     }
 
     @Override
@@ -178,7 +175,7 @@ public class SimpleCommandSender implements VkCommandSender {
                 .getNewParamsSet()
                 .setPeerId(getPeerId())
                 .setMessage(text)
-                .setToken(bot.getDefaultToken());
+                .setToken(bot.nextToken());
     }
 
     @Override
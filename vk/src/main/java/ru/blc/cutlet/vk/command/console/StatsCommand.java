@@ -0,0 +1,74 @@
+package ru.blc.cutlet.vk.command.console;
+
+import ru.blc.cutlet.api.Cutlet;
+import ru.blc.cutlet.api.command.Command;
+import ru.blc.cutlet.api.command.CommandExecutor;
+import ru.blc.cutlet.api.command.sender.CommandSender;
+import ru.blc.cutlet.api.console.command.ConsoleCommand;
+import ru.blc.cutlet.vk.EventDispatcher;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.longpoll.CheckpointStore;
+import ru.blc.cutlet.vk.longpoll.LongPollConnection;
+import ru.blc.cutlet.vk.longpoll.LongPollMultiplexer;
+import ru.blc.cutlet.vk.longpoll.UpdateQueue;
+import ru.blc.cutlet.vk.method.CircuitBreaker;
+import ru.blc.cutlet.vk.method.ConcurrencyLimiter;
+import ru.blc.cutlet.vk.method.RequestScheduler;
+import ru.blc.cutlet.vk.method.RetryPolicy;
+
+public class StatsCommand extends ConsoleCommand {
+    public StatsCommand() {
+        super("vkstats", "command.vkstats", "shows vk api call statistics", "vkstats", "vks");
+        setCommandExecutor(new CommandExecutor() {
+            @Override
+            public void onCommand(Command command, CommandSender sender, String alias, String[] args) {
+                ConcurrencyLimiter limiter = VkModule.getConcurrencyLimiter();
+                if (limiter != null) {
+                    sender.sendMessage(String.format("Concurrency: limit %d, in flight %d, queued %d, queue wait %.1f ms, min rtt %.1f ms",
+                            limiter.getLimit(), limiter.getInFlight(), limiter.getQueueSize(),
+                            limiter.getQueueWaitTime(), limiter.getMinRtt()));
+                    sender.sendMessage(String.format("Concurrency: calls %d, waited %d, expired in queue %d, limit decreases %d",
+                            limiter.getCallCount(), limiter.getQueuedCount(), limiter.getExpiredCount(), limiter.getDecreaseCount()));
+                }
+                RequestScheduler scheduler = VkModule.getRequestScheduler();
+                if (scheduler != null) {
+                    sender.sendMessage("Rate limit queue: " + scheduler.getQueueSize());
+                }
+                RetryPolicy retryPolicy = VkModule.getRetryPolicy();
+                if (retryPolicy != null) {
+                    sender.sendMessage(String.format("Retries: %d, exhausted %d, over budget %d",
+                            retryPolicy.getRetryCount(), retryPolicy.getExhaustedCount(), retryPolicy.getBudgetRejectedCount()));
+                }
+                CircuitBreaker breaker = VkModule.getCircuitBreaker();
+                if (breaker != null) {
+                    sender.sendMessage("Rejected by open circuits: " + breaker.getRejectedCount());
+                }
+                EventDispatcher dispatcher = VkModule.getEventDispatcher();
+                if (dispatcher != null) {
+                    sender.sendMessage(String.format("Event workers: %d, queued %d (max %d per worker), max time in queue %.1f ms, handled %d, blocked %d ms",
+                            dispatcher.getWorkers(), dispatcher.getQueueSize(), dispatcher.getMaxQueueSize(),
+                            dispatcher.getMaxQueueTime(), dispatcher.getHandledCount(), dispatcher.getBlockedTime()));
+                }
+                LongPollMultiplexer multiplexer = Cutlet.instance().getModule(VkModule.class).getLongPollMultiplexer();
+                if (multiplexer != null) {
+                    sender.sendMessage(String.format("Multiplexed long poll: %d bot(s), %d socket(s), %d poll(s) waiting, polls %d, updates %d, errors %d, refreshes %d",
+                            multiplexer.getConnectionCount(), multiplexer.getClient().getConnectionCount(), multiplexer.getClient().getInFlight(),
+                            multiplexer.getPollCount(), multiplexer.getUpdateCount(), multiplexer.getErrorCount(), multiplexer.getRefreshCount()));
+                    sender.sendMessage("Multiplexed long poll health: " + multiplexer.getHealthCounts());
+                }
+                CheckpointStore checkpoints = VkModule.getCheckpointStore();
+                if (checkpoints != null) {
+                    sender.sendMessage(String.format("Long poll checkpoints: recovered %d event(s), lost %d, saved %d time(s)",
+                            checkpoints.getRecoveredCount(), checkpoints.getLostCount(), checkpoints.getFlushCount()));
+                }
+                for (LongPollConnection connection : LongPollConnection.getConnections()) {
+                    UpdateQueue<?> queue = connection.getQueue();
+                    sender.sendMessage(String.format("Long poll %s: %s (%d failure(s) in a row), queued %d/%d (max %d), time in queue %.1f ms (max %.1f ms), handled %d, dropped %d, blocked %d ms",
+                            connection.getBot().getName(), connection.getHealth(), connection.getFailures(), queue.getSize(), queue.getCapacity(), queue.getMaxSize(),
+                            queue.getQueueTime(), queue.getMaxQueueTime(), queue.getTakenCount(), queue.getDroppedCount(), queue.getBlockedTime()));
+                }
+            }
+        });
+        setAllowedMessengers(VkModule.VK_MESSENGER);
+    }
+}
@@ -0,0 +1,54 @@
+package ru.blc.cutlet.vk.event;
+
+import ru.blc.cutlet.api.event.Event;
+import ru.blc.cutlet.api.event.HandlerList;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.method.CircuitBreaker;
+
+/**
+ * Цепь {@link CircuitBreaker} для метода и токена изменила состояние.<br>
+ * Пока цепь разомкнута ({@link CircuitBreaker.State#OPEN}), вызовы метода с этим токеном сразу завершаются ошибкой,
+ * и бот может, например, отправлять сообщения без фотографий
+ */
+public class CircuitStateChangeEvent extends Event {
+    private static final HandlerList handlers = new HandlerList();
+
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+    private final String method;
+    private final AccessToken token;
+    private final CircuitBreaker.State from, to;
+
+    public CircuitStateChangeEvent(String method, AccessToken token, CircuitBreaker.State from, CircuitBreaker.State to) {
+        this.method = method;
+        this.token = token;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return адрес метода, например photos.getMessagesUploadServer
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    public AccessToken getToken() {
+        return token;
+    }
+
+    public CircuitBreaker.State getFrom() {
+        return from;
+    }
+
+    public CircuitBreaker.State getTo() {
+        return to;
+    }
+}
@@ -0,0 +1,45 @@
+package ru.blc.cutlet.vk.event;
+
+import ru.blc.cutlet.api.event.Event;
+import ru.blc.cutlet.api.event.HandlerList;
+import ru.blc.cutlet.vk.VkBot;
+import ru.blc.cutlet.vk.longpoll.LongPollHealth;
+
+/**
+ * Long poll подключение бота изменило состояние.<br>
+ * Вызывается только для бота, чье подключение изменилось. Пока состояние не {@link LongPollHealth#HEALTHY},
+ * входящие события не приходят, и бот может, например, предупредить администраторов
+ */
+public class LongPollHealthChangeEvent extends Event {
+    private static final HandlerList handlers = new HandlerList();
+
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+    private final VkBot bot;
+    private final LongPollHealth from, to;
+
+    public LongPollHealthChangeEvent(VkBot bot, LongPollHealth from, LongPollHealth to) {
+        this.bot = bot;
+        this.from = from;
+        this.to = to;
+    }
+
+    public VkBot getBot() {
+        return bot;
+    }
+
+    public LongPollHealth getFrom() {
+        return from;
+    }
+
+    public LongPollHealth getTo() {
+        return to;
+    }
+}
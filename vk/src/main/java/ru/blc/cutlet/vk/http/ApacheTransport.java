@@ -0,0 +1,67 @@
+package ru.blc.cutlet.vk.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import ru.blc.cutlet.vk.VkModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Транспорт через Apache HttpClient общего {@link VkModule#getHttpClient() http клиента}: пул соединений, сжатие ответов
+ */
+public class ApacheTransport implements HttpTransport {
+
+    @Override
+    public TransportCall newCall(TransportRequest request) {
+        return new ApacheCall(request);
+    }
+
+    private static class ApacheCall implements TransportCall {
+
+        private final TransportRequest request;
+        private final HttpRequestBase httpRequest;
+
+        private ApacheCall(TransportRequest request) {
+            this.request = request;
+            this.httpRequest = (HttpRequestBase) RequestBuilder.create(request.getMethod()).setUri(request.getUrl()).build();
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                httpRequest.setHeader(header.getKey(), header.getValue());
+            }
+            if (httpRequest instanceof HttpEntityEnclosingRequestBase) {
+                ((HttpEntityEnclosingRequestBase) httpRequest).setEntity(new ByteArrayEntity(request.getBody(),
+                        request.getContentType() == null ? null : ContentType.parse(request.getContentType())));
+            }
+        }
+
+        @Override
+        public <R> R execute(BodyHandler<R> handler) throws IOException {
+            VkHttpClient client = VkModule.getHttpClient();
+            RequestConfig config = client.getRequestConfig(request.getTimeout());
+            if (request.getReadTimeout() > 0) {
+                long read = request.getTimeout() > 0 ? Math.min(request.getTimeout(), request.getReadTimeout()) : request.getReadTimeout();
+                config = RequestConfig.copy(config).setSocketTimeout((int) Math.min(Integer.MAX_VALUE, read)).build();
+            }
+            httpRequest.setConfig(config);
+            // клиент освобождает соединение после чтения ответа
+            return client.getClient().execute(httpRequest, response -> {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) return handler.handle(response.getStatusLine().getStatusCode(), null);
+                try (InputStream body = entity.getContent()) {
+                    return handler.handle(response.getStatusLine().getStatusCode(), body);
+                }
+            });
+        }
+
+        @Override
+        public void abort() {
+            httpRequest.abort();
+        }
+    }
+}
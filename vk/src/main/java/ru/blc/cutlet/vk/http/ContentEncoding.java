@@ -0,0 +1,245 @@
+package ru.blc.cutlet.vk.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Сжатие ответов gzip и deflate.<br>
+ * Добавляет к запросам Accept-Encoding и распаковывает ответ по мере чтения, поэтому json читается
+ * прямо из распакованного потока. Считает байты, полученные из сети, и байты после распаковки
+ * для всех ответов, сжатых и нет
+ */
+public class ContentEncoding implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    static final String ACCEPT = "gzip, deflate";
+
+    private final boolean enabled;
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder decodedBytes = new LongAdder();
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder compressedResponses = new LongAdder();
+
+    /**
+     * @param enabled запрашивать ли сжатые ответы. Если нет, байты все равно считаются
+     */
+    public ContentEncoding(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+        if (enabled && !request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT);
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) return;
+        Header header = entity.getContentEncoding();
+        String encoding = encoding(header == null ? null : header.getValue());
+        response.setEntity(new DecodingEntity(entity, encoding));
+        if (encoding != null) {
+            response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+            response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+            response.removeHeaders(HttpHeaders.CONTENT_MD5);
+        }
+    }
+
+    /**
+     * Распаковывает тело ответа по мере чтения и считает байты. Для транспортов, которые не используют перехватчики Apache
+     * @param wire тело ответа из сети
+     * @param contentEncoding значение заголовка Content-Encoding или null
+     * @return распакованное тело
+     * @throws IOException если сжатие не поддерживается
+     */
+    public InputStream decode(InputStream wire, @Nullable String contentEncoding) throws IOException {
+        return wrap(wire, encoding(contentEncoding));
+    }
+
+    /**
+     * Считает ответ
+     * @return gzip, deflate или null, если ответ не сжат
+     * @throws IOException если сжатие не поддерживается
+     */
+    @Nullable
+    private String encoding(@Nullable String contentEncoding) throws IOException {
+        responses.increment();
+        String encoding = contentEncoding == null ? "" : contentEncoding.trim().toLowerCase(Locale.ROOT);
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                compressedResponses.increment();
+                return "gzip";
+            case "deflate":
+                compressedResponses.increment();
+                return "deflate";
+            case "identity":
+            case "":
+                return null;
+            default:
+                throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+    }
+
+    private InputStream wrap(InputStream in, @Nullable String encoding) throws IOException {
+        InputStream wire = new CountingInputStream(in, wireBytes);
+        if (encoding == null) return new CountingInputStream(wire, decodedBytes);
+        InputStream decoded = encoding.equals("deflate") ? inflate(wire) : new GZIPInputStream(wire);
+        return new CountingInputStream(decoded, decodedBytes);
+    }
+
+    /**
+     * @return байт тел ответов получено из сети
+     */
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    /**
+     * @return байт тел ответов после распаковки
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.sum();
+    }
+
+    /**
+     * @return ответов с телом
+     */
+    public long getResponseCount() {
+        return responses.sum();
+    }
+
+    /**
+     * @return ответов, пришедших сжатыми
+     */
+    public long getCompressedResponseCount() {
+        return compressedResponses.sum();
+    }
+
+    /**
+     * @return доля сэкономленного трафика от 0 до 1
+     */
+    public double getSaving() {
+        long decoded = getDecodedBytes();
+        return decoded == 0 ? 0 : 1 - (double) getWireBytes() / decoded;
+    }
+
+    private static InputStream inflate(InputStream in) throws IOException {
+        // deflate бывает как с заголовком zlib, так и без него
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] head = new byte[2];
+        int read = 0;
+        while (read < 2) {
+            int n = pushback.read(head, read, 2 - read);
+            if (n < 0) break;
+            read += n;
+        }
+        if (read > 0) pushback.unread(head, 0, read);
+        boolean zlib = read == 2 && (head[0] & 0x0F) == 8 && (((head[0] & 0xFF) << 8) | (head[1] & 0xFF)) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib));
+    }
+
+    private class DecodingEntity extends HttpEntityWrapper {
+
+        private final String encoding;
+        private InputStream content;
+
+        private DecodingEntity(HttpEntity entity, String encoding) {
+            super(entity);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (!wrappedEntity.isStreaming()) return decode();
+            if (content == null) content = decode();
+            return content;
+        }
+
+        private InputStream decode() throws IOException {
+            return wrap(wrappedEntity.getContent(), encoding);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return encoding == null ? super.getContentEncoding() : null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return encoding == null ? super.getContentLength() : -1;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final LongAdder counter;
+
+        private CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) counter.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) counter.add(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) counter.add(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
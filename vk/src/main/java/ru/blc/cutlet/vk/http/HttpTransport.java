@@ -0,0 +1,63 @@
+package ru.blc.cutlet.vk.http;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Способ отправки http запросов к вк: вызовы методов апи и long poll идут через него.<br>
+ * По умолчанию используется {@link ApacheTransport}, также есть {@link JdkTransport}
+ * и {@link LoopbackTransport}, который передает запросы обработчику в этом же процессе
+ */
+public interface HttpTransport extends Closeable {
+
+    /**
+     * @param request запрос
+     * @return вызов, который еще не отправлен
+     */
+    TransportCall newCall(TransportRequest request);
+
+    /**
+     * Освобождает ресурсы транспорта
+     */
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Чтение ответа. Поток тела закрывается транспортом после чтения
+     * @param <R> тип результата
+     */
+    @FunctionalInterface
+    interface BodyHandler<R> {
+        /**
+         * @param status http код ответа
+         * @param body тело ответа, уже распакованное, или null, если тела нет
+         * @return результат
+         * @throws IOException при ошибке чтения
+         */
+        R handle(int status, @Nullable InputStream body) throws IOException;
+    }
+
+    /**
+     * Один http запрос
+     */
+    interface TransportCall {
+
+        /**
+         * Отправляет запрос в текущем потоке и читает ответ
+         * @param handler чтение ответа
+         * @param <R> тип результата
+         * @return результат чтения
+         * @throws IOException при ошибке соединения или если вызов прерван
+         */
+        <R> R execute(BodyHandler<R> handler) throws IOException;
+
+        /**
+         * Прерывает запрос из другого потока, даже если он ждет ответа
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,131 @@
+package ru.blc.cutlet.vk.http;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Транспорт через {@link HttpURLConnection} из jdk, без Apache HttpClient.
+ * Соединения переиспользуются встроенным keep-alive кешем jdk, ответы запрашиваются сжатыми, если это включено в настройках
+ */
+public class JdkTransport implements HttpTransport {
+
+    private final VkHttpClient.Settings settings;
+    private final ContentEncoding contentEncoding;
+
+    /**
+     * @param settings таймауты и сжатие
+     * @param contentEncoding счетчики трафика, обычно {@link VkHttpClient#getContentEncoding()}
+     */
+    public JdkTransport(VkHttpClient.Settings settings, ContentEncoding contentEncoding) {
+        Preconditions.checkNotNull(settings, "settings");
+        Preconditions.checkNotNull(contentEncoding, "content encoding");
+        this.settings = settings;
+        this.contentEncoding = contentEncoding;
+    }
+
+    @Override
+    public TransportCall newCall(TransportRequest request) {
+        return new JdkCall(request);
+    }
+
+    private static int limit(long configured, long timeout) {
+        if (timeout <= 0) return (int) Math.min(Integer.MAX_VALUE, configured);
+        if (configured <= 0) return (int) Math.min(Integer.MAX_VALUE, timeout);
+        return (int) Math.min(configured, timeout);
+    }
+
+    private class JdkCall implements TransportCall {
+
+        private final TransportRequest request;
+        private HttpURLConnection connection;
+        private boolean aborted;
+
+        private JdkCall(TransportRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public <R> R execute(BodyHandler<R> handler) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+            synchronized (this) {
+                if (aborted) throw new InterruptedIOException("Request aborted");
+                this.connection = connection;
+            }
+            long timeout = request.getTimeout();
+            connection.setConnectTimeout(limit(settings.getConnectTimeout(), timeout));
+            connection.setReadTimeout(limit(request.getReadTimeout() > 0 ? request.getReadTimeout() : settings.getSocketTimeout(), timeout));
+            connection.setRequestMethod(request.getMethod());
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (contentEncoding.isEnabled() && connection.getRequestProperty("Accept-Encoding") == null) {
+                connection.setRequestProperty("Accept-Encoding", ContentEncoding.ACCEPT);
+            }
+            boolean hasBody = request.getMethod().equals("POST") || request.getMethod().equals("PUT");
+            if (hasBody) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(request.getBody().length);
+                if (request.getContentType() != null) connection.setRequestProperty("Content-Type", request.getContentType());
+            }
+            try {
+                connection.connect();
+            } catch (SocketTimeoutException e) {
+                ConnectException timeoutException = new ConnectException("Connect to " + connection.getURL().getHost() + " timed out");
+                timeoutException.initCause(e);
+                throw timeoutException;
+            }
+            try {
+                if (hasBody) {
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(request.getBody());
+                    }
+                }
+                int status = connection.getResponseCode();
+                InputStream wire = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (wire == null) return handler.handle(status, null);
+                // поток читается до конца и закрывается, чтобы jdk вернул соединение в keep-alive кеш
+                try (InputStream body = contentEncoding.decode(wire, connection.getContentEncoding())) {
+                    R result = handler.handle(status, body);
+                    byte[] rest = new byte[1024];
+                    while (body.read(rest) >= 0) {
+                    }
+                    return result;
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (aborted) {
+                        InterruptedIOException abortedException = new InterruptedIOException("Request aborted");
+                        abortedException.initCause(e);
+                        throw abortedException;
+                    }
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    this.connection = null;
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            HttpURLConnection connection;
+            synchronized (this) {
+                aborted = true;
+                connection = this.connection;
+            }
+            if (connection != null) connection.disconnect();
+        }
+    }
+}
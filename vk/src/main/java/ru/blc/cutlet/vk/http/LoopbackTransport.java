@@ -0,0 +1,106 @@
+package ru.blc.cutlet.vk.http;
+
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Транспорт без сети: каждый запрос передается {@link Handler обработчику} в этом же процессе.
+ * Нужен для нагрузочных тестов и тестов ботов без обращения к вк.<br>
+ * Обработчик вызывается в потоке запроса, поэтому задержку ответа можно изобразить через Thread.sleep.
+ * Прерванный запрос не останавливает обработчик, но его ответ не будет прочитан
+ */
+public class LoopbackTransport implements HttpTransport {
+
+    private final Handler handler;
+    private final LongAdder requests = new LongAdder();
+
+    public LoopbackTransport(Handler handler) {
+        Preconditions.checkNotNull(handler, "handler");
+        this.handler = handler;
+    }
+
+    @Override
+    public TransportCall newCall(TransportRequest request) {
+        return new LoopbackCall(request);
+    }
+
+    /**
+     * @return сколько запросов обработано
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Обработчик запросов вместо сервера
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param request запрос. Адрес метода апи и параметры можно получить через {@link TransportRequest#getUrl()}
+         *                и {@link TransportRequest#getFormParams()}
+         * @return ответ
+         * @throws IOException чтобы изобразить ошибку соединения
+         */
+        Response handle(TransportRequest request) throws IOException;
+    }
+
+    public static class Response {
+        private final int status;
+        private final byte[] body;
+
+        public Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /**
+         * @param json тело ответа
+         * @return ответ с кодом 200
+         */
+        public static Response ok(String json) {
+            return new Response(200, json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private class LoopbackCall implements TransportCall {
+
+        private final TransportRequest request;
+        private volatile boolean aborted;
+
+        private LoopbackCall(TransportRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public <R> R execute(BodyHandler<R> bodyHandler) throws IOException {
+            if (aborted) throw new InterruptedIOException("Request aborted");
+            requests.increment();
+            Response response = handler.handle(request);
+            if (aborted) throw new InterruptedIOException("Request aborted");
+            if (response.getBody() == null) return bodyHandler.handle(response.getStatus(), null);
+            try (InputStream body = new ByteArrayInputStream(response.getBody())) {
+                return bodyHandler.handle(response.getStatus(), body);
+            }
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+    }
+}
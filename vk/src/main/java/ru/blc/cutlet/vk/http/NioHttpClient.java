@@ -0,0 +1,768 @@
+package ru.blc.cutlet.vk.http;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.api.Cutlet;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Неблокирующий http/1.1 клиент на java.nio для GET запросов, которые долго ждут ответа, как запросы к long poll серверу.<br>
+ * Все соединения обслуживаются несколькими потоками с селекторами, поэтому ожидающий ответа запрос не занимает поток.
+ * Поддерживаются https через {@link SSLEngine}, keep-alive, ответы с Content-Length и chunked.
+ * Соединения к одному адресу переиспользуются в пределах селектора, а запросы с одинаковым affinity
+ * всегда обслуживает один селектор, поэтому повторные запросы одного клиента идут через уже открытое соединение.<br>
+ * Адреса разрешаются в отдельных потоках, чтобы медленный DNS не останавливал селектор. Ответ разбирается по мере
+ * получения без повторного просмотра уже полученных байт, ответ больше {@link #setMaxResponseSize(int) предела} отклоняется
+ */
+public class NioHttpClient implements Closeable {
+
+    private static final int BUFFER = 16 * 1024;
+    private static final long IDLE_TIME = TimeUnit.SECONDS.toNanos(30);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+    /**
+     * Сколько потоков разрешают адреса
+     */
+    private static final int RESOLVERS = 2;
+
+    private final Loop[] loops;
+    private final long connectTimeout;
+    private final ContentEncoding contentEncoding;
+    private final SSLContext sslContext;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ThreadPoolExecutor resolver;
+    private volatile int maxResponseSize = 10 * 1024 * 1024;
+    private volatile boolean closed;
+
+    /**
+     * @param selectors количество потоков с селекторами
+     * @param connectTimeout сколько миллисекунд ждать открытия соединения
+     * @param contentEncoding сжатие ответов и счетчики трафика, обычно {@link VkHttpClient#getContentEncoding()}
+     * @throws UncheckedIOException если не удалось открыть селектор
+     */
+    public NioHttpClient(int selectors, long connectTimeout, ContentEncoding contentEncoding) {
+        Preconditions.checkArgument(selectors > 0, "selectors should be more than zero");
+        Preconditions.checkArgument(connectTimeout > 0, "connect timeout should be more than zero");
+        Preconditions.checkNotNull(contentEncoding, "content encoding");
+        this.connectTimeout = TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        this.contentEncoding = contentEncoding;
+        try {
+            this.sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("TLS is not available", e);
+        }
+        AtomicInteger number = new AtomicInteger();
+        this.resolver = new ThreadPoolExecutor(RESOLVERS, RESOLVERS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "VK nio dns " + number.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        resolver.allowCoreThreadTimeOut(true);
+        this.loops = new Loop[selectors];
+        try {
+            for (int i = 0; i < selectors; i++) {
+                loops[i] = new Loop(Selector.open());
+                loops[i].setDaemon(true);
+                loops[i].setName("VK nio http " + i);
+            }
+        } catch (IOException e) {
+            for (Loop loop : loops) {
+                if (loop != null) closeQuietly(loop.selector);
+            }
+            resolver.shutdown();
+            throw new UncheckedIOException(e);
+        }
+        for (Loop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Отправляет GET запрос
+     * @param url адрес с параметрами
+     * @param timeout сколько миллисекунд ждать ответа после открытия соединения
+     * @param affinity запросы с одинаковым значением обслуживает один селектор
+     * @return ответ. Задача завершается в потоке селектора, поэтому долгую обработку ответа нужно переносить в другой поток.
+     * Отмена задачи закрывает соединение
+     */
+    public CompletableFuture<Response> get(String url, long timeout, int affinity) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        Exchange exchange;
+        try {
+            exchange = new Exchange(new URI(url), TimeUnit.MILLISECONDS.toNanos(timeout), future);
+        } catch (URISyntaxException | MalformedURLException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (closed) {
+            future.completeExceptionally(new IOException("Client closed"));
+            return future;
+        }
+        inFlight.incrementAndGet();
+        future.whenComplete((r, t) -> inFlight.decrementAndGet());
+        loops[Math.floorMod(affinity, loops.length)].submit(exchange);
+        return future;
+    }
+
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * @param maxResponseSize наибольший размер ответа с заголовками в байтах до распаковки. Запрос с ответом больше
+     *                        завершается ошибкой, а соединение закрывается
+     * @return этот клиент
+     */
+    public NioHttpClient setMaxResponseSize(int maxResponseSize) {
+        Preconditions.checkArgument(maxResponseSize > 0, "max response size should be more than zero");
+        this.maxResponseSize = maxResponseSize;
+        return this;
+    }
+
+    /**
+     * @return сколько соединений открыто сейчас
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return сколько запросов ждут ответа
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Закрывает все соединения. Запросы, ждущие ответа, завершаются ошибкой
+     */
+    @Override
+    public void close() {
+        closed = true;
+        resolver.shutdown();
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Ответ сервера
+     */
+    public final class Response {
+        private final int status;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        private Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @param name имя заголовка без учета регистра
+         * @return значение заголовка или null
+         */
+        @Nullable
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * @return распакованное тело ответа
+         * @throws IOException если сжатие не поддерживается
+         */
+        public InputStream getBody() throws IOException {
+            return contentEncoding.decode(new ByteArrayInputStream(body), getHeader("content-encoding"));
+        }
+    }
+
+    private final class Exchange {
+        private final boolean secure;
+        private final String host;
+        private final int port;
+        private final String route;
+        private final byte[] request;
+        private final long timeout;
+        private final CompletableFuture<Response> future;
+        /**
+         * Разрешенный адрес сервера или null, пока он не разрешен
+         */
+        @Nullable
+        private volatile InetSocketAddress address;
+        private boolean retried;
+
+        private Exchange(URI uri, long timeout, CompletableFuture<Response> future) throws MalformedURLException {
+            String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+            if (!scheme.equals("http") && !scheme.equals("https") || uri.getHost() == null) {
+                throw new MalformedURLException("Unsupported url " + uri);
+            }
+            this.secure = scheme.equals("https");
+            this.host = uri.getHost();
+            this.port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+            this.route = scheme + "://" + host + ":" + port;
+            this.timeout = timeout;
+            this.future = future;
+            StringBuilder builder = new StringBuilder("GET ");
+            builder.append(uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath());
+            if (uri.getRawQuery() != null) builder.append('?').append(uri.getRawQuery());
+            builder.append(" HTTP/1.1\r\nHost: ").append(host);
+            if (uri.getPort() > 0) builder.append(':').append(port);
+            builder.append("\r\nConnection: keep-alive\r\n");
+            if (contentEncoding.isEnabled()) builder.append("Accept-Encoding: ").append(ContentEncoding.ACCEPT).append("\r\n");
+            builder.append("\r\n");
+            this.request = builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private final class Loop extends Thread {
+        private final Selector selector;
+        private final Queue<Exchange> pending = new ConcurrentLinkedQueue<>();
+        private final Map<String, Deque<Connection>> idle = new HashMap<>();
+        private final Set<Connection> open = new HashSet<>();
+
+        private Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void submit(Exchange exchange) {
+            pending.add(exchange);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select(1000L);
+                    Exchange exchange;
+                    while ((exchange = pending.poll()) != null) {
+                        start(exchange);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Connection) key.attachment()).ready(key);
+                    }
+                    expire();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                Cutlet.instance().getLogger().error("Nio http selector failed", e);
+            } finally {
+                IOException error = new IOException("Client closed");
+                for (Connection connection : new ArrayList<>(open)) {
+                    connection.failed(error);
+                }
+                Exchange exchange;
+                while ((exchange = pending.poll()) != null) {
+                    exchange.future.completeExceptionally(error);
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void start(Exchange exchange) {
+            if (exchange.future.isDone()) return;
+            Connection connection = null;
+            Deque<Connection> routeIdle = idle.get(exchange.route);
+            if (routeIdle != null) connection = routeIdle.pollLast();
+            if (connection == null && exchange.address == null) {
+                resolve(exchange);
+                return;
+            }
+            try {
+                if (connection == null) connection = connect(exchange);
+                connection.begin(exchange);
+            } catch (IOException | RuntimeException e) {
+                if (connection != null && connection.exchange == exchange) {
+                    connection.failed(e);
+                } else {
+                    if (connection != null) connection.close();
+                    exchange.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * Разрешает адрес в потоке resolver и возвращает запрос в очередь селектора
+         */
+        private void resolve(Exchange exchange) {
+            try {
+                resolver.execute(() -> {
+                    if (exchange.future.isDone()) return;
+                    InetSocketAddress address = new InetSocketAddress(exchange.host, exchange.port);
+                    if (address.isUnresolved()) {
+                        exchange.future.completeExceptionally(new UnknownHostException(exchange.host));
+                        return;
+                    }
+                    exchange.address = address;
+                    if (NioHttpClient.this.closed) {
+                        exchange.future.completeExceptionally(new IOException("Client closed"));
+                    } else {
+                        submit(exchange);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                exchange.future.completeExceptionally(new IOException("Client closed"));
+            }
+        }
+
+        private Connection connect(Exchange exchange) throws IOException {
+            InetSocketAddress address = exchange.address;
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                boolean connected = channel.connect(address);
+                SelectionKey key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+                Connection connection = new Connection(this, exchange, channel, key);
+                key.attach(connection);
+                open.add(connection);
+                connections.incrementAndGet();
+                if (connected) connection.connected();
+                return connection;
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(channel);
+                throw e;
+            }
+        }
+
+        private void expire() {
+            long now = System.nanoTime();
+            for (Connection connection : new ArrayList<>(open)) {
+                if (connection.exchange != null) {
+                    if (connection.exchange.future.isDone()) {
+                        // запрос отменен
+                        connection.exchange = null;
+                        connection.close();
+                    } else if (now - connection.deadline >= 0) {
+                        connection.failed(new SocketTimeoutException(connection.connected ? "Read timed out" : "Connect timed out"));
+                    }
+                } else if (now - connection.idleSince >= IDLE_TIME) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        private final Loop loop;
+        private final String route;
+        private final boolean secure;
+        private final String host;
+        private final int port;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        @Nullable
+        private SSLEngine ssl;
+        private ByteBuffer netIn, netOut, appIn;
+        private ByteBuffer out = ByteBuffer.allocate(0);
+        @Nullable
+        private Exchange exchange;
+        private byte[] data = new byte[BUFFER];
+        private int size;
+        /**
+         * Состояние разбора ответа, сохраняемое между чтениями
+         */
+        private int scanned, bodyStart = -1, status, contentLength, chunkPosition;
+        private boolean keepAlive, chunked;
+        @Nullable
+        private Map<String, String> headers;
+        @Nullable
+        private ByteArrayOutputStream chunks;
+        private long deadline;
+        private long idleSince;
+        private boolean connected, reused, closed;
+
+        private Connection(Loop loop, Exchange exchange, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.route = exchange.route;
+            this.secure = exchange.secure;
+            this.host = exchange.host;
+            this.port = exchange.port;
+            this.channel = channel;
+            this.key = key;
+            this.deadline = System.nanoTime() + connectTimeout;
+        }
+
+        private void begin(Exchange exchange) throws IOException {
+            this.exchange = exchange;
+            this.out = ByteBuffer.wrap(exchange.request);
+            reset();
+            if (connected) {
+                deadline = System.nanoTime() + exchange.timeout;
+                pump();
+            }
+        }
+
+        private void connected() throws IOException {
+            connected = true;
+            if (secure) {
+                SSLEngine engine = sslContext.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                engine.beginHandshake();
+                ssl = engine;
+            } else {
+                appIn = ByteBuffer.allocate(BUFFER);
+            }
+            if (exchange != null) deadline = System.nanoTime() + exchange.timeout;
+        }
+
+        private void ready(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                }
+                if (key.isValid()) pump();
+            } catch (IOException | RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        private void pump() throws IOException {
+            boolean eof = ssl == null ? pumpPlain() : pumpSsl();
+            drain();
+            if (closed) return;
+            if (exchange != null) {
+                parse(eof);
+            } else if (eof || size > 0) {
+                // сервер закрыл свободное соединение
+                close();
+            }
+            if (closed) return;
+            boolean writing = ssl == null ? out.hasRemaining() : netOut.position() > 0;
+            key.interestOps(SelectionKey.OP_READ | (writing ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private boolean pumpPlain() throws IOException {
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) break;
+            }
+            while (true) {
+                int read = channel.read(appIn);
+                if (read < 0) return true;
+                if (read == 0) return false;
+                if (!appIn.hasRemaining()) drain();
+            }
+        }
+
+        private boolean pumpSsl() throws IOException {
+            SSLEngine ssl = this.ssl;
+            while (true) {
+                if (netOut.position() > 0) {
+                    netOut.flip();
+                    channel.write(netOut);
+                    netOut.compact();
+                    if (netOut.position() > 0) return false;
+                }
+                SSLEngineResult.HandshakeStatus handshake = ssl.getHandshakeStatus();
+                if (handshake == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = ssl.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    continue;
+                }
+                if (handshake == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                        || handshake == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && out.hasRemaining()) {
+                    SSLEngineResult result = ssl.wrap(out, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        netOut = enlarge(netOut, ssl.getSession().getPacketBufferSize());
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return true;
+                    }
+                    continue;
+                }
+                int read = channel.read(netIn);
+                if (netIn.position() == 0) return read < 0;
+                netIn.flip();
+                SSLEngineResult result = ssl.unwrap(netIn, appIn);
+                netIn.compact();
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        if (appIn.position() > 0) {
+                            drain();
+                        } else {
+                            appIn = enlarge(appIn, ssl.getSession().getApplicationBufferSize());
+                        }
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining()) netIn = enlarge(netIn, ssl.getSession().getPacketBufferSize());
+                        if (read <= 0) return read < 0;
+                        continue;
+                    case CLOSED:
+                        return true;
+                    default:
+                        if (result.bytesProduced() > 0) drain();
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && read <= 0) return read < 0;
+                }
+            }
+        }
+
+        private void reset() {
+            size = 0;
+            scanned = 0;
+            bodyStart = -1;
+            headers = null;
+            chunks = null;
+        }
+
+        /**
+         * Переносит расшифрованные байты в буфер ответа
+         * @throws IOException если ответ больше предела
+         */
+        private void drain() throws IOException {
+            if (appIn == null || appIn.position() == 0) return;
+            appIn.flip();
+            int length = appIn.remaining();
+            if (size + length > maxResponseSize) {
+                throw new IOException("Response is larger than " + maxResponseSize + " bytes");
+            }
+            if (size + length > data.length) {
+                byte[] bigger = new byte[Math.max(size + length, data.length * 2)];
+                System.arraycopy(data, 0, bigger, 0, size);
+                data = bigger;
+            }
+            appIn.get(data, size, length);
+            size += length;
+            appIn.clear();
+        }
+
+        private void parse(boolean eof) throws IOException {
+            if (bodyStart < 0) {
+                // конец заголовков мог начаться в прошлом чтении
+                int headersEnd = indexOf(data, Math.max(0, scanned - HEADERS_END.length + 1), size, HEADERS_END);
+                scanned = size;
+                if (headersEnd < 0) {
+                    if (eof) throw new EOFException("Connection closed before response");
+                    return;
+                }
+                headers(headersEnd);
+            }
+            byte[] body;
+            if (status == 204 || status == 304) {
+                body = new byte[0];
+            } else if (chunked) {
+                body = chunks();
+                if (body == null) {
+                    if (eof) throw new EOFException("Connection closed before end of response");
+                    return;
+                }
+            } else if (contentLength >= 0) {
+                if (size - bodyStart < contentLength) {
+                    if (eof) throw new EOFException("Connection closed before end of response");
+                    return;
+                }
+                body = new byte[contentLength];
+                System.arraycopy(data, bodyStart, body, 0, contentLength);
+            } else {
+                // длина не указана, ответ заканчивается закрытием соединения
+                if (!eof) return;
+                keepAlive = false;
+                body = new byte[size - bodyStart];
+                System.arraycopy(data, bodyStart, body, 0, body.length);
+            }
+            Exchange exchange = this.exchange;
+            Response response = new Response(status, Collections.unmodifiableMap(headers), body);
+            this.exchange = null;
+            boolean keepAlive = this.keepAlive;
+            reset();
+            if (keepAlive && !eof && !NioHttpClient.this.closed) {
+                reused = true;
+                idleSince = System.nanoTime();
+                loop.idle.computeIfAbsent(route, r -> new ArrayDeque<>()).addLast(this);
+            } else {
+                close();
+            }
+            exchange.future.complete(response);
+        }
+
+        /**
+         * Разбирает строку статуса и заголовки
+         */
+        private void headers(int headersEnd) throws IOException {
+            String[] lines = new String(data, 0, headersEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) throw new IOException("Malformed status line " + lines[0]);
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line " + lines[0], e);
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) continue;
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+            String connection = headers.get("connection");
+            keepAlive = statusLine[0].equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connection)
+                    : "keep-alive".equalsIgnoreCase(connection);
+            chunked = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
+            contentLength = -1;
+            String length = headers.get("content-length");
+            if (!chunked && length != null) {
+                try {
+                    contentLength = Integer.parseInt(length);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length " + length, e);
+                }
+                if (contentLength < 0) throw new IOException("Malformed Content-Length " + length);
+                if ((long) headersEnd + HEADERS_END.length + contentLength > maxResponseSize) {
+                    throw new IOException("Response is larger than " + maxResponseSize + " bytes");
+                }
+            }
+            this.headers = headers;
+            this.bodyStart = headersEnd + HEADERS_END.length;
+            this.chunkPosition = bodyStart;
+            this.chunks = chunked ? new ByteArrayOutputStream() : null;
+        }
+
+        /**
+         * Продолжает разбор chunked ответа с первого неразобранного куска
+         * @return тело ответа или null, если получено не все
+         */
+        @Nullable
+        private byte[] chunks() throws IOException {
+            ByteArrayOutputStream body = this.chunks;
+            while (true) {
+                int position = chunkPosition;
+                int lineEnd = indexOf(data, position, size, CRLF);
+                if (lineEnd < 0) return null;
+                String line = new String(data, position, lineEnd - position, StandardCharsets.ISO_8859_1);
+                int extension = line.indexOf(';');
+                if (extension >= 0) line = line.substring(0, extension);
+                int length;
+                try {
+                    length = Integer.parseInt(line.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size " + line, e);
+                }
+                if (length < 0) throw new IOException("Malformed chunk size " + line);
+                position = lineEnd + CRLF.length;
+                if (length == 0) {
+                    while (true) {
+                        int end = indexOf(data, position, size, CRLF);
+                        if (end < 0) return null;
+                        if (end == position) return body.toByteArray();
+                        position = end + CRLF.length;
+                    }
+                }
+                if (size - position < length + CRLF.length) return null;
+                body.write(data, position, length);
+                chunkPosition = position + length + CRLF.length;
+            }
+        }
+
+        private void failed(Throwable error) {
+            Exchange exchange = this.exchange;
+            this.exchange = null;
+            boolean received = size > 0;
+            close();
+            if (exchange == null || exchange.future.isDone()) return;
+            if (reused && !received && !exchange.retried && !(error instanceof SocketTimeoutException)) {
+                // сервер закрыл свободное соединение, пока запрос отправлялся
+                exchange.retried = true;
+                loop.start(exchange);
+                return;
+            }
+            exchange.future.completeExceptionally(error);
+        }
+
+        private void close() {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            loop.open.remove(this);
+            Deque<Connection> routeIdle = loop.idle.get(route);
+            if (routeIdle != null) {
+                routeIdle.remove(this);
+                if (routeIdle.isEmpty()) loop.idle.remove(route);
+            }
+            connections.decrementAndGet();
+        }
+    }
+}
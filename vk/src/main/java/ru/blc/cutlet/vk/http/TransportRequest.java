@@ -0,0 +1,124 @@
+package ru.blc.cutlet.vk.http;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Http запрос для {@link HttpTransport}: адрес, заголовки и уже закодированное тело
+ */
+public class TransportRequest {
+
+    public static final String FORM = "application/x-www-form-urlencoded; charset=UTF-8";
+
+    private final String method;
+    private final String url;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final byte[] body;
+    private final String contentType;
+    private long timeout;
+    private long readTimeout;
+
+    public TransportRequest(String method, String url, byte[] body, String contentType) {
+        Preconditions.checkNotNull(method, "method");
+        Preconditions.checkNotNull(url, "url");
+        Preconditions.checkNotNull(body, "body");
+        this.method = method;
+        this.url = url;
+        this.body = body;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @param url адрес
+     * @param params параметры, кодируются в тело запроса
+     * @return POST запрос с формой
+     */
+    public static TransportRequest form(String url, List<NameValuePair> params) {
+        return new TransportRequest("POST", url, URLEncodedUtils.format(params, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8), FORM);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public TransportRequest setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return миллисекунд на весь запрос, 0 - таймауты из настроек транспорта
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public TransportRequest setTimeout(long timeout) {
+        Preconditions.checkArgument(timeout >= 0, "timeout can not be negative");
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * @return миллисекунд ожидания данных от сервера вместо настроек транспорта, 0 - из настроек.
+     * Нужно long poll, сервер которого держит запрос дольше обычного
+     */
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    public TransportRequest setReadTimeout(long readTimeout) {
+        Preconditions.checkArgument(readTimeout >= 0, "timeout can not be negative");
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * @return параметры формы из тела запроса
+     */
+    public Map<String, String> getFormParams() {
+        Map<String, String> params = new LinkedHashMap<>();
+        String form = new String(body, StandardCharsets.UTF_8);
+        if (form.isEmpty()) return params;
+        try {
+            for (String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+                params.put(name, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url;
+    }
+}
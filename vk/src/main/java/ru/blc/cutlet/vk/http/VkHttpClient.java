@@ -0,0 +1,315 @@
+package ru.blc.cutlet.vk.http;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Общий http клиент для всех запросов к вк.<br>
+ * Держит пул соединений, поэтому повторные запросы не тратят время на новое TCP и TLS рукопожатие.
+ * Ответы запрашиваются сжатыми, см. {@link ContentEncoding}
+ */
+public class VkHttpClient implements Closeable {
+
+    public static final HttpHost API_HOST = new HttpHost("api.vk.com", 443, "https");
+
+    private final Settings settings;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final ContentEncoding contentEncoding;
+
+    public VkHttpClient(Settings settings) {
+        Preconditions.checkNotNull(settings, "settings");
+        this.settings = settings;
+        this.connectionManager = new PoolingHttpClientConnectionManager(settings.getTimeToLive(), TimeUnit.SECONDS);
+        this.connectionManager.setMaxTotal(settings.getMaxTotal());
+        this.connectionManager.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+        this.connectionManager.setValidateAfterInactivity(settings.getValidateAfterInactivity());
+        long defaultKeepAlive = TimeUnit.SECONDS.toMillis(settings.getKeepAlive());
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, defaultKeepAlive) : defaultKeepAlive;
+        };
+        this.contentEncoding = new ContentEncoding(settings.isCompression());
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(getRequestConfig(0))
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .disableContentCompression()
+                .addInterceptorLast((HttpRequestInterceptor) contentEncoding)
+                .addInterceptorFirst((HttpResponseInterceptor) contentEncoding)
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getIdleTimeout(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return http клиент, работающий через общий пул соединений
+     */
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Настройки запроса с таймаутами из {@link Settings}, но не дольше указанного времени
+     * @param timeout миллисекунд до срока запроса, 0 - без срока
+     * @return настройки для {@link org.apache.http.client.methods.HttpRequestBase#setConfig(RequestConfig)}
+     */
+    public RequestConfig getRequestConfig(long timeout) {
+        return RequestConfig.custom()
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .setConnectTimeout(limit(settings.getConnectTimeout(), timeout))
+                .setConnectionRequestTimeout(limit(settings.getConnectionRequestTimeout(), timeout))
+                .setSocketTimeout(limit(settings.getSocketTimeout(), timeout))
+                .build();
+    }
+
+    private static int limit(int configured, long timeout) {
+        if (timeout <= 0) return configured;
+        if (configured <= 0) return (int) Math.min(Integer.MAX_VALUE, timeout);
+        return (int) Math.min(configured, timeout);
+    }
+
+    /**
+     * @return статистика пула соединений
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return счетчики трафика: байты из сети и после распаковки
+     */
+    public ContentEncoding getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Заранее открывает соединения с api.vk.com, чтобы первые запросы не ждали рукопожатия
+     * @param connections количество соединений
+     * @return количество реально открытых соединений
+     */
+    public int warmUp(int connections) {
+        return warmUp(API_HOST, connections);
+    }
+
+    /**
+     * Заранее открывает соединения с указанным хостом и оставляет их в пуле
+     * @param host хост
+     * @param connections количество соединений
+     * @return количество реально открытых соединений
+     */
+    public int warmUp(HttpHost host, int connections) {
+        Preconditions.checkNotNull(host, "host");
+        HttpRoute route = new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+        int count = Math.min(connections, settings.getMaxPerRoute());
+        List<HttpClientConnection> opened = new ArrayList<>(count);
+        int warmed = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                HttpClientConnection connection = connectionManager.requestConnection(route, null)
+                        .get(settings.getWarmUpTimeout(), TimeUnit.SECONDS);
+                opened.add(connection);
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, (int) TimeUnit.SECONDS.toMillis(settings.getWarmUpTimeout()), context);
+                    connectionManager.routeComplete(connection, route, context);
+                }
+                warmed++;
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            for (HttpClientConnection connection : opened) {
+                connectionManager.releaseConnection(connection, null, settings.getKeepAlive(), TimeUnit.SECONDS);
+            }
+        }
+        return warmed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Настройки пула соединений
+     */
+    public static class Settings {
+
+        private int maxTotal = 200;
+        private int maxPerRoute = 50;
+        private int keepAlive = 30;
+        private int idleTimeout = 60;
+        private int timeToLive = -1;
+        private int validateAfterInactivity = 2000;
+        private int warmUpConnections = 4;
+        private int warmUpTimeout = 10;
+        private boolean compression = true;
+        private int connectTimeout = 10000;
+        private int connectionRequestTimeout = 10000;
+        private int socketTimeout = 60000;
+
+        public int getMaxTotal() {
+            return maxTotal;
+        }
+
+        public Settings setMaxTotal(int maxTotal) {
+            Preconditions.checkArgument(maxTotal > 0, "max total should be more than zero");
+            this.maxTotal = maxTotal;
+            return this;
+        }
+
+        public int getMaxPerRoute() {
+            return maxPerRoute;
+        }
+
+        public Settings setMaxPerRoute(int maxPerRoute) {
+            Preconditions.checkArgument(maxPerRoute > 0, "max per route should be more than zero");
+            this.maxPerRoute = maxPerRoute;
+            return this;
+        }
+
+        /**
+         * @return сколько секунд держать соединение открытым, если сервер не указал Keep-Alive
+         */
+        public int getKeepAlive() {
+            return keepAlive;
+        }
+
+        public Settings setKeepAlive(int keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * @return через сколько секунд простоя соединение закрывается
+         */
+        public int getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public Settings setIdleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * @return максимальное время жизни соединения в секундах, -1 без ограничения
+         */
+        public int getTimeToLive() {
+            return timeToLive;
+        }
+
+        public Settings setTimeToLive(int timeToLive) {
+            this.timeToLive = timeToLive;
+            return this;
+        }
+
+        /**
+         * @return через сколько миллисекунд простоя соединение проверяется перед повторным использованием
+         */
+        public int getValidateAfterInactivity() {
+            return validateAfterInactivity;
+        }
+
+        public Settings setValidateAfterInactivity(int validateAfterInactivity) {
+            this.validateAfterInactivity = validateAfterInactivity;
+            return this;
+        }
+
+        /**
+         * @return сколько соединений с api.vk.com открыть при включении модуля
+         */
+        public int getWarmUpConnections() {
+            return warmUpConnections;
+        }
+
+        public Settings setWarmUpConnections(int warmUpConnections) {
+            this.warmUpConnections = warmUpConnections;
+            return this;
+        }
+
+        public int getWarmUpTimeout() {
+            return warmUpTimeout;
+        }
+
+        public Settings setWarmUpTimeout(int warmUpTimeout) {
+            this.warmUpTimeout = warmUpTimeout;
+            return this;
+        }
+
+        /**
+         * @return запрашивать ли ответы, сжатые gzip или deflate
+         */
+        public boolean isCompression() {
+            return compression;
+        }
+
+        public Settings setCompression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * @return миллисекунд на установку соединения, 0 - без ограничения
+         */
+        public int getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public Settings setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * @return миллисекунд ожидания свободного соединения из пула, 0 - без ограничения
+         */
+        public int getConnectionRequestTimeout() {
+            return connectionRequestTimeout;
+        }
+
+        public Settings setConnectionRequestTimeout(int connectionRequestTimeout) {
+            this.connectionRequestTimeout = connectionRequestTimeout;
+            return this;
+        }
+
+        /**
+         * @return миллисекунд ожидания данных от сервера, 0 - без ограничения.
+         * Long poll запросы ждут дольше, на время ожидания событий
+         */
+        public int getSocketTimeout() {
+            return socketTimeout;
+        }
+
+        public Settings setSocketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+    }
+}
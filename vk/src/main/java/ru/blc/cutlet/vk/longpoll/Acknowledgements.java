@@ -0,0 +1,121 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import com.google.common.base.Preconditions;
+import ru.blc.cutlet.vk.EventDispatcher;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * ts ответов long poll подключения, ожидающие обработки своих событий.<br>
+ * События передаются обработчику по порядку, но {@link EventDispatcher} обрабатывает их в разных потоках,
+ * и они могут завершиться не по порядку. ts ответа подтверждается, только когда обработаны все события
+ * этого и предыдущих ответов, поэтому после перезапуска необработанные события будут получены снова
+ */
+final class Acknowledgements {
+
+    private final Consumer<String> acknowledge;
+    private final Deque<Checkpoint> checkpoints = new ArrayDeque<>();
+    /**
+     * Обработанные события, перед которыми есть необработанные
+     */
+    private final NavigableSet<Long> ahead = new TreeSet<>();
+    private long started;
+    private long handled;
+
+    /**
+     * @param acknowledge подтверждение ts
+     */
+    Acknowledgements(Consumer<String> acknowledge) {
+        this.acknowledge = Preconditions.checkNotNull(acknowledge, "acknowledge");
+    }
+
+    /**
+     * @return номер события, которое передается обработчику
+     */
+    synchronized long start() {
+        return ++started;
+    }
+
+    /**
+     * @return сколько событий передано обработчику или выброшено
+     */
+    synchronized long getStarted() {
+        return started;
+    }
+
+    /**
+     * Событие обработано
+     * @param number номер события из {@link #start()}
+     */
+    void handled(long number) {
+        synchronized (this) {
+            if (number != handled + 1) {
+                ahead.add(number);
+                return;
+            }
+            handled++;
+            while (!ahead.isEmpty() && ahead.first() == handled + 1) {
+                ahead.pollFirst();
+                handled++;
+            }
+        }
+        acknowledge();
+    }
+
+    /**
+     * События выброшены, не дойдя до обработчика. Ждать их обработки не нужно
+     * @param count количество событий
+     */
+    void skipped(int count) {
+        for (int i = 0; i < count; i++) {
+            handled(start());
+        }
+    }
+
+    /**
+     * Запоминает ts, который подтверждается после обработки первых events событий
+     * @param events сколько событий получено до этого ts
+     * @param ts ts
+     */
+    void checkpoint(long events, String ts) {
+        synchronized (this) {
+            checkpoints.addLast(new Checkpoint(events, ts));
+        }
+        acknowledge();
+    }
+
+    /**
+     * @return сколько событий обработано подряд с первого
+     */
+    synchronized long getHandled() {
+        return handled;
+    }
+
+    /**
+     * Подтверждает последний ts, все события до которого обработаны. Подтверждение под блокировкой,
+     * чтобы более старый ts не записался после нового
+     */
+    private synchronized void acknowledge() {
+        String ts = null;
+        Checkpoint head;
+        while ((head = checkpoints.peekFirst()) != null && head.events <= handled) {
+            checkpoints.pollFirst();
+            ts = head.ts;
+        }
+        if (ts != null) acknowledge.accept(ts);
+    }
+
+    private static final class Checkpoint {
+        private final long events;
+        private final String ts;
+
+        private Checkpoint(long events, String ts) {
+            this.events = events;
+            this.ts = ts;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Паузы между попытками восстановить long poll подключение.<br>
+ * Пауза удваивается с каждой ошибкой подряд до maxDelay, и берется случайной от половины до полного значения,
+ * чтобы после общего сбоя подключения разных групп не возвращались к серверу одновременно
+ */
+public class Backoff {
+
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * @param baseDelay пауза после первой ошибки в миллисекундах
+     * @param maxDelay наибольшая пауза в миллисекундах
+     */
+    public Backoff(long baseDelay, long maxDelay) {
+        Preconditions.checkArgument(baseDelay > 0, "delay should be more than zero");
+        Preconditions.checkArgument(maxDelay >= baseDelay, "max delay can not be less than base delay");
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param failures сколько ошибок было подряд, начиная с 1
+     * @return пауза в миллисекундах
+     */
+    public long delay(int failures) {
+        Preconditions.checkArgument(failures > 0, "failures should be more than zero");
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(failures - 1, 30));
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+}
@@ -0,0 +1,220 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.api.Cutlet;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Сохраняемые на диск ts long poll подключений, чтобы после перезапуска получить события, пришедшие за время простоя.<br>
+ * Подключение подтверждает ts, когда все события ответа переданы обработчику. Подтверждения копятся в памяти
+ * и записываются раз в flushInterval одним файлом строк "группа\tts": файл пишется рядом, сбрасывается на диск (fsync)
+ * и заменяет старый, поэтому после сбоя на диске остается либо старая, либо новая версия целиком
+ */
+public class CheckpointStore implements Closeable {
+
+    private final Path file;
+    private final Map<Integer, String> checkpoints = new HashMap<>();
+    private final Object writeLock = new Object();
+    @Nullable
+    private final ScheduledExecutorService timer;
+    private boolean dirty;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+
+    /**
+     * Открывает хранилище и читает ts из файла, если он есть
+     * @param file файл
+     * @param flushInterval как часто в миллисекундах записывать подтвержденные ts, 0 - при каждом подтверждении
+     * @throws UncheckedIOException если файл не удалось прочитать
+     */
+    public CheckpointStore(Path file, long flushInterval) {
+        Preconditions.checkNotNull(file, "file");
+        Preconditions.checkArgument(flushInterval >= 0, "flush interval can not be negative");
+        this.file = file;
+        try {
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (flushInterval > 0) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "VK LP checkpoints");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * На сколько событий ts to опережает ts from. У long poll сообщества ts - номер события, поэтому разница
+     * равна количеству событий между ними
+     * @param from старый ts
+     * @param to новый ts
+     * @return количество событий или -1, если ts не числа
+     */
+    public static long distance(@Nullable String from, @Nullable String to) {
+        if (from == null || to == null) return -1;
+        try {
+            return Math.max(0, Long.parseLong(to) - Long.parseLong(from));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param groupId группа
+     * @return последний подтвержденный ts группы или null
+     */
+    @Nullable
+    public synchronized String get(int groupId) {
+        return checkpoints.get(groupId);
+    }
+
+    /**
+     * Подтверждает, что события до ts переданы обработчику
+     * @param groupId группа
+     * @param ts ts следующего запроса
+     */
+    public void acknowledge(int groupId, String ts) {
+        Preconditions.checkNotNull(ts, "ts");
+        Preconditions.checkArgument(ts.indexOf('\t') < 0 && ts.indexOf('\n') < 0, "Wrong ts %s", ts);
+        synchronized (this) {
+            if (ts.equals(checkpoints.put(groupId, ts))) return;
+            dirty = true;
+        }
+        if (timer == null) flushQuietly();
+    }
+
+    /**
+     * @param events сколько событий, пришедших за время простоя, получено после возобновления
+     */
+    public void recordRecovered(long events) {
+        if (events > 0) recovered.add(events);
+    }
+
+    /**
+     * @param events сколько событий потеряно, потому что вк уже не хранит их
+     */
+    public void recordLost(long events) {
+        if (events > 0) lost.add(events);
+    }
+
+    public long getRecoveredCount() {
+        return recovered.sum();
+    }
+
+    public long getLostCount() {
+        return lost.sum();
+    }
+
+    /**
+     * @return сколько раз файл записан на диск
+     */
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * Записывает подтвержденные ts на диск, если они изменились
+     * @throws UncheckedIOException если файл не удалось записать
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            Map<Integer, String> snapshot;
+            synchronized (this) {
+                if (!dirty) return;
+                snapshot = new HashMap<>(checkpoints);
+                dirty = false;
+            }
+            try {
+                write(snapshot);
+                flushes.increment();
+            } catch (IOException e) {
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Записывает ts на диск и останавливает периодическую запись
+     */
+    @Override
+    public void close() {
+        if (timer != null) timer.shutdownNow();
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (UncheckedIOException e) {
+            Cutlet.instance().getLogger().error("Failed to save long poll checkpoints", e);
+        }
+    }
+
+    private void write(Map<Integer, String> snapshot) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<Integer, String> entry : snapshot.entrySet()) {
+            content.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (parent != null) {
+            // переименование сохраняется на диск вместе с каталогом. Не все системы позволяют открыть каталог
+            try (FileChannel directory = FileChannel.open(parent, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) return;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length != 2) continue;
+                try {
+                    checkpoints.put(Integer.parseInt(parts[0]), parts[1]);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+    }
+}
@@ -1,34 +1,42 @@
 package ru.blc.cutlet.vk.longpoll;
 
 import com.google.common.base.Preconditions;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.CookieSpecs;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.blc.cutlet.api.Cutlet;
-import ru.blc.cutlet.vk.JsonHandler;
+import ru.blc.cutlet.vk.EventDispatcher;
 import ru.blc.cutlet.vk.VkBot;
 import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.TransportRequest;
+import ru.blc.cutlet.vk.method.VkApiException;
+import ru.blc.cutlet.vk.method.groups.GetLongPollServer;
 import ru.blc.objconfig.ConfigurationSection;
 import ru.blc.objconfig.json.JsonConfiguration;
 
-import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-//TODO два потока. Один сканит обновления и добавляет их в очередь, второй обрабатывает очередь
+/**
+ * LongPoll подключение бота. Работает в двух потоках: один получает обновления и сразу запрашивает следующие,
+ * складывая полученные в {@link UpdateQueue}, второй по порядку передает их обработчику json.
+ * Поэтому медленный обработчик не задерживает получение событий, пока в очереди есть место.<br>
+ * Если включено сохранение ts ({@link CheckpointStore}), ts ответа подтверждается, когда все его события обработаны,
+ * и после перезапуска подключение продолжает с последнего подтвержденного ts.<br>
+ * Истекший ключ (failed 2) обновляется без смены сервера и ts, при потере истории (failed 3) данные подключения
+ * запрашиваются целиком. После сетевых ошибок следующая попытка делается через растущую паузу {@link Backoff},
+ * текущее состояние доступно через {@link #getHealth()}
+ */
 public class LongPollConnection {
     /**
      * Возвращает текущее LongPoll подключение для указанного бота
@@ -44,6 +52,22 @@ public class LongPollConnection {
         return connection;
     }
 
+    /**
+     * @param bot бот
+     * @return текущее LongPoll подключение бота или null, если его нет
+     */
+    @Nullable
+    public static LongPollConnection findConnection(@NotNull VkBot bot){
+        return CONNECTIONS_BY_BOT.get(bot);
+    }
+
+    /**
+     * @return все текущие LongPoll подключения
+     */
+    public static Collection<LongPollConnection> getConnections() {
+        return new ArrayList<>(CONNECTIONS_BY_BOT.values());
+    }
+
     /**
      * Прекращает текущее LongPoll подключение для этого бота
      * @param bot бот
@@ -58,27 +82,53 @@ public class LongPollConnection {
         return true;
     }
 
+    /**
+     * Сколько секунд сверх ожидания ждать ответа, прежде чем считать соединение зависшим
+     */
+    static final int READ_MARGIN = 15;
+
     private static final Map<VkBot, LongPollConnection> CONNECTIONS_BY_BOT = new HashMap<>();
     private static final VkModule vkModule = Cutlet.instance().getModule(VkModule.class);
 
     private final VkBot bot;
-    private boolean valid = false, running;
+    private final UpdateQueue<ConfigurationSection> queue;
+    private volatile boolean valid = false, running;
+    private volatile LongPollHealth health = LongPollHealth.CONNECTING;
+    /**
+     * Отказал ли вк в последнем запросе данных подключения
+     */
+    private volatile boolean rejected;
+    /**
+     * Сколько ошибок было подряд
+     */
+    private volatile int failures;
+    private final Object sleepLock = new Object();
 
     private String key, server;
-    private String ts;
+    private volatile String ts;
+    /**
+     * На сколько событий сохраненный ts, с которого продолжено подключение, отставал от сервера. -1 если не продолжалось
+     */
+    private long resumeBehind = -1;
+    private final AtomicLong fetched = new AtomicLong();
+    private final Acknowledgements acknowledgements;
 
     protected LongPollConnection(VkBot bot) {
         this.bot = bot;
+        this.queue = VkModule.newUpdateQueue();
+        this.acknowledgements = new Acknowledgements(ts -> {
+            CheckpointStore store = VkModule.getCheckpointStore();
+            if (store != null) store.acknowledge(bot.getGroupId(), ts);
+        });
         CONNECTIONS_BY_BOT.put(bot, this);
         this.running = true;
-        getConnectionData().join();
-        if (!isValid()){
-            bot.getLogger().error("Long Poll connection for bot {} not created!", bot.getName());
-            return;
-        }
         Thread longPollRunner = new LongPollTask();
         longPollRunner.setDaemon(true);
         longPollRunner.setName(bot.getName()+" LP task");
+        Thread dispatcher = new DispatchTask();
+        dispatcher.setDaemon(true);
+        dispatcher.setName(bot.getName()+" LP dispatcher");
+        dispatcher.start();
         longPollRunner.start();
     }
 
@@ -86,6 +136,13 @@ public class LongPollConnection {
         return bot;
     }
 
+    /**
+     * @return очередь полученных, но еще не обработанных обновлений
+     */
+    public UpdateQueue<ConfigurationSection> getQueue() {
+        return queue;
+    }
+
     /**
      * @return true, если соединение рабочее. в противном случае false
      */
@@ -93,78 +150,163 @@ public class LongPollConnection {
         return running&&valid;
     }
 
+    /**
+     * @return состояние подключения
+     */
+    public LongPollHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return сколько запросов подряд завершилось ошибкой
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Останавливает получение обновлений. Уже полученные обновления будут обработаны
+     */
     public void stop(){
         this.running = false;
+        queue.close();
+        synchronized (sleepLock) {
+            sleepLock.notifyAll();
+        }
     }
 
-    protected CompletableFuture<String> getConnectionData(){
+    private void setHealth(LongPollHealth health) {
+        LongPollHealth old = this.health;
+        this.health = health;
+        LongPollHealth.changed(bot, old, health);
+    }
+
+    /**
+     * Ждет перед следующей попыткой. Пауза растет с каждой ошибкой подряд, пока вк отказывает в подключении - наибольшая
+     * @param state состояние на время паузы
+     */
+    private void backOff(LongPollHealth state) {
+        int failures = ++this.failures;
+        setHealth(state);
+        Backoff backoff = VkModule.getLongPollBackoff();
+        long delay = state == LongPollHealth.FAILED ? backoff.getMaxDelay() : backoff.delay(failures);
+        vkModule.getLogger().debug("Long poll of bot {} retries in {} ms after {} failure(s)", bot.getName(), delay, failures);
+        long until = System.currentTimeMillis() + delay;
+        synchronized (sleepLock) {
+            long left;
+            while (running && (left = until - System.currentTimeMillis()) > 0) {
+                try {
+                    sleepLock.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    protected CompletableFuture<GetLongPollServer.ServerData> getConnectionData(){
+        return getConnectionData(true);
+    }
+
+    /**
+     * Запрашивает данные подключения. При первом подключении ts берется из {@link CheckpointStore}, если он там есть
+     * @param full обновить сервер и ts. Иначе обновляется только истекший ключ. При полном обновлении берется ts сервера,
+     *             а пропущенные события считаются потерянными
+     * @return задача, завершающаяся null при ошибке
+     */
+    protected CompletableFuture<GetLongPollServer.ServerData> getConnectionData(boolean full){
         return VkModule.METHODS
                 .groups
                 .getLongPollServer
                 .getNewParamsSet()
                 .setGroupId(bot.getGroupId())
                 .setToken(bot.getDefaultToken())
-                .call()
-                .whenComplete((s, t)->{
-                    if (t!=null){
+                .call(GetLongPollServer.SERVER_DATA)
+                .whenComplete((data, t)->{
+                    if (t instanceof CompletionException && t.getCause()!=null){
+                        t = t.getCause();
+                    }
+                    rejected = t instanceof VkApiException;
+                    if (t instanceof VkApiException){
+                        VkApiException error = (VkApiException) t;
+                        bot.getLogger().error("Error {} while creating long poll connection for bot {}. Message: {}",
+                                error.getErrorCode(), bot.getName(), error.getErrorMsg());
+                    }else if (t!=null){
                         bot.getLogger().error("Error while creating long poll connection for bot "+bot.getName(), t);
                     }else {
-                        JsonConfiguration json = JsonConfiguration.loadConfiguration(s);
-                        if (json.hasValue("error")){
-                            bot.getLogger().error("Error {} while creating long poll connection for bot {}. Message: {}",
-                                    json.get("error.error_code"), bot.getName(), json.get("error.error_msg"));
-                            return;
+                        key = data.getKey();
+                        if (ts == null) {
+                            server = data.getServer();
+                            resume(data.getTs());
+                        } else if (full) {
+                            server = data.getServer();
+                            lost(data.getTs());
                         }
-                        key = json.getString("response.key");
-                        server = json.getString("response.server");
-                        ts = json.getString("response.ts");
                         valid = true;
                     }
-                });
+                })
+                .exceptionally(t -> null);
     }
 
-    protected String getUpdates() {
+    private void resume(String serverTs) {
+        CheckpointStore store = VkModule.getCheckpointStore();
+        String saved = store == null ? null : store.get(bot.getGroupId());
+        if (saved == null) {
+            ts = serverTs;
+            return;
+        }
+        ts = saved;
+        resumeBehind = CheckpointStore.distance(saved, serverTs);
+        bot.getLogger().info("Long poll of bot {} continues from saved ts {}, {} event(s) behind", bot.getName(), saved,
+                resumeBehind < 0 ? "unknown number of" : String.valueOf(resumeBehind));
+    }
+
+    /**
+     * Переходит на новый ts, события между текущим и новым ts потеряны
+     * @param newTs новый ts
+     */
+    private void lost(String newTs) {
+        long events = CheckpointStore.distance(ts, newTs);
+        resumeBehind = -1;
+        ts = newTs;
+        CheckpointStore store = VkModule.getCheckpointStore();
+        if (store != null) store.recordLost(events);
+        bot.getLogger().warn("Long poll history of bot {} expired, {} event(s) lost", bot.getName(),
+                events < 0 ? "unknown number of" : String.valueOf(events));
+        // потерянные события уже не придут, сохраненный ts тоже устарел
+        acknowledgements.checkpoint(fetched.get(), newTs);
+    }
+
+    /**
+     * Ждет обновления от long poll сервера. Ответ читается прямо из потока, сжатый ответ распаковывается по мере чтения
+     * @return ответ сервера или null, если ответа нет
+     */
+    protected JsonConfiguration getUpdates() {
         Preconditions.checkState(valid, "Connection not valid!");
         String adr = server;
+        int wait = VkModule.getLongPollWait();
+        // Request parameters and other properties.
+        List<NameValuePair> pars = new ArrayList<>();
+        pars.add(new BasicNameValuePair("act", "a_check"));
+        pars.add(new BasicNameValuePair("key", key));
+        pars.add(new BasicNameValuePair("ts", String.valueOf(ts)));
+        pars.add(new BasicNameValuePair("wait", String.valueOf(wait)));
+        // сервер держит запрос до wait секунд, поэтому данных можно ждать дольше обычного
+        TransportRequest request = TransportRequest.form(adr, pars)
+                .setReadTimeout(TimeUnit.SECONDS.toMillis(wait + READ_MARGIN));
+
+        // Execute and get the response.
         try {
-            RequestConfig globalConfig = RequestConfig.custom()
-                    .setCookieSpec(CookieSpecs.DEFAULT)
-                    .build();
-            HttpClient httpclient = HttpClients.custom()
-                    .setDefaultRequestConfig(globalConfig)
-                    .build();
-            RequestConfig localConfig = RequestConfig.copy(globalConfig)
-                    .setCookieSpec(CookieSpecs.STANDARD)
-                    .build();
-            HttpPost httppost = new HttpPost(adr);
-            httppost.setConfig(localConfig);
-            // Request parameters and other properties.
-            List<NameValuePair> pars = new ArrayList<>();
-            pars.add(new BasicNameValuePair("act", "a_check"));
-            pars.add(new BasicNameValuePair("key", key));
-            pars.add(new BasicNameValuePair("ts", String.valueOf(ts)));
-            pars.add(new BasicNameValuePair("wait", "25"));
-            httppost.setEntity(new UrlEncodedFormEntity(pars, "UTF-8"));
-
-
-            // Execute and get the response.
-            HttpResponse response = httpclient.execute(httppost);
-            HttpEntity entity = response.getEntity();
-
-            byte[] data;
-            if (entity == null) {
-                data = new byte[0];
-            } else {
-                data = EntityUtils.toByteArray(entity);
-            }
-            int bytesl = data.length;
-            if (bytesl>0) {
-                return new String(data, StandardCharsets.UTF_8);
-            }else {
-                return null;
-            }
-        } catch (IOException ex) {
-            ex.printStackTrace();
+            return VkModule.getTransport().newCall(request).execute((status, body) -> {
+                if (body == null) {
+                    return null;
+                }
+                JsonConfiguration updates = new JsonConfiguration();
+                updates.load(new InputStreamReader(body, StandardCharsets.UTF_8));
+                return updates;
+            });
+        } catch (Exception ex) {
             bot.getLogger().error("can't get updates for bot "+bot.getName(), ex);
         }
         return null;
@@ -174,49 +316,107 @@ public class LongPollConnection {
 
         @Override
         public void run() {
-            while (running&&isValid()){
+            boolean full = true;
+            // ответ получен с только что обновленными данными. Если и он неудачный, обновлять их сразу снова бессмысленно
+            boolean refreshed = false;
+            while (running&&!isInterrupted()){
+                if (!valid) {
+                    setHealth(ts == null ? LongPollHealth.CONNECTING : LongPollHealth.RECONNECTING);
+                    if (getConnectionData(full).join() == null) {
+                        backOff(rejected ? LongPollHealth.FAILED : LongPollHealth.BACKING_OFF);
+                        continue;
+                    }
+                    refreshed = true;
+                }
                 vkModule.getLogger().debug("Getting update, Bot {}", bot.getName());
-                String s = getUpdates();
-                if (s==null) {
+                JsonConfiguration updates = getUpdates();
+                if (updates==null) {
                     vkModule.getLogger().debug("Null update, Bot {}", bot.getName());
+                    backOff(LongPollHealth.BACKING_OFF);
                     continue;
                 }
-                JsonConfiguration updates = JsonConfiguration.loadConfiguration(s);
                 if (updates.hasValue("failed")){
-                    vkModule.getLogger().debug("Fail {} on update. Bot {}", updates.getInt("failed"), bot.getName());
-                    switch (updates.getInt("failed")){
-                        case 1: {
-                            ts = updates.getString("ts");
-                            continue;
-                        }
-                        case 2:
-                        case 3:
-                        default:
-                            valid = false;
-                            getConnectionData().join();
-                            continue;
+                    int failed = updates.getInt("failed");
+                    vkModule.getLogger().debug("Fail {} on update. Bot {}", failed, bot.getName());
+                    if (failed == 1) {
+                        lost(updates.getString("ts"));
+                        failures = 0;
+                        setHealth(LongPollHealth.HEALTHY);
+                        refreshed = false;
+                        continue;
                     }
+                    // 2 - истек ключ, 3 - потеряна история
+                    full = failed != 2;
+                    valid = false;
+                    if (refreshed) backOff(LongPollHealth.BACKING_OFF);
+                    continue;
                 }
+                failures = 0;
+                refreshed = false;
+                setHealth(LongPollHealth.HEALTHY);
                 vkModule.getLogger().debug("Normal update got. Bot {}", bot.getName());
                 ts = updates.getString("ts");
-                int handled = 0;
-                for (ConfigurationSection update : updates.getConfigurationSectionList("updates")) {
-                    update.set("secret", bot.getSecret());
-                    JsonHandler jsonHandler = bot.getJsonHandler();
-                    if (jsonHandler==null) jsonHandler = vkModule.getJsonHandler();
-                    try {
-                        jsonHandler.handleJson(update, bot);
-                    }catch (Exception e){
-                        vkModule.getLogger().error("Failed handling Json", e);
+                if (resumeBehind >= 0) {
+                    CheckpointStore store = VkModule.getCheckpointStore();
+                    if (store != null) store.recordRecovered(resumeBehind);
+                    bot.getLogger().info("Long poll of bot {} recovered {} event(s) after restart", bot.getName(), resumeBehind);
+                    resumeBehind = -1;
+                }
+                int received = 0, dropped = 0;
+                try {
+                    for (ConfigurationSection update : updates.getConfigurationSectionList("updates")) {
+                        int drop = queue.offer(update);
+                        // выброшенные обновления не будут переданы обработчику, но и ждать их не нужно
+                        acknowledgements.skipped(drop);
+                        fetched.incrementAndGet();
+                        dropped += drop;
+                        received++;
                     }
-                    handled++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (IllegalStateException e) {
+                    // очередь закрыта, подключение остановлено
+                    break;
                 }
-                vkModule.getLogger().debug("Handled {} update(s). Bot {}", handled, bot.getName());
+                if (dropped > 0) {
+                    vkModule.getLogger().warn("Update queue of bot {} is full, {} update(s) dropped", bot.getName(), dropped);
+                }
+                acknowledgements.checkpoint(fetched.get(), ts);
+                vkModule.getLogger().debug("Queued {} update(s). Bot {}", received, bot.getName());
             }
+            queue.close();
+            setHealth(LongPollHealth.STOPPED);
             vkModule.getLogger().debug("Connection stopped. Bot {}", bot.getName());
-            if (!valid){
-                vkModule.getLogger().error("Connection for bot {} was failed! Automatic repair also failed!", bot.getName());
+        }
+    }
+
+    protected class DispatchTask extends Thread{
+
+        @Override
+        public void run() {
+            int handled = 0;
+            while (true) {
+                ConfigurationSection update;
+                try {
+                    update = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (update == null) break;
+                update.set("secret", bot.getSecret());
+                EventDispatcher dispatcher = VkModule.getEventDispatcher();
+                long number = acknowledgements.start();
+                if (dispatcher != null) {
+                    // ts подтверждается, когда событие обработано, а не когда оно передано в очередь потока обработки
+                    dispatcher.dispatch(update, bot, () -> acknowledgements.handled(number));
+                } else {
+                    EventDispatcher.handle(update, bot);
+                    acknowledgements.handled(number);
+                }
+                handled++;
             }
+            vkModule.getLogger().debug("Dispatcher stopped after {} update(s). Bot {}", handled, bot.getName());
         }
     }
 }
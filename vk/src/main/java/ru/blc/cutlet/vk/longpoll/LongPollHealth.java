@@ -0,0 +1,49 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import ru.blc.cutlet.api.Cutlet;
+import ru.blc.cutlet.vk.VkBot;
+import ru.blc.cutlet.vk.event.LongPollHealthChangeEvent;
+
+/**
+ * Состояние long poll подключения бота
+ */
+public enum LongPollHealth {
+    /**
+     * Запрашиваются данные первого подключения
+     */
+    CONNECTING,
+    /**
+     * Последний запрос к long poll серверу завершился успешно
+     */
+    HEALTHY,
+    /**
+     * Истек ключ или потеряна история, запрашиваются новые данные подключения
+     */
+    RECONNECTING,
+    /**
+     * Сервер недоступен, следующая попытка будет после паузы, растущей с каждой ошибкой
+     */
+    BACKING_OFF,
+    /**
+     * Вк отказал в выдаче данных подключения, например из-за токена или настроек группы.
+     * Попытки продолжаются с наибольшей паузой, пока причина не будет устранена
+     */
+    FAILED,
+    /**
+     * Подключение остановлено
+     */
+    STOPPED;
+
+    /**
+     * Сообщает боту и в лог о смене состояния
+     */
+    static void changed(VkBot bot, LongPollHealth from, LongPollHealth to) {
+        if (from == to) return;
+        if (to == FAILED || to == BACKING_OFF) {
+            bot.getLogger().warn("Long poll of bot {} changed from {} to {}", bot.getName(), from, to);
+        } else {
+            bot.getLogger().debug("Long poll of bot {} changed from {} to {}", bot.getName(), from, to);
+        }
+        Cutlet.instance().getBotManager().callEvent(new LongPollHealthChangeEvent(bot, from, to), b -> b == bot);
+    }
+}
@@ -0,0 +1,494 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.api.Cutlet;
+import ru.blc.cutlet.vk.EventDispatcher;
+import ru.blc.cutlet.vk.VkBot;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.NioHttpClient;
+import ru.blc.cutlet.vk.method.VkApiException;
+import ru.blc.cutlet.vk.method.groups.GetLongPollServer;
+import ru.blc.objconfig.ConfigurationSection;
+import ru.blc.objconfig.json.JsonConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LongPoll для многих групп без отдельного потока на каждую группу.<br>
+ * Запросы к long poll серверам всех групп ждут ответа в {@link NioHttpClient}, не занимая потоков.
+ * Полученные ответы разбираются небольшим пулом потоков в порядке поступления, у каждой группы не больше одного
+ * ответа в очереди, поэтому группы обслуживаются по очереди и группа с большим потоком событий не задерживает остальные.
+ * Следующий запрос группы отправляется, как только события предыдущего ответа переданы в {@link EventDispatcher}.<br>
+ * Данные подключений (key, server, ts) хранятся в таблице, строка которой выделяется группе при подключении
+ * и освобождается при отключении. Как и {@link LongPollConnection}, подключение продолжает с ts из {@link CheckpointStore}
+ * и подтверждает ts ответа, когда его события обработаны, а после ошибок повторяет запросы через растущую паузу
+ * {@link Backoff}, не занимая потоков на время ожидания
+ */
+public class LongPollMultiplexer implements Closeable {
+
+    private final NioHttpClient client;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService timer;
+    private volatile boolean closed;
+
+    private final Map<VkBot, Integer> slots = new HashMap<>();
+    private final Deque<Integer> free = new ArrayDeque<>();
+    private int used;
+    private VkBot[] bots = new VkBot[16];
+    private String[] servers = new String[16];
+    private String[] keys = new String[16];
+    private String[] ts = new String[16];
+    private int[] generations = new int[16];
+    private long[] behind = new long[16];
+    private LongPollHealth[] healths = new LongPollHealth[16];
+    private int[] failures = new int[16];
+    /**
+     * Данные подключения обновлены, а удачного ответа с ними еще не было
+     */
+    private boolean[] refreshed = new boolean[16];
+    private Acknowledgements[] acknowledgements = new Acknowledgements[16];
+
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    /**
+     * @param client http клиент для запросов к long poll серверам
+     * @param handlers количество потоков, разбирающих ответы
+     */
+    public LongPollMultiplexer(NioHttpClient client, int handlers) {
+        Preconditions.checkNotNull(client, "client");
+        Preconditions.checkArgument(handlers > 0, "handlers should be more than zero");
+        this.client = client;
+        AtomicInteger number = new AtomicInteger();
+        this.handlers = Executors.newFixedThreadPool(handlers, r -> {
+            Thread t = new Thread(r, "VK LP handler " + number.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "VK LP timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Подключает бота к long poll
+     * @param bot бот
+     * @return false, если бот уже подключен
+     */
+    public boolean register(@NotNull VkBot bot) {
+        Preconditions.checkNotNull(bot, "bot");
+        Preconditions.checkState(!closed, "Multiplexer closed");
+        int slot;
+        int generation;
+        synchronized (this) {
+            if (slots.containsKey(bot)) return false;
+            Integer reused = free.poll();
+            slot = reused != null ? reused : used++;
+            if (slot >= bots.length) grow();
+            bots[slot] = bot;
+            behind[slot] = -1;
+            healths[slot] = LongPollHealth.CONNECTING;
+            failures[slot] = 0;
+            refreshed[slot] = false;
+            acknowledgements[slot] = new Acknowledgements(newTs -> {
+                CheckpointStore store = VkModule.getCheckpointStore();
+                if (store != null) store.acknowledge(bot.getGroupId(), newTs);
+            });
+            generation = ++generations[slot];
+            slots.put(bot, slot);
+        }
+        refresh(slot, generation, true);
+        return true;
+    }
+
+    /**
+     * Отключает бота от long poll. Ответ на уже отправленный запрос будет проигнорирован
+     * @param bot бот
+     * @return false, если бот не был подключен
+     */
+    public boolean unregister(@NotNull VkBot bot) {
+        LongPollHealth old;
+        synchronized (this) {
+            Integer slot = slots.remove(bot);
+            if (slot == null) return false;
+            old = healths[slot];
+            bots[slot] = null;
+            servers[slot] = null;
+            keys[slot] = null;
+            ts[slot] = null;
+            healths[slot] = null;
+            acknowledgements[slot] = null;
+            generations[slot]++;
+            free.add(slot);
+        }
+        LongPollHealth.changed(bot, old, LongPollHealth.STOPPED);
+        return true;
+    }
+
+    public synchronized boolean isRegistered(VkBot bot) {
+        return slots.containsKey(bot);
+    }
+
+    /**
+     * @param bot бот
+     * @return состояние подключения бота или null, если бот не подключен
+     */
+    @Nullable
+    public synchronized LongPollHealth getHealth(VkBot bot) {
+        Integer slot = slots.get(bot);
+        return slot == null ? null : healths[slot];
+    }
+
+    /**
+     * @return сколько подключенных ботов в каждом состоянии
+     */
+    public synchronized Map<LongPollHealth, Integer> getHealthCounts() {
+        Map<LongPollHealth, Integer> counts = new EnumMap<>(LongPollHealth.class);
+        for (Integer slot : slots.values()) {
+            counts.merge(healths[slot], 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * @return количество подключенных ботов
+     */
+    public synchronized int getConnectionCount() {
+        return slots.size();
+    }
+
+    /**
+     * @return http клиент, через который идут запросы к long poll серверам
+     */
+    public NioHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return сколько запросов к long poll серверам отправлено
+     */
+    public long getPollCount() {
+        return polls.sum();
+    }
+
+    /**
+     * @return сколько событий получено
+     */
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+
+    /**
+     * @return сколько запросов завершилось ошибкой
+     */
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * @return сколько раз данные подключения запрашивались заново
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * Отключает всех ботов и закрывает http клиент
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            for (Integer slot : slots.values()) {
+                generations[slot]++;
+            }
+            slots.clear();
+        }
+        timer.shutdownNow();
+        handlers.shutdown();
+        client.close();
+    }
+
+    private void grow() {
+        int size = bots.length * 2;
+        bots = Arrays.copyOf(bots, size);
+        servers = Arrays.copyOf(servers, size);
+        keys = Arrays.copyOf(keys, size);
+        ts = Arrays.copyOf(ts, size);
+        generations = Arrays.copyOf(generations, size);
+        behind = Arrays.copyOf(behind, size);
+        healths = Arrays.copyOf(healths, size);
+        failures = Arrays.copyOf(failures, size);
+        refreshed = Arrays.copyOf(refreshed, size);
+        acknowledgements = Arrays.copyOf(acknowledgements, size);
+    }
+
+    /**
+     * @return бот строки таблицы или null, если строка отдана другому боту
+     */
+    @Nullable
+    private synchronized VkBot bot(int slot, int generation) {
+        return generations[slot] == generation ? bots[slot] : null;
+    }
+
+    /**
+     * Меняет состояние подключения и сообщает о смене боту
+     */
+    private void setHealth(int slot, int generation, LongPollHealth health) {
+        VkBot bot;
+        LongPollHealth old;
+        synchronized (this) {
+            if (generations[slot] != generation) return;
+            bot = bots[slot];
+            old = healths[slot];
+            healths[slot] = health;
+            if (health == LongPollHealth.HEALTHY) {
+                failures[slot] = 0;
+                refreshed[slot] = false;
+            }
+        }
+        LongPollHealth.changed(bot, old, health);
+    }
+
+    /**
+     * Повторяет задачу после паузы, растущей с каждой ошибкой подряд. Пока вк отказывает в подключении - после наибольшей
+     * @param state состояние на время паузы
+     */
+    private void backOff(int slot, int generation, LongPollHealth state, Runnable task) {
+        int failed;
+        synchronized (this) {
+            if (generations[slot] != generation) return;
+            failed = ++failures[slot];
+        }
+        setHealth(slot, generation, state);
+        Backoff backoff = VkModule.getLongPollBackoff();
+        later(task, state == LongPollHealth.FAILED ? backoff.getMaxDelay() : backoff.delay(failed));
+    }
+
+    /**
+     * @param full обновить сервер и ts. Иначе обновляется только истекший ключ. При полном обновлении берется ts сервера,
+     *             а пропущенные события считаются потерянными
+     */
+    private void refresh(int slot, int generation, boolean full) {
+        VkBot bot = bot(slot, generation);
+        if (bot == null || closed) return;
+        refreshes.increment();
+        boolean first;
+        synchronized (this) {
+            first = ts[slot] == null;
+        }
+        setHealth(slot, generation, first ? LongPollHealth.CONNECTING : LongPollHealth.RECONNECTING);
+        VkModule.METHODS
+                .groups
+                .getLongPollServer
+                .getNewParamsSet()
+                .setGroupId(bot.getGroupId())
+                .setToken(bot.getDefaultToken())
+                .call(GetLongPollServer.SERVER_DATA)
+                .whenComplete((data, t) -> {
+                    if (t instanceof CompletionException && t.getCause() != null) {
+                        t = t.getCause();
+                    }
+                    if (t != null) {
+                        errors.increment();
+                        if (t instanceof VkApiException) {
+                            VkApiException error = (VkApiException) t;
+                            bot.getLogger().error("Error {} while creating long poll connection for bot {}. Message: {}",
+                                    error.getErrorCode(), bot.getName(), error.getErrorMsg());
+                        } else {
+                            bot.getLogger().error("Error while creating long poll connection for bot " + bot.getName(), t);
+                        }
+                        backOff(slot, generation, t instanceof VkApiException ? LongPollHealth.FAILED : LongPollHealth.BACKING_OFF,
+                                () -> refresh(slot, generation, full));
+                        return;
+                    }
+                    boolean initial;
+                    synchronized (this) {
+                        if (generations[slot] != generation) return;
+                        keys[slot] = data.getKey();
+                        initial = ts[slot] == null;
+                        if (initial || full) servers[slot] = data.getServer();
+                        if (initial) ts[slot] = data.getTs();
+                        refreshed[slot] = true;
+                    }
+                    if (initial) {
+                        resume(bot, slot, generation, data.getTs());
+                    } else if (full) {
+                        lost(bot, slot, generation, data.getTs());
+                    }
+                    poll(slot, generation);
+                });
+    }
+
+    private void poll(int slot, int generation) {
+        String url;
+        int wait = VkModule.getLongPollWait();
+        synchronized (this) {
+            if (generations[slot] != generation || closed) return;
+            List<NameValuePair> pars = Arrays.asList(
+                    new BasicNameValuePair("act", "a_check"),
+                    new BasicNameValuePair("key", keys[slot]),
+                    new BasicNameValuePair("ts", ts[slot]),
+                    new BasicNameValuePair("wait", String.valueOf(wait)));
+            String server = servers[slot].contains("://") ? servers[slot] : "https://" + servers[slot];
+            url = server + (server.indexOf('?') < 0 ? '?' : '&') + URLEncodedUtils.format(pars, StandardCharsets.UTF_8);
+        }
+        polls.increment();
+        try {
+            client.get(url, TimeUnit.SECONDS.toMillis(wait + LongPollConnection.READ_MARGIN), slot)
+                    .whenCompleteAsync((response, t) -> handle(slot, generation, response, t), handlers);
+        } catch (RejectedExecutionException ignore) {
+            // мультиплексор закрыт
+        }
+    }
+
+    private void handle(int slot, int generation, @Nullable NioHttpClient.Response response, @Nullable Throwable error) {
+        VkBot bot = bot(slot, generation);
+        if (bot == null) return;
+        JsonConfiguration answer = null;
+        if (error == null && response.getStatus() != 200) {
+            error = new IOException("Long poll server answered with status " + response.getStatus());
+        }
+        if (error == null) {
+            answer = new JsonConfiguration();
+            try (Reader reader = new InputStreamReader(response.getBody(), StandardCharsets.UTF_8)) {
+                answer.load(reader);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            errors.increment();
+            bot.getLogger().error("can't get updates for bot " + bot.getName(), error);
+            backOff(slot, generation, LongPollHealth.BACKING_OFF, () -> poll(slot, generation));
+            return;
+        }
+        if (answer.hasValue("failed")) {
+            int failed = answer.getInt("failed");
+            Cutlet.instance().getLogger().debug("Fail {} on update. Bot {}", failed, bot.getName());
+            if (failed == 1) {
+                lost(bot, slot, generation, answer.getString("ts"));
+                setHealth(slot, generation, LongPollHealth.HEALTHY);
+                poll(slot, generation);
+                return;
+            }
+            // 2 - истек ключ, 3 - потеряна история
+            boolean full = failed != 2;
+            boolean again;
+            synchronized (this) {
+                again = refreshed[slot];
+            }
+            if (again) {
+                // данные только что обновлены, а сервер их не принял. Сразу обновлять снова бессмысленно
+                backOff(slot, generation, LongPollHealth.BACKING_OFF, () -> refresh(slot, generation, full));
+            } else {
+                refresh(slot, generation, full);
+            }
+            return;
+        }
+        setHealth(slot, generation, LongPollHealth.HEALTHY);
+        String newTs = answer.getString("ts");
+        long recovered;
+        Acknowledgements acks;
+        synchronized (this) {
+            if (generations[slot] != generation) return;
+            ts[slot] = newTs;
+            acks = acknowledgements[slot];
+            recovered = behind[slot];
+            behind[slot] = -1;
+        }
+        CheckpointStore store = VkModule.getCheckpointStore();
+        if (recovered >= 0) {
+            if (store != null) store.recordRecovered(recovered);
+            bot.getLogger().info("Long poll of bot {} recovered {} event(s) after restart", bot.getName(), recovered);
+        }
+        EventDispatcher dispatcher = VkModule.getEventDispatcher();
+        for (ConfigurationSection update : answer.getConfigurationSectionList("updates")) {
+            update.set("secret", bot.getSecret());
+            long number = acks.start();
+            if (dispatcher != null) {
+                // ts подтверждается, когда событие обработано, а не когда оно передано в очередь потока обработки
+                dispatcher.dispatch(update, bot, () -> acks.handled(number));
+            } else {
+                EventDispatcher.handle(update, bot);
+                acks.handled(number);
+            }
+            updates.increment();
+        }
+        // ответы группы разбираются по одному, поэтому все переданные события относятся к этому или прошлым ответам
+        acks.checkpoint(acks.getStarted(), newTs);
+        poll(slot, generation);
+    }
+
+    private void resume(VkBot bot, int slot, int generation, String serverTs) {
+        CheckpointStore store = VkModule.getCheckpointStore();
+        String saved = store == null ? null : store.get(bot.getGroupId());
+        if (saved == null) return;
+        long events = CheckpointStore.distance(saved, serverTs);
+        synchronized (this) {
+            if (generations[slot] != generation) return;
+            ts[slot] = saved;
+            behind[slot] = events;
+        }
+        bot.getLogger().info("Long poll of bot {} continues from saved ts {}, {} event(s) behind", bot.getName(), saved,
+                events < 0 ? "unknown number of" : String.valueOf(events));
+    }
+
+    /**
+     * Переходит на новый ts, события между текущим и новым ts потеряны
+     */
+    private void lost(VkBot bot, int slot, int generation, String newTs) {
+        long events;
+        Acknowledgements acks;
+        synchronized (this) {
+            if (generations[slot] != generation) return;
+            events = CheckpointStore.distance(ts[slot], newTs);
+            ts[slot] = newTs;
+            behind[slot] = -1;
+            acks = acknowledgements[slot];
+        }
+        CheckpointStore store = VkModule.getCheckpointStore();
+        if (store != null) store.recordLost(events);
+        // новый ts подтверждается после уже переданных событий
+        acks.checkpoint(acks.getStarted(), newTs);
+        bot.getLogger().warn("Long poll history of bot {} expired, {} event(s) lost", bot.getName(),
+                events < 0 ? "unknown number of" : String.valueOf(events));
+    }
+
+    private void later(Runnable task, long delay) {
+        if (closed) return;
+        try {
+            timer.schedule(() -> handlers.execute(task), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignore) {
+            // мультиплексор закрыт
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченная очередь между потоком, получающим обновления long poll, и потоком, обрабатывающим их.<br>
+ * Когда очередь заполнена, поведение определяется {@link Overflow}. После {@link #close()} новые обновления
+ * не принимаются, а уже принятые отдаются обработчику до конца
+ * @param <E> тип обновлений
+ */
+public class UpdateQueue<E> {
+
+    /**
+     * Что делать с обновлением, если очередь заполнена
+     */
+    public enum Overflow {
+        /**
+         * Ждать места. Следующий запрос к long poll серверу не отправляется, пока обработчик не догонит,
+         * события копятся на стороне вк и не теряются
+         */
+        BLOCK,
+        /**
+         * Выбросить самое старое обновление в очереди
+         */
+        DROP_OLDEST,
+        /**
+         * Выбросить новое обновление
+         */
+        DROP_NEWEST
+    }
+
+    private final int capacity;
+    private final Overflow overflow;
+    private final Deque<Entry<E>> entries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+
+    private int maxSize;
+    private double queueTime;
+    private long maxQueueTime;
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder taken = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blockedTime = new LongAdder();
+
+    /**
+     * @param capacity сколько обновлений помещается в очередь
+     * @param overflow что делать, если очередь заполнена
+     */
+    public UpdateQueue(int capacity, Overflow overflow) {
+        Preconditions.checkArgument(capacity > 0, "capacity should be more than zero");
+        Preconditions.checkNotNull(overflow, "overflow");
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Добавляет обновление в очередь. При {@link Overflow#BLOCK} ждет, пока появится место
+     * @param update обновление
+     * @return сколько обновлений выброшено из-за переполнения, 0 или 1
+     * @throws InterruptedException если поток прерван во время ожидания
+     * @throws IllegalStateException если очередь закрыта
+     */
+    public int offer(E update) throws InterruptedException {
+        Preconditions.checkNotNull(update, "update");
+        lock.lockInterruptibly();
+        try {
+            Preconditions.checkState(!closed, "Queue closed");
+            offered.increment();
+            int drop = 0;
+            if (entries.size() >= capacity) {
+                switch (overflow) {
+                    case DROP_NEWEST:
+                        dropped.increment();
+                        return 1;
+                    case DROP_OLDEST:
+                        entries.pollFirst();
+                        dropped.increment();
+                        drop = 1;
+                        break;
+                    case BLOCK:
+                    default:
+                        long start = System.nanoTime();
+                        try {
+                            while (entries.size() >= capacity && !closed) {
+                                notFull.await();
+                            }
+                        } finally {
+                            blockedTime.add(System.nanoTime() - start);
+                        }
+                        Preconditions.checkState(!closed, "Queue closed");
+                }
+            }
+            entries.addLast(new Entry<>(update, System.nanoTime()));
+            maxSize = Math.max(maxSize, entries.size());
+            notEmpty.signal();
+            return drop;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ждет и забирает следующее обновление
+     * @return обновление или null, если очередь закрыта и пуста
+     * @throws InterruptedException если поток прерван во время ожидания
+     */
+    @Nullable
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            Entry<E> entry = entries.pollFirst();
+            long time = System.nanoTime() - entry.added;
+            queueTime += (time - queueTime) * 0.05D;
+            maxQueueTime = Math.max(maxQueueTime, time);
+            taken.increment();
+            notFull.signal();
+            return entry.update;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Запрещает добавление новых обновлений. Поток, ждущий места, получает {@link IllegalStateException},
+     * обработчик забирает оставшиеся обновления и затем получает null
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return сколько обновлений ждут обработки
+     */
+    public int getSize() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return наибольшее количество обновлений в очереди с момента создания
+     */
+    public int getMaxSize() {
+        lock.lock();
+        try {
+            return maxSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return среднее время ожидания обработки за последние обновления в миллисекундах
+     */
+    public double getQueueTime() {
+        lock.lock();
+        try {
+            return queueTime / TimeUnit.MILLISECONDS.toNanos(1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return наибольшее время ожидания обработки в миллисекундах
+     */
+    public double getMaxQueueTime() {
+        lock.lock();
+        try {
+            return (double) maxQueueTime / TimeUnit.MILLISECONDS.toNanos(1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return сколько обновлений получено от long poll сервера
+     */
+    public long getOfferedCount() {
+        return offered.sum();
+    }
+
+    /**
+     * @return сколько обновлений передано обработчику
+     */
+    public long getTakenCount() {
+        return taken.sum();
+    }
+
+    /**
+     * @return сколько обновлений выброшено из-за переполнения
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return сколько миллисекунд получение обновлений ждало места в очереди
+     */
+    public long getBlockedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedTime.sum());
+    }
+
+    private static final class Entry<E> {
+        private final E update;
+        private final long added;
+
+        private Entry(E update, long added) {
+            this.update = update;
+            this.added = added;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.blc.cutlet.vk.method;
+
+import ru.blc.cutlet.vk.http.HttpTransport;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Связь задачи вызова с http запросом, который ее выполняет.
+ * Отмена задачи или истекший срок прерывают запрос, даже если он еще ждет ответа
+ */
+final class Cancellation {
+
+    private HttpTransport.TransportCall call;
+    private boolean cancelled;
+
+    /**
+     * @param call запрос, который сейчас будет отправлен
+     * @throws InterruptedIOException если вызов уже отменен
+     */
+    synchronized void attach(HttpTransport.TransportCall call) throws InterruptedIOException {
+        if (cancelled) throw new InterruptedIOException("Call cancelled");
+        this.call = call;
+    }
+
+    synchronized void detach(HttpTransport.TransportCall call) {
+        if (this.call == call) this.call = null;
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        if (call != null) {
+            call.abort();
+            call = null;
+        }
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+}
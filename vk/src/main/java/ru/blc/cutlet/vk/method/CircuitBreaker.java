@@ -0,0 +1,222 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.AccessToken;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Размыкатель для каждой пары метод + токен.<br>
+ * После failureThreshold сбоев подряд (ошибки соединения, истекшие сроки, {@link #setFailureCodes(Set) ошибки сервера вк})
+ * цепь размыкается: вызовы этого метода с этим токеном сразу завершаются {@link CircuitOpenException}, не занимая потоки.
+ * Через openTime миллисекунд цепь становится полуоткрытой и пропускает один пробный вызов: если он успешен, цепь замыкается,
+ * иначе снова размыкается. Об изменении состояния сообщает {@link Listener}
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        /**
+         * Вызовы проходят
+         */
+        CLOSED,
+        /**
+         * Вызовы сразу завершаются ошибкой
+         */
+        OPEN,
+        /**
+         * Проходит один пробный вызов
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Получатель изменений состояния. Вызывается в потоке, завершившем вызов
+     */
+    public interface Listener {
+        void onStateChange(String method, AccessToken token, State from, State to);
+    }
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final int failureThreshold;
+    private final long openTime;
+    private Set<Integer> failureCodes = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private Listener listener;
+
+    /**
+     * @param failureThreshold сколько сбоев подряд размыкают цепь
+     * @param openTime сколько миллисекунд цепь разомкнута перед пробным вызовом
+     */
+    public CircuitBreaker(int failureThreshold, long openTime) {
+        Preconditions.checkArgument(failureThreshold > 0, "failure threshold should be more than zero");
+        Preconditions.checkArgument(openTime >= 0, "open time can not be negative");
+        this.failureThreshold = failureThreshold;
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+        failureCodes.add(1);
+        failureCodes.add(10);
+    }
+
+    /**
+     * @param codes коды ошибок вк, которые означают сбой на стороне вк. По умолчанию 1 и 10.
+     *              Остальные ошибки (неверные параметры, нет доступа) цепь не размыкают
+     * @return this
+     */
+    public CircuitBreaker setFailureCodes(Set<Integer> codes) {
+        Set<Integer> set = ConcurrentHashMap.newKeySet();
+        set.addAll(codes);
+        this.failureCodes = set;
+        return this;
+    }
+
+    public CircuitBreaker setListener(@Nullable Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Выполняет попытку вызова, если цепь для метода и токена не разомкнута
+     * @param method метод
+     * @param token токен
+     * @param attempt попытка вызова
+     * @param <R> тип ответа
+     * @return задача попытки или задача, завершенная {@link CircuitOpenException}
+     */
+    public <R> CompletableFuture<R> execute(Method<?> method, AccessToken token, Supplier<CompletableFuture<R>> attempt) {
+        Circuit circuit = circuits.computeIfAbsent(key(method, token), k -> new Circuit(method.getCallAdress(), token));
+        long retryAfter = circuit.acquire();
+        if (retryAfter >= 0) {
+            rejected.increment();
+            CompletableFuture<R> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new CircuitOpenException(method.getCallAdress(), TimeUnit.NANOSECONDS.toMillis(retryAfter)));
+            return failed;
+        }
+        CompletableFuture<R> future;
+        try {
+            future = attempt.get();
+        } catch (Throwable t) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(t);
+        }
+        future.whenComplete((answer, t) -> circuit.release(classify(answer, t)));
+        return future;
+    }
+
+    /**
+     * @param method метод
+     * @param token токен
+     * @return состояние цепи
+     */
+    public State getState(Method<?> method, AccessToken token) {
+        Circuit circuit = circuits.get(key(method, token));
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * @return сколько вызовов отклонено разомкнутыми цепями
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return true - сбой, false - успех, null - результат не говорит о состоянии вк (отмена)
+     */
+    @Nullable
+    private Boolean classify(@Nullable Object answer, @Nullable Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof UncheckedIOException) error = error.getCause();
+        // отмененный вызов прерывается с InterruptedIOException, его подклассы - таймауты соединения
+        if (error instanceof CancellationException || (error != null && error.getClass() == InterruptedIOException.class)) return null;
+        if (error instanceof IOException || error instanceof TimeoutException) return true;
+        return failureCodes.contains(RequestScheduler.getErrorCode(answer, error));
+    }
+
+    private static String key(Method<?> method, AccessToken token) {
+        return method.getCallAdress() + ':' + token.getValue();
+    }
+
+    private class Circuit {
+        private final String method;
+        private final AccessToken token;
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+        private boolean probing;
+
+        private Circuit(String method, AccessToken token) {
+            this.method = method;
+            this.token = token;
+        }
+
+        private synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * @return -1, если вызов можно выполнить, иначе через сколько наносекунд будет пробный вызов
+         */
+        private long acquire() {
+            State from;
+            synchronized (this) {
+                if (state == State.CLOSED) return -1;
+                if (state == State.HALF_OPEN) {
+                    if (probing) return 0;
+                    probing = true;
+                    return -1;
+                }
+                long wait = openedAt + openTime - System.nanoTime();
+                if (wait > 0) return wait;
+                from = state;
+                state = State.HALF_OPEN;
+                probing = true;
+            }
+            changed(from, State.HALF_OPEN);
+            return -1;
+        }
+
+        private void release(@Nullable Boolean failure) {
+            State from;
+            State to;
+            synchronized (this) {
+                from = state;
+                if (failure == null) {
+                    if (state == State.HALF_OPEN) probing = false;
+                    return;
+                }
+                if (!failure) {
+                    failures = 0;
+                    if (state == State.HALF_OPEN) {
+                        state = State.CLOSED;
+                        probing = false;
+                    }
+                } else if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+                    state = State.OPEN;
+                    openedAt = System.nanoTime();
+                    failures = 0;
+                    probing = false;
+                }
+                to = state;
+            }
+            if (from != to) changed(from, to);
+        }
+
+        private void changed(State from, State to) {
+            Listener l = listener;
+            if (l != null) l.onStateChange(method, token, from, to);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ru.blc.cutlet.vk.method;
+
+/**
+ * Вызов не выполнялся, потому что цепь {@link CircuitBreaker} для этого метода и токена разомкнута
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    private final String method;
+    private final long retryAfter;
+
+    public CircuitOpenException(String method, long retryAfter) {
+        super("Circuit for method " + method + " is open, retry after " + retryAfter + " ms");
+        this.method = method;
+        this.retryAfter = retryAfter;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return через сколько миллисекунд будет сделан пробный вызов, 0 - пробный вызов уже выполняется
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
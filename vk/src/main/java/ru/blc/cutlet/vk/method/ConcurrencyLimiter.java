@@ -0,0 +1,302 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Адаптивное ограничение количества одновременных вызовов вк апи.<br>
+ * Предел растет на единицу за каждое время ответа, пока вызовы проходят быстро, и уменьшается в backoff раз,
+ * если время ответа стало больше tolerance раз от наименьшего замеченного или вк ответил ошибкой перегрузки (AIMD).
+ * Наименьшее время ответа забывается каждые {@link #WINDOW} ответов, поэтому предел следует за задержками вк в течение дня.<br>
+ * Вызовы сверх предела ждут в очереди, пока не освободится место или не истечет их срок
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Через сколько ответов наименьшее время ответа измеряется заново
+     */
+    public static final int WINDOW = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double backoff = 0.9D;
+    private double tolerance = 2D;
+    private Set<Integer> overloadCodes = ConcurrentHashMap.newKeySet();
+
+    private final Deque<Waiter<?>> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private long minRtt = Long.MAX_VALUE;
+    private long windowMinRtt = Long.MAX_VALUE;
+    private int windowSamples;
+    private long lastDecrease;
+    private double queueWait;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    /**
+     * @param initialLimit предел после включения
+     * @param minLimit наименьший предел
+     * @param maxLimit наибольший предел
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        Preconditions.checkArgument(minLimit > 0, "min limit should be more than zero");
+        Preconditions.checkArgument(maxLimit >= minLimit, "max limit can not be less than min limit");
+        Preconditions.checkArgument(initialLimit >= minLimit && initialLimit <= maxLimit, "initial limit should be between min and max limit");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.lastDecrease = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+        overloadCodes.add(6);
+        overloadCodes.add(10);
+    }
+
+    /**
+     * @param backoff во сколько раз уменьшается предел при перегрузке, от 0 до 1
+     * @return this
+     */
+    public ConcurrencyLimiter setBackoff(double backoff) {
+        Preconditions.checkArgument(backoff > 0 && backoff < 1, "backoff should be between 0 and 1");
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * @param tolerance во сколько раз время ответа может превысить наименьшее, прежде чем предел начнет уменьшаться
+     * @return this
+     */
+    public ConcurrencyLimiter setTolerance(double tolerance) {
+        Preconditions.checkArgument(tolerance >= 1, "tolerance should be at least one");
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * @param codes коды ошибок вк, означающие перегрузку. По умолчанию 6 и 10
+     * @return this
+     */
+    public ConcurrencyLimiter setOverloadCodes(Set<Integer> codes) {
+        Set<Integer> set = ConcurrentHashMap.newKeySet();
+        set.addAll(codes);
+        this.overloadCodes = set;
+        return this;
+    }
+
+    /**
+     * Выполняет попытку вызова, когда для нее есть место
+     * @param deadline срок вызова или null. Если срок истек в очереди, попытка не выполняется
+     * @param attempt попытка вызова
+     * @param <R> тип ответа
+     * @return задача попытки
+     */
+    public <R> CompletableFuture<R> execute(@Nullable Deadline deadline, Supplier<CompletableFuture<R>> attempt) {
+        Preconditions.checkNotNull(attempt, "attempt");
+        calls.increment();
+        Waiter<R> waiter = new Waiter<>(deadline, attempt);
+        synchronized (this) {
+            if (!queue.isEmpty() || inFlight >= (int) limit) {
+                queued.increment();
+                queue.addLast(waiter);
+                return waiter.result;
+            }
+            inFlight++;
+            recordWait(0);
+        }
+        run(waiter);
+        return waiter.result;
+    }
+
+    private <R> void run(Waiter<R> waiter) {
+        long start = System.nanoTime();
+        CompletableFuture<R> future;
+        try {
+            future = waiter.attempt.get();
+        } catch (Throwable t) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(t);
+        }
+        future.whenComplete((answer, t) -> {
+            release(System.nanoTime() - start, classify(answer, t));
+            if (t != null) waiter.result.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            else waiter.result.complete(answer);
+        });
+    }
+
+    /**
+     * @param rtt время ответа в наносекундах
+     * @param overload true - перегрузка, false - успех, null - ответ ничего не говорит о нагрузке
+     */
+    private void release(long rtt, @Nullable Boolean overload) {
+        List<Waiter<?>> ready = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            if (overload != null) sample(rtt, overload);
+            Waiter<?> next;
+            while ((next = poll()) != null) {
+                ready.add(next);
+            }
+        }
+        ready.forEach(this::start);
+    }
+
+    private void sample(long rtt, boolean overload) {
+        if (!overload) {
+            windowMinRtt = Math.min(windowMinRtt, rtt);
+            minRtt = Math.min(minRtt, rtt);
+            if (++windowSamples >= WINDOW) {
+                minRtt = windowMinRtt;
+                windowMinRtt = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            overload = rtt > minRtt * tolerance;
+        }
+        long now = System.nanoTime();
+        if (overload) {
+            // одна перегрузка уменьшает предел один раз, а не на каждый ответ, пришедший в это время
+            if (now - lastDecrease < Math.max(rtt, minRtt == Long.MAX_VALUE ? 0 : minRtt)) return;
+            lastDecrease = now;
+            limit = Math.max(minLimit, limit * backoff);
+            decreases.increment();
+        } else if (inFlight + 1 >= limit / 2) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * @return следующий вызов из очереди, для которого есть место, или null
+     */
+    @Nullable
+    private Waiter<?> poll() {
+        if (queue.isEmpty() || inFlight >= (int) limit) return null;
+        Waiter<?> next = queue.pollFirst();
+        inFlight++;
+        recordWait(System.nanoTime() - next.queuedAt);
+        return next;
+    }
+
+    private void start(Waiter<?> waiter) {
+        // попытка может блокировать поток, поэтому не выполняется в потоке, завершившем другой вызов
+        CompletableFuture.runAsync(() -> {
+            if (waiter.result.isDone()) {
+                // вызов отменили, пока он ждал в очереди
+                release(0, null);
+                return;
+            }
+            if (waiter.deadline != null && waiter.deadline.isExpired()) {
+                expired.increment();
+                waiter.result.completeExceptionally(new TimeoutException("Deadline exceeded in concurrency limiter queue"));
+                release(0, null);
+                return;
+            }
+            run(waiter);
+        });
+    }
+
+    private void recordWait(long wait) {
+        queueWait += (wait - queueWait) * 0.05D;
+    }
+
+    private Boolean classify(@Nullable Object answer, @Nullable Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof UncheckedIOException) error = error.getCause();
+        if (error instanceof CancellationException || error instanceof CircuitOpenException
+                || (error != null && error.getClass() == InterruptedIOException.class)) return null;
+        if (error instanceof IOException || error instanceof TimeoutException) return true;
+        return overloadCodes.contains(RequestScheduler.getErrorCode(answer, error));
+    }
+
+    /**
+     * @return текущий предел одновременных вызовов
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return сколько вызовов выполняется
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return сколько вызовов ждут в очереди
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return среднее время ожидания в очереди за последние вызовы в миллисекундах
+     */
+    public synchronized double getQueueWaitTime() {
+        return queueWait / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return наименьшее время ответа в миллисекундах, 0 если ответов еще не было
+     */
+    public synchronized double getMinRtt() {
+        return minRtt == Long.MAX_VALUE ? 0 : (double) minRtt / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return сколько вызовов прошло через ограничитель
+     */
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    /**
+     * @return сколько вызовов ждали в очереди
+     */
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    /**
+     * @return у скольких вызовов истек срок в очереди
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * @return сколько раз предел уменьшался
+     */
+    public long getDecreaseCount() {
+        return decreases.sum();
+    }
+
+    private static class Waiter<R> {
+        private final Deadline deadline;
+        private final Supplier<CompletableFuture<R>> attempt;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+
+        private Waiter(@Nullable Deadline deadline, Supplier<CompletableFuture<R>> attempt) {
+            this.deadline = deadline;
+            this.attempt = attempt;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Момент, к которому вызов должен завершиться.<br>
+ * Срок можно задать для потока через {@link #with(Deadline, Runnable)}: все вызовы апи, сделанные в этом потоке,
+ * завершатся не позже него. Так обработка входящего события наследует оставшееся у события время.
+ * В другие потоки срок сам не передается, для асинхронной работы его нужно передать через
+ * {@link ParamsSet#setDeadline(Deadline)}
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long at;
+
+    private Deadline(long at) {
+        this.at = at;
+    }
+
+    /**
+     * @param timeout время от текущего момента
+     * @param unit единица времени
+     * @return срок
+     */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(timeout >= 0, "timeout can not be negative");
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * @return срок текущего потока или null, если он не задан
+     */
+    @Nullable
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Выполняет действие со сроком для текущего потока. Если у потока уже есть более ранний срок, остается он
+     * @param deadline срок или null, чтобы оставить текущий
+     * @param action действие
+     */
+    public static void with(@Nullable Deadline deadline, Runnable action) {
+        with(deadline, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Выполняет действие со сроком для текущего потока. Если у потока уже есть более ранний срок, остается он
+     * @param deadline срок или null, чтобы оставить текущий
+     * @param action действие
+     * @param <R> тип результата
+     * @return результат действия
+     */
+    public static <R> R with(@Nullable Deadline deadline, Supplier<R> action) {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(earliest(previous, deadline));
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) CURRENT.remove();
+            else CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return более ранний из двух сроков, null если оба null
+     */
+    @Nullable
+    public static Deadline earliest(@Nullable Deadline first, @Nullable Deadline second) {
+        if (first == null) return second;
+        if (second == null) return first;
+        return first.at - second.at <= 0 ? first : second;
+    }
+
+    /**
+     * @param unit единица времени
+     * @return сколько осталось до срока, 0 если срок прошел
+     */
+    public long remaining(TimeUnit unit) {
+        return unit.convert(Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return at - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{remaining=" + remaining(TimeUnit.MILLISECONDS) + "ms}";
+    }
+}
@@ -0,0 +1,64 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Execute extends Method<Execute> {
+
+	public Execute() {
+		super("execute", AccessTokenType.USER, AccessTokenType.GROUP, AccessTokenType.SERVICE);
+	}
+
+	@Override
+	public ExecuteParamsSet getNewParamsSet() {
+		return new ExecuteParamsSet(this);
+	}
+
+	@Override
+	public boolean isBatchable() {
+		return false;
+	}
+
+	/**
+	 * Execute выполняет до 25 вызовов, поэтому ему дается больше времени
+	 */
+	@Override
+	public long getTimeout() {
+		return 60000;
+	}
+
+	public static class ExecuteParamsSet extends ParamsSet<Execute> {
+
+		private String code;
+
+		public ExecuteParamsSet(Method<Execute> method) {
+			super(method);
+		}
+
+		@Override
+		public List<NameValuePair> getParams() {
+			Preconditions.checkNotNull(getCode(), "code");
+			List<NameValuePair> params = new ArrayList<>();
+			params.add(new BasicNameValuePair("code", getCode()));
+			return params;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		/**
+		 * @param code код на VKScript
+		 * @return этот набор параметров
+		 */
+		public ExecuteParamsSet setCode(String code) {
+			this.code = code;
+			return this;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.http.NameValuePair;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.ApiVersion;
+import ru.blc.cutlet.vk.VkModule;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Собирает вызовы методов, сделанные с одним токеном за короткое время,
+ * и отправляет их одним запросом <a href="https://vk.com/dev/execute">execute</a>.<br>
+ * Каждый вызывающий получает свою часть ответа в том же виде, как если бы метод был вызван отдельно
+ */
+public class ExecuteBatcher implements Closeable {
+
+    /**
+     * Максимальное количество вызовов в одном execute
+     */
+    public static final int MAX_CALLS = 25;
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final long window;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    /**
+     * @param window сколько миллисекунд ждать другие вызовы перед отправкой
+     */
+    public ExecuteBatcher(long window) {
+        Preconditions.checkArgument(window >= 0, "window can not be negative");
+        this.window = window;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "VK execute batcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Добавляет вызов в очередь на отправку
+     * @param method метод
+     * @param params параметры без токена и версии апи
+     * @param token токен
+     * @param version версия апи
+     * @return задача, которая завершится ответом вк на этот вызов
+     */
+    public CompletableFuture<String> submit(Method<?> method, List<NameValuePair> params, AccessToken token, ApiVersion version) {
+        PendingCall call = new PendingCall(method, params);
+        String key = token.getValue() + ':' + version.getText();
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(token, version);
+                batches.put(key, batch);
+                Batch scheduled = batch;
+                timer.schedule(() -> flush(key, scheduled), window, TimeUnit.MILLISECONDS);
+            }
+            batch.calls.add(call);
+            if (batch.calls.size() >= MAX_CALLS) {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            full.send();
+        }
+        return call.future;
+    }
+
+    private void flush(String key, Batch batch) {
+        synchronized (batches) {
+            if (batches.get(key) != batch) return;
+            batches.remove(key);
+        }
+        batch.send();
+    }
+
+    /**
+     * Отправляет все накопленные вызовы и останавливает таймер
+     */
+    @Override
+    public void close() {
+        List<Batch> rest;
+        synchronized (batches) {
+            rest = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        rest.forEach(Batch::send);
+        timer.shutdown();
+    }
+
+    /**
+     * Собирает VKScript код, вызывающий все методы по порядку и возвращающий массив ответов
+     * @param calls вызовы
+     * @return код для execute
+     */
+    static String buildCode(List<PendingCall> calls) {
+        StringBuilder code = new StringBuilder("return [");
+        for (int i = 0; i < calls.size(); i++) {
+            PendingCall call = calls.get(i);
+            if (i > 0) code.append(',');
+            JsonObject args = new JsonObject();
+            for (NameValuePair pair : call.params) {
+                args.addProperty(pair.getName(), pair.getValue());
+            }
+            code.append("API.").append(call.method.getCallAdress()).append('(').append(GSON.toJson(args)).append(')');
+        }
+        return code.append("];").toString();
+    }
+
+    /**
+     * Разбирает ответ execute на ответы отдельных вызовов.<br>
+     * Неудачный вызов возвращает false в массиве ответов, а его ошибка попадает в execute_errors в порядке вызова
+     * @param answer ответ execute
+     * @param count количество вызовов
+     * @return ответы в формате обычного вызова метода
+     */
+    static List<String> splitAnswer(String answer, int count) {
+        JsonObject root = JsonParser.parseString(answer).getAsJsonObject();
+        if (!root.has("response") || !root.get("response").isJsonArray()) {
+            return Collections.nCopies(count, answer);
+        }
+        JsonArray responses = root.getAsJsonArray("response");
+        Iterator<JsonElement> errors = root.has("execute_errors")
+                ? root.getAsJsonArray("execute_errors").iterator()
+                : Collections.emptyIterator();
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JsonObject single = new JsonObject();
+            JsonElement response = i < responses.size() ? responses.get(i) : null;
+            boolean failed = response == null
+                    || (response.isJsonPrimitive() && response.getAsJsonPrimitive().isBoolean() && !response.getAsBoolean());
+            if (failed && errors.hasNext()) {
+                single.add("error", errors.next());
+            } else if (response == null) {
+                JsonObject error = new JsonObject();
+                error.addProperty("error_code", 0);
+                error.addProperty("error_msg", "No answer for call in execute");
+                single.add("error", error);
+            } else {
+                single.add("response", response);
+            }
+            result.add(GSON.toJson(single));
+        }
+        return result;
+    }
+
+    static class PendingCall {
+        private final Method<?> method;
+        private final List<NameValuePair> params;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        PendingCall(Method<?> method, List<NameValuePair> params) {
+            this.method = method;
+            this.params = params;
+        }
+    }
+
+    private static class Batch {
+        private final AccessToken token;
+        private final ApiVersion version;
+        private final List<PendingCall> calls = new ArrayList<>(MAX_CALLS);
+
+        private Batch(AccessToken token, ApiVersion version) {
+            this.token = token;
+            this.version = version;
+        }
+
+        private void send() {
+            if (calls.size() == 1) {
+                PendingCall call = calls.get(0);
+                call.method.submit(call.params, token, version)
+                        .whenComplete((s, t) -> {
+                            if (t != null) call.future.completeExceptionally(t);
+                            else call.future.complete(s);
+                        });
+                return;
+            }
+            Execute.ExecuteParamsSet execute = VkModule.METHODS.execute.getNewParamsSet().setCode(buildCode(calls));
+            execute.setToken(token).setVersion(version);
+            execute.call().whenComplete((s, t) -> {
+                if (t == null && s == null) {
+                    calls.forEach(c -> c.future.complete(null));
+                    return;
+                }
+                Throwable error = t;
+                List<String> answers = null;
+                if (error == null) {
+                    try {
+                        answers = splitAnswer(s, calls.size());
+                    } catch (RuntimeException e) {
+                        error = e;
+                    }
+                }
+                for (int i = 0; i < calls.size(); i++) {
+                    if (error != null) calls.get(i).future.completeExceptionally(error);
+                    else calls.get(i).future.complete(answers.get(i));
+                }
+            });
+        }
+    }
+}
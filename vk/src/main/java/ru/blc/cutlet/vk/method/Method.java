@@ -1,26 +1,38 @@
 package ru.blc.cutlet.vk.method;
 
 import com.google.common.base.Preconditions;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import com.google.common.io.ByteStreams;
+import com.google.gson.stream.JsonReader;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.CookieSpecs;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
 import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.ApiVersion;
+import ru.blc.cutlet.vk.TokenPool;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.HttpTransport;
+import ru.blc.cutlet.vk.http.TransportRequest;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public abstract class Method<T extends Method<T>> {
 
@@ -44,74 +56,443 @@ public abstract class Method<T extends Method<T>> {
 		return isTokenAllowed(token.getType());
 	}
 
+	/**
+	 * Может ли вызов этого метода быть объединен с другими в один запрос execute
+	 * @return true, если может
+	 */
+	public boolean isBatchable() {
+		return true;
+	}
+
+	/**
+	 * Сколько секунд можно хранить ответ этого метода в {@link ResponseCache}.<br>
+	 * Методы, которые что-то изменяют, не должны кэшироваться
+	 * @return время хранения ответа, 0 если ответ не кэшируется
+	 */
+	public int getCacheTime() {
+		return 0;
+	}
+
+	/**
+	 * Только ли читает данные этот метод. Одинаковые одновременные вызовы таких методов
+	 * объединяются в один запрос ({@link RequestCoalescer})
+	 * @return true, если повторный вызов с теми же параметрами ничего не изменит
+	 */
+	public boolean isIdempotent() {
+		return getCacheTime() > 0;
+	}
+
+	/**
+	 * Сколько миллисекунд по умолчанию дается на вызов этого метода, включая ожидание в очереди.<br>
+	 * Может быть заменено в конфигурации ({@link Timeouts}) или для отдельного вызова ({@link ParamsSet#setTimeout(long, TimeUnit)})
+	 * @return время вызова, 0 - общее время по умолчанию
+	 */
+	public long getTimeout() {
+		return 0;
+	}
+
+	/**
+	 * Можно ли повторить вызов, если неизвестно, выполнил ли его вк (обрыв соединения, внутренняя ошибка вк).<br>
+	 * Безопасны методы, только читающие данные, и методы, повтор которых вк распознает сам, например по random_id
+	 * @return true, если повтор не приведет к повторному действию
+	 */
+	public boolean isRetrySafe() {
+		return isIdempotent();
+	}
+
+	/**
+	 * Параметры, которые должны быть новыми для каждого вызова, например random_id.
+	 * Подготовленный запрос ({@link PreparedRequest}) не кодирует их заранее, а получает заново для каждого вызова
+	 * @return параметры для одного вызова
+	 */
+	public List<NameValuePair> getPerCallParams() {
+		return Collections.emptyList();
+	}
+
 	/**
 	 * Вызывает метод с указанными параметрами и ожидает ответ от вк апи
 	 * @param params параметры
 	 * @param headers http headers
 	 * @return ответ от вк апи
+	 * @throws UncheckedIOException при ошибке соединения или если срок вызова истек
 	 */
 	public String callAwait(ParamsSet<T> params, Header...headers) {
+		checkParams(params);
+		List<NameValuePair> pars = params.getParams();
+		ResponseCache cache = getResponseCache(headers);
+		RequestCoalescer coalescer = getCoalescer(headers);
+		String key = cache != null || coalescer != null ? ResponseCache.key(this, pars, params.getToken(), params.getVersion()) : null;
+		if (cache != null) {
+			String cached = cache.get(key);
+			if (cached != null) return cached;
+		}
+		Deadline deadline = VkModule.getTimeouts().getDeadline(params);
+		Cancellation cancellation = new Cancellation();
+		Function<Cancellation, Supplier<CompletableFuture<String>>> request = own -> attempts(token -> () ->
+				request(pars, token, params.getVersion(), deadline, own, headers), params.getToken(), deadline, true);
+		String answer;
+		try {
+			answer = bound(coalescer == null ? request.apply(cancellation).get() : coalescer.submit(key, shared(request)), deadline, cancellation).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+		if (cache != null) {
+			cache.put(key, this, pars, answer);
+		}
+		return answer;
+	}
+
+	/**
+	 * Вызывает метод с указанными параметрами и ожидает ответ от вк апи.<br>
+	 * Ответ читается прямо из потока при помощи reader. Одинаковые одновременные вызовы ({@link RequestCoalescer})
+	 * получают один общий ответ, и каждый читает его своим reader
+	 * @param params параметры
+	 * @param reader чтение поля response
+	 * @param headers http headers
+	 * @param <R> тип результата
+	 * @return результат
+	 * @throws VkApiException если вк вернул ошибку
+	 * @throws UncheckedIOException при ошибке соединения
+	 */
+	public <R> R callAwait(ParamsSet<T> params, ResponseReader<R> reader, Header...headers) {
+		checkParams(params);
+		Preconditions.checkNotNull(reader, "reader");
+		if (getResponseCache(headers) != null || getCoalescer(headers) != null) {
+			// объединенные вызовы делят один ответ строкой, и каждый читает его своим reader
+			return ResponseReader.readAnswer(callAwait(params, headers), reader);
+		}
+		List<NameValuePair> pars = params.getParams();
+		RequestScheduler scheduler = VkModule.getRequestScheduler();
+		Deadline deadline = VkModule.getTimeouts().getDeadline(params);
+		Cancellation cancellation = new Cancellation();
+		if (scheduler == null && VkModule.getRetryPolicy() == null && VkModule.getCircuitBreaker() == null
+				&& VkModule.getConcurrencyLimiter() == null && TokenPool.of(params.getToken()) == null) {
+			return request(pars, params.getToken(), params.getVersion(), deadline, cancellation, reader, headers);
+		}
+		Supplier<CompletableFuture<R>> request = attempts(token -> () ->
+				request(pars, token, params.getVersion(), deadline, cancellation, reader, headers), params.getToken(), deadline, true);
+		try {
+			return bound(request.get(), deadline, cancellation).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Отправляет вызов, который {@link ExecuteBatcher} не стал объединять с другими.<br>
+	 * Как и запрос execute, вызов проходит размыкатель и ограничение одновременных вызовов, и если включен планировщик
+	 * запросов ({@link RequestScheduler}), ждет своей очереди для этого токена
+	 * @param pars параметры без токена и версии апи
+	 * @param token токен
+	 * @param version версия апи
+	 * @param headers http headers
+	 * @return запущенная задача
+	 */
+	CompletableFuture<String> submit(List<NameValuePair> pars, AccessToken token, ApiVersion version, Header...headers) {
+		return guarded(recorded(sending(() -> request(pars, token, version, null, new Cancellation(), headers), token, null, false), token), token).get();
+	}
+
+	/**
+	 * Попытки вызова с повторами ({@link RetryPolicy}), размыкателем, статистикой токена, очередью планировщика
+	 * и ограничением одновременных вызовов
+	 * @param request запрос с указанным токеном
+	 * @param token токен вызова
+	 * @param deadline срок вызова или null
+	 * @param inCaller выполнять запрос в вызывающем потоке, если планировщик выключен
+	 */
+	private <R> Supplier<CompletableFuture<R>> attempts(Function<AccessToken, Supplier<R>> request, AccessToken token,
+														@Nullable Deadline deadline, boolean inCaller) {
+		return retrying(pooled(t -> guarded(recorded(sending(request.apply(t), t, deadline, inCaller), t), t), token), deadline);
+	}
+
+	/**
+	 * Если токен входит в {@link TokenPool} и пул вывел его из оборота после прошлой попытки,
+	 * следующая попытка выполняется со следующим токеном пула. Первая попытка всегда выполняется с токеном вызова
+	 * @param attempt попытка с указанным токеном
+	 * @param token токен вызова
+	 */
+	private <R> Supplier<CompletableFuture<R>> pooled(Function<AccessToken, Supplier<CompletableFuture<R>>> attempt, AccessToken token) {
+		AtomicReference<AccessToken> last = new AtomicReference<>();
+		return () -> {
+			AccessToken used = last.get();
+			if (used == null) {
+				used = token;
+			} else {
+				TokenPool pool = TokenPool.of(used);
+				TokenPool.TokenStats stats = pool == null ? null : pool.getStats(used);
+				if (stats != null && stats.isRetired()) used = pool.next(used.getType());
+			}
+			last.set(used);
+			return attempt.apply(used).get();
+		};
+	}
+
+	/**
+	 * Попытка отправки запроса. Если включен планировщик запросов ({@link RequestScheduler}), запрос ждет своей очереди для токена.
+	 * Место в ограничителе одновременных вызовов ({@link ConcurrencyLimiter}) занимается, только когда запрос отправляется,
+	 * поэтому ожидание в очереди токена не держит место и не входит во время ответа
+	 * @param request запрос
+	 * @param token токен
+	 * @param deadline срок вызова или null
+	 * @param inCaller выполнять запрос в вызывающем потоке, если планировщик выключен
+	 */
+	private <R> Supplier<CompletableFuture<R>> sending(Supplier<R> request, AccessToken token, @Nullable Deadline deadline, boolean inCaller) {
+		return () -> {
+			RequestScheduler scheduler = VkModule.getRequestScheduler();
+			if (scheduler == null) {
+				return limited(() -> inCaller ? CompletableFuture.completedFuture(request.get()) : CompletableFuture.supplyAsync(request), deadline).get();
+			}
+			return scheduler.scheduleAsync(token, limited(() -> CompletableFuture.supplyAsync(request), deadline));
+		};
+	}
+
+	/**
+	 * Если включен размыкатель ({@link CircuitBreaker}) и цепь для метода и токена разомкнута, попытка сразу завершается ошибкой
+	 */
+	private <R> Supplier<CompletableFuture<R>> guarded(Supplier<CompletableFuture<R>> attempt, AccessToken token) {
+		return () -> {
+			CircuitBreaker breaker = VkModule.getCircuitBreaker();
+			return breaker == null ? attempt.get() : breaker.execute(this, token, attempt);
+		};
+	}
+
+	/**
+	 * Если токен входит в {@link TokenPool}, результат попытки учитывается в статистике токена
+	 */
+	private <R> Supplier<CompletableFuture<R>> recorded(Supplier<CompletableFuture<R>> attempt, AccessToken token) {
+		return () -> {
+			if (TokenPool.of(token) == null) return attempt.get();
+			return attempt.get().whenComplete((answer, t) -> TokenPool.record(token, RequestScheduler.getErrorCode(answer, t), t != null));
+		};
+	}
+
+	/**
+	 * Если включено ограничение одновременных вызовов ({@link ConcurrencyLimiter}), попытка ждет свободного места
+	 */
+	private <R> Supplier<CompletableFuture<R>> limited(Supplier<CompletableFuture<R>> attempt, @Nullable Deadline deadline) {
+		return () -> {
+			ConcurrencyLimiter limiter = VkModule.getConcurrencyLimiter();
+			return limiter == null ? attempt.get() : limiter.execute(deadline, attempt);
+		};
+	}
+
+	/**
+	 * Если включены повторы ({@link RetryPolicy}), попытка повторяется после временных ошибок
+	 */
+	private <R> Supplier<CompletableFuture<R>> retrying(Supplier<CompletableFuture<R>> attempt, @Nullable Deadline deadline) {
+		return () -> {
+			RetryPolicy policy = VkModule.getRetryPolicy();
+			return policy == null ? attempt.get() : policy.execute(this, deadline, attempt);
+		};
+	}
+
+	/**
+	 * Запрос, общий для объединенных вызовов ({@link RequestCoalescer}). Отмена вызова прерывает только его собственный
+	 * http запрос, поэтому у общего запроса свое прерывание, которое срабатывает, когда объединитель отменяет запрос,
+	 * потому что его отменили все вызовы
+	 * @param request запрос с указанным прерыванием
+	 */
+	private <R> Supplier<CompletableFuture<R>> shared(Function<Cancellation, Supplier<CompletableFuture<R>>> request) {
+		return () -> {
+			Cancellation cancellation = new Cancellation();
+			return bound(request.apply(cancellation).get(), null, cancellation);
+		};
+	}
+
+	/**
+	 * Ограничивает задачу вызова сроком. Отмена задачи прерывает http запрос
+	 */
+	private <R> CompletableFuture<R> bound(CompletableFuture<R> future, @Nullable Deadline deadline, Cancellation cancellation) {
+		if (future.isDone()) return future;
+		return VkModule.getTimeouts().bound(future, deadline, cancellation, callAdress);
+	}
+
+	/**
+	 * @param headers http headers вызова
+	 * @return кэш ответов, если ответ этого вызова можно в нем хранить, иначе null
+	 */
+	@Nullable
+	private ResponseCache getResponseCache(Header[] headers) {
+		ResponseCache cache = VkModule.getResponseCache();
+		if (cache == null || headers.length > 0 || cache.getCacheTime(this) <= 0) return null;
+		return cache;
+	}
+
+	/**
+	 * @param headers http headers вызова
+	 * @return объединитель одинаковых запросов, если этот вызов можно объединять, иначе null
+	 */
+	@Nullable
+	private RequestCoalescer getCoalescer(Header[] headers) {
+		RequestCoalescer coalescer = VkModule.getRequestCoalescer();
+		if (coalescer == null || headers.length > 0 || !isIdempotent()) return null;
+		return coalescer;
+	}
+
+	private void checkParams(ParamsSet<T> params) {
 		Preconditions.checkNotNull(params, "params");
 		Preconditions.checkNotNull(params.getToken(), "token");
 		Preconditions.checkArgument(isTokenAllowed(params.getToken()),
 				"Token type " + params.getToken().getType().name() + " is not allowed for method " + callAdress);
+	}
+
+	/**
+	 * Выполняет http запрос к вк апи в текущем потоке
+	 * @param pars параметры без токена и версии апи
+	 * @param token токен
+	 * @param version версия апи
+	 * @param deadline срок вызова или null
+	 * @param cancellation отмена вызова
+	 * @param headers http headers
+	 * @return ответ от вк апи или null, если ответа нет
+	 * @throws UncheckedIOException при ошибке соединения, если срок истек или вызов отменен
+	 */
+	private String request(List<NameValuePair> pars, AccessToken token, ApiVersion version, @Nullable Deadline deadline, Cancellation cancellation, Header...headers) {
+		try {
+			return execute(pars, token, version, deadline, cancellation, headers, (status, body) -> {
+				byte[] data;
+				if (body == null) {
+					data = new byte[0];
+				} else {
+					data = ByteStreams.toByteArray(body);
+				}
+				int bytesl = data.length;
+				if (bytesl>0) {
+					return new String(data, StandardCharsets.UTF_8);
+				}else {
+					return null;
+				}
+			});
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Выполняет http запрос к вк апи в текущем потоке и читает ответ прямо из потока
+	 * @param pars параметры без токена и версии апи
+	 * @param token токен
+	 * @param version версия апи
+	 * @param deadline срок вызова или null
+	 * @param cancellation отмена вызова
+	 * @param reader чтение поля response
+	 * @param headers http headers
+	 * @return результат
+	 * @throws VkApiException если вк вернул ошибку
+	 * @throws UncheckedIOException при ошибке соединения, если срок истек или вызов отменен
+	 */
+	private <R> R request(List<NameValuePair> pars, AccessToken token, ApiVersion version, @Nullable Deadline deadline,
+						  Cancellation cancellation, ResponseReader<R> reader, Header...headers) {
+		try {
+			return execute(pars, token, version, deadline, cancellation, headers, (status, body) -> {
+				if (body == null) {
+					throw new IOException("Empty answer for method " + getCallAdress());
+				}
+				return ResponseReader.readAnswer(new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8)), reader);
+			});
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private <R> R execute(List<NameValuePair> pars, AccessToken token, ApiVersion version, @Nullable Deadline deadline,
+						  Cancellation cancellation, Header[] headers, HttpTransport.BodyHandler<R> handler) throws IOException {
+		if (deadline != null && deadline.isExpired()) {
+			throw new SocketTimeoutException("Deadline exceeded for method " + getCallAdress());
+		}
 		String adr = "https://api.vk.com/method/" + getCallAdress();
+
+		// Request parameters and other properties.
+		TransportRequest request;
+		if (pars instanceof PreparedRequest.EncodedParams) {
+			// параметры подготовленного запроса уже закодированы, дописываются только параметры вызова
+			request = new TransportRequest("POST", adr, ((PreparedRequest.EncodedParams) pars).encode(token, version), TransportRequest.FORM);
+		} else {
+			pars = new ArrayList<>(pars);
+			pars.add(new BasicNameValuePair("access_token", token.getValue()));
+			pars.add(new BasicNameValuePair("v", version.getText()));
+			request = TransportRequest.form(adr, pars);
+		}
+		request.setTimeout(deadline == null ? 0 : Math.max(1, deadline.remaining(TimeUnit.MILLISECONDS)));
+		for (Header h : headers) {
+			request.setHeader(h.name, h.value);
+		}
+
+		// Execute and read the response
+		HttpTransport.TransportCall call = VkModule.getTransport().newCall(request);
+		cancellation.attach(call);
+		ScheduledFuture<?> abort = deadline == null ? null : VkModule.getTimeouts().abortAt(deadline, cancellation);
 		try {
-			RequestConfig globalConfig = RequestConfig.custom()
-	                .setCookieSpec(CookieSpecs.DEFAULT)
-	                .build();
-			HttpClient httpclient = HttpClients.custom()
-	                .setDefaultRequestConfig(globalConfig)
-	                .build();
-	        RequestConfig localConfig = RequestConfig.copy(globalConfig)
-	                .setCookieSpec(CookieSpecs.STANDARD)
-	                .build();
-			HttpPost httppost = new HttpPost(adr);
-			for (Header h : headers) {
-				httppost.setHeader(h.name, h.value);
+			return call.execute(handler);
+		} catch (IOException ex) {
+			if (deadline != null && deadline.isExpired()) {
+				SocketTimeoutException timeout = new SocketTimeoutException("Deadline exceeded for method " + getCallAdress());
+				timeout.initCause(ex);
+				throw timeout;
 			}
-			httppost.setConfig(localConfig);
-			
-
-			// Request parameters and other properties.
-			List<NameValuePair> pars = params.getParams();
-			pars.add(new BasicNameValuePair("access_token", params.getToken().getValue()));
-			pars.add(new BasicNameValuePair("v", params.getVersion().getText()));
-			httppost.setEntity(new UrlEncodedFormEntity(pars, "UTF-8"));
-			
-
-			// Execute and get the response.
-			HttpResponse response = httpclient.execute(httppost);
-			HttpEntity entity = response.getEntity();
-
-			byte[] data;
-			if (entity == null) {
-				data = new byte[0];
-			} else {
-				data = EntityUtils.toByteArray(entity);
+			if (cancellation.isCancelled()) {
+				InterruptedIOException cancelled = new InterruptedIOException("Call of method " + getCallAdress() + " cancelled");
+				cancelled.initCause(ex);
+				throw cancelled;
 			}
-			int bytesl = data.length;
-	        if (bytesl>0) {
-				return new String(data, StandardCharsets.UTF_8);
-	        }else {
-	        	return null;
-	        }
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			System.out.println(adr);
+			throw ex;
+		} finally {
+			if (abort != null) abort.cancel(false);
+			cancellation.detach(call);
 		}
-		return null;
 	}
 
 	/**
 	 * Запускает выполнение этого метода и не дожидается ответа от вк апи<br>
 	 * Задача создается в {@link ForkJoinPool#commonPool()}<br> 
+	 * Если включен планировщик запросов ({@link RequestScheduler}), вызов ждет своей очереди для этого токена<br>
+	 * Если включено объединение запросов ({@link ExecuteBatcher}), вызов может быть отправлен в составе execute<br>
+	 * Если ответ есть в кэше ({@link ResponseCache}), задача завершается сразу<br>
+	 * Если такой же вызов уже выполняется ({@link RequestCoalescer}), задача получит его ответ<br>
+	 * Если срок вызова ({@link Timeouts}) истек, задача завершается с {@link TimeoutException}. Отмена задачи прерывает http запрос<br>
+	 * Если цепь {@link CircuitBreaker} для метода и токена разомкнута, задача сразу завершается с {@link CircuitOpenException}<br>
+	 * Если одновременных вызовов больше предела {@link ConcurrencyLimiter}, вызов ждет в его очереди<br>
 	 * @param params параметры
 	 * @param headers http headers
 	 * @return запущенная задача
 	 */
 	public CompletableFuture<String> call(ParamsSet<T> params, Header...headers){
-		return CompletableFuture.supplyAsync(() -> callAwait(params, headers));
+		checkParams(params);
+		Deadline deadline = VkModule.getTimeouts().getDeadline(params);
+		Cancellation cancellation = new Cancellation();
+		return bound(call(params, deadline, cancellation, headers), deadline, cancellation);
+	}
+
+	private CompletableFuture<String> call(ParamsSet<T> params, @Nullable Deadline deadline, Cancellation cancellation, Header...headers){
+		List<NameValuePair> pars = params.getParams();
+		ResponseCache cache = getResponseCache(headers);
+		RequestCoalescer coalescer = getCoalescer(headers);
+		String key = cache != null || coalescer != null ? ResponseCache.key(this, pars, params.getToken(), params.getVersion()) : null;
+		if (cache != null) {
+			String cached = cache.get(key);
+			if (cached != null) return CompletableFuture.completedFuture(cached);
+		}
+		ExecuteBatcher batcher = VkModule.getExecuteBatcher();
+		Supplier<CompletableFuture<String>> request;
+		if (batcher != null && headers.length == 0 && isBatchable()) {
+			// размыкатель, ограничение одновременных вызовов и статистика токена применяются к самому запросу execute.
+			// Если бы вызов внутри execute тоже занимал место в ограничителе, execute мог бы ждать места,
+			// которое освободится только после его же ответа
+			request = retrying(pooled(token -> () -> batcher.submit(this, pars, token, params.getVersion()), params.getToken()), deadline);
+		} else {
+			Function<Cancellation, Supplier<CompletableFuture<String>>> attempt = own -> attempts(token -> () ->
+					request(pars, token, params.getVersion(), deadline, own, headers), params.getToken(), deadline, false);
+			request = coalescer == null ? attempt.apply(cancellation) : shared(attempt);
+		}
+		CompletableFuture<String> future = coalescer == null ? request.get() : coalescer.submit(key, request);
+		if (cache != null) {
+			future = future.whenComplete((s, t) -> {
+				if (t == null) cache.put(key, this, pars, s);
+			});
+		}
+		return future;
 	}
 
 	/**
@@ -123,7 +504,34 @@ public abstract class Method<T extends Method<T>> {
 	 * @return запущенная задача
 	 */
 	public CompletableFuture<String> call(ParamsSet<T> params, BiConsumer<? super String, ? super Throwable> consumer, Header...headers){
-		return CompletableFuture.supplyAsync(() -> callAwait(params, headers)).whenComplete(consumer);
+		return call(params, headers).whenComplete(consumer);
+	}
+
+	/**
+	 * Запускает выполнение этого метода и не дожидается ответа от вк апи<br>
+	 * Ответ читается прямо из потока при помощи reader. Если вк вернул ошибку, задача завершается с {@link VkApiException}<br>
+	 * Одинаковые одновременные вызовы ({@link RequestCoalescer}) получают один общий ответ, и каждый читает его своим reader<br>
+	 * @param params параметры
+	 * @param reader чтение поля response
+	 * @param headers http headers
+	 * @param <R> тип результата
+	 * @return запущенная задача
+	 */
+	public <R> CompletableFuture<R> call(ParamsSet<T> params, ResponseReader<R> reader, Header...headers){
+		checkParams(params);
+		Preconditions.checkNotNull(reader, "reader");
+		List<NameValuePair> pars = params.getParams();
+		Deadline deadline = VkModule.getTimeouts().getDeadline(params);
+		Cancellation cancellation = new Cancellation();
+		ExecuteBatcher batcher = VkModule.getExecuteBatcher();
+		if (getResponseCache(headers) != null || getCoalescer(headers) != null
+				|| (batcher != null && headers.length == 0 && isBatchable())) {
+			// объединенные вызовы делят один ответ строкой, и каждый читает его своим reader
+			return bound(call(params, deadline, cancellation, headers).thenApply(s -> ResponseReader.readAnswer(s, reader)), deadline, cancellation);
+		}
+		Supplier<CompletableFuture<R>> request = attempts(token -> () ->
+				request(pars, token, params.getVersion(), deadline, cancellation, reader, headers), params.getToken(), deadline, false);
+		return bound(request.get(), deadline, cancellation);
 	}
 	
 	public static class Header{
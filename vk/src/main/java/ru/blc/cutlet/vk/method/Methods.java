@@ -1,6 +1,7 @@
 package ru.blc.cutlet.vk.method;
 
 import ru.blc.cutlet.vk.method.board.Board;
+import ru.blc.cutlet.vk.method.docs.Docs;
 import ru.blc.cutlet.vk.method.groups.Groups;
 import ru.blc.cutlet.vk.method.messages.Messages;
 import ru.blc.cutlet.vk.method.photos.Photos;
@@ -9,7 +10,9 @@ import ru.blc.cutlet.vk.method.wall.Wall;
 
 public class Methods extends MethodStore {
 
+	public Execute execute = new Execute();
 	public Board board = new Board();
+	public Docs docs = new Docs();
 	public Groups groups = new Groups();
 	public Messages messages = new Messages();
 	public Photos photos = new Photos();
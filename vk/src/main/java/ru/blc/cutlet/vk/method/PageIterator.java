@@ -0,0 +1,196 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import ru.blc.objconfig.ConfigurationSection;
+import ru.blc.objconfig.json.JsonConfiguration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Постраничное чтение списков (offset/count) с предзагрузкой.<br>
+ * Как только страница получена, запрос следующей страницы отправляется сразу,
+ * поэтому сеть работает, пока вызывающий обрабатывает текущую страницу.
+ * {@link #close()} прекращает чтение, запрос заранее запрошенной страницы при этом прерывается
+ * @param <E> тип элементов
+ */
+public class PageIterator<E> implements Iterator<E>, AutoCloseable {
+
+    private final ParamsSet<?> template;
+    private final int pageSize;
+    private final Function<ConfigurationSection, Page<E>> decoder;
+    private int offset;
+    private Iterator<E> current = Collections.emptyIterator();
+    private CompletableFuture<Page<E>> next;
+    private CompletableFuture<String> request;
+    private boolean exhausted;
+    private boolean closed;
+
+    /**
+     * @param template параметры метода. Параметры offset и count заменяются для каждой страницы, сам набор не изменяется
+     * @param offset с какого элемента начинать
+     * @param pageSize элементов на странице, обычно максимальное для метода
+     * @param decoder чтение страницы из поля response
+     */
+    public PageIterator(ParamsSet<?> template, int offset, int pageSize, Function<ConfigurationSection, Page<E>> decoder) {
+        Preconditions.checkNotNull(template, "template");
+        Preconditions.checkNotNull(template.getToken(), "token");
+        Preconditions.checkArgument(pageSize > 0, "page size should be more than zero");
+        Preconditions.checkNotNull(decoder, "decoder");
+        this.template = template;
+        this.offset = offset;
+        this.pageSize = pageSize;
+        this.decoder = decoder;
+        this.next = load(offset);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (closed || exhausted) return false;
+            Page<E> page;
+            try {
+                page = next.join();
+            } catch (CompletionException e) {
+                closed = true;
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+            offset += page.getItems().size();
+            if (page.getItems().isEmpty() || offset >= page.getTotal()) {
+                exhausted = true;
+                next = null;
+            } else {
+                next = load(offset);
+            }
+            current = page.getItems().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    /**
+     * @return поток элементов. Закрытие потока прекращает чтение
+     */
+    public Stream<E> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Прекращает чтение. Уже полученные элементы текущей страницы больше не возвращаются
+     */
+    @Override
+    public void close() {
+        closed = true;
+        current = Collections.emptyIterator();
+        if (next != null) {
+            // отмена задачи вызова прерывает http запрос, отмена задачи страницы только отбросила бы ответ
+            request.cancel(false);
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    private CompletableFuture<Page<E>> load(int offset) {
+        request = withPage(template, offset, pageSize).call();
+        return request.thenApply(answer -> decoder.apply(response(answer)));
+    }
+
+    /**
+     * Создает набор параметров с теми же параметрами, токеном и версией апи, но с другими offset и count
+     * @param template исходные параметры
+     * @param offset смещение
+     * @param count количество
+     * @param <T> метод
+     * @return новый набор параметров
+     */
+    public static <T extends Method<T>> ParamsSet<T> withPage(ParamsSet<T> template, int offset, int count) {
+        List<NameValuePair> params = new ArrayList<>();
+        for (NameValuePair pair : template.getParams()) {
+            if (!pair.getName().equals("offset") && !pair.getName().equals("count")) params.add(pair);
+        }
+        if (offset != 0) params.add(new BasicNameValuePair("offset", String.valueOf(offset)));
+        params.add(new BasicNameValuePair("count", String.valueOf(count)));
+        ParamsSet<T> page = new ParamsSet<T>(template.getMethod(), template.getToken(), template.getVersion()) {
+            @Override
+            public List<NameValuePair> getParams() {
+                return params;
+            }
+        };
+        page.setTimeout(template.getTimeout(), TimeUnit.MILLISECONDS).setDeadline(template.getDeadline());
+        return page;
+    }
+
+    /**
+     * @param answer ответ вк
+     * @return поле response
+     * @throws VkApiException если вк вернул ошибку
+     */
+    static ConfigurationSection response(String answer) {
+        if (answer == null) throw new VkApiException(0, "Empty answer");
+        JsonConfiguration json = JsonConfiguration.loadConfiguration(answer);
+        if (json.hasValue("error")) {
+            throw new VkApiException(json.getInt("error.error_code"), json.getString("error.error_msg"));
+        }
+        return json.getConfigurationSection("response");
+    }
+
+    /**
+     * Одна страница списка
+     * @param <E> тип элементов
+     */
+    public static class Page<E> {
+        private final int total;
+        private final List<E> items;
+
+        public Page(int total, List<E> items) {
+            this.total = total;
+            this.items = items;
+        }
+
+        /**
+         * @return количество элементов во всем списке
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public List<E> getItems() {
+            return items;
+        }
+
+        /**
+         * Читает страницу формата {count, items}
+         * @param response поле response
+         * @param item чтение элемента
+         * @param <E> тип элементов
+         * @return страница
+         */
+        public static <E> Page<E> load(ConfigurationSection response, Function<ConfigurationSection, E> item) {
+            List<E> items = new ArrayList<>();
+            for (ConfigurationSection section : response.getConfigurationSectionList("items")) {
+                items.add(item.apply(section));
+            }
+            return new Page<>(response.getInt("count"), items);
+        }
+    }
+}
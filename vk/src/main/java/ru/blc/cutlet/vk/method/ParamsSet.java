@@ -2,6 +2,7 @@ package ru.blc.cutlet.vk.method;
 
 import com.google.common.base.Preconditions;
 import org.apache.http.NameValuePair;
+import org.jetbrains.annotations.Nullable;
 import ru.blc.cutlet.vk.AccessToken;
 import ru.blc.cutlet.vk.ApiVersion;
 import ru.blc.validate.Validate;
@@ -10,12 +11,15 @@ import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 public abstract class ParamsSet<T extends Method<T>> {
 
 	private ApiVersion version;
 	private AccessToken token;
+	private long timeout;
+	private Deadline deadline;
 	private final Method<T> method;
 	
 	public ParamsSet(Method<T> method) {
@@ -33,6 +37,10 @@ public abstract class ParamsSet<T extends Method<T>> {
 		this.setVersion(version);
 	}
 
+	public Method<T> getMethod() {
+		return method;
+	}
+
 	public ApiVersion getVersion() {
 		if (version==null) {
 			return ApiVersion.LAST;
@@ -60,11 +68,57 @@ public abstract class ParamsSet<T extends Method<T>> {
 		return this;
 	}
 
+	/**
+	 * @return миллисекунд на вызов, 0 - время по умолчанию для метода ({@link Timeouts})
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Заменяет время по умолчанию для метода на этот вызов.<br>
+	 * Время отсчитывается от начала вызова, включая ожидание в очереди
+	 * @param timeout время, 0 - время по умолчанию для метода
+	 * @param unit единица времени
+	 * @return этот набор параметров
+	 */
+	public ParamsSet<T> setTimeout(long timeout, TimeUnit unit) {
+		Preconditions.checkArgument(timeout >= 0, "timeout can not be negative");
+		this.timeout = unit.toMillis(timeout);
+		return this;
+	}
+
+	@Nullable
+	public Deadline getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Устанавливает срок, к которому вызов должен завершиться, например срок обработки входящего события
+	 * ({@link Deadline#current()}). Действует вместе с временем вызова: срабатывает более ранний
+	 * @param deadline срок или null
+	 * @return этот набор параметров
+	 */
+	public ParamsSet<T> setDeadline(@Nullable Deadline deadline) {
+		this.deadline = deadline;
+		return this;
+	}
+
 	@Deprecated
 	public String toPostString(){return "";};
 
 	public abstract List<NameValuePair> getParams();
 
+	/**
+	 * Кодирует текущие параметры один раз для многократных вызовов из любых потоков.<br>
+	 * Дальнейшие изменения этого набора не влияют на подготовленный запрос. Параметры отправляются как есть:
+	 * например, длинный текст {@link ru.blc.cutlet.vk.method.messages.Send} не делится на части
+	 * @return неизменяемый запрос
+	 */
+	public PreparedRequest<T> prepare() {
+		return new PreparedRequest<>(this);
+	}
+
 	/**
 	 * Вызывает метод и ожидает результат от вк<br>
 	 * @return Ответ от вк api
@@ -75,9 +129,24 @@ public abstract class ParamsSet<T extends Method<T>> {
 		return method.callAwait(this);
 	}
 
+	/**
+	 * Вызывает метод и ожидает результат от вк<br>
+	 * Ответ читается прямо из потока при помощи reader
+	 * @param reader чтение поля response
+	 * @param <R> тип результата
+	 * @return результат
+	 * @throws NullPointerException если не установлен токен ({@link ParamsSet#setToken(AccessToken)})
+	 * @throws VkApiException если вк вернул ошибку
+	 */
+	public <R> R callAwait(ResponseReader<R> reader) {
+		Preconditions.checkNotNull(getToken(), "token");
+		return method.callAwait(this, reader);
+	}
+
 	/**
 	 * Вызывает метод и не дожидается ответа от вк апи<br>
 	 * Задача создается в {@link ForkJoinPool#commonPool()}<br>
+	 * Отмена задачи прерывает http запрос<br>
 	 * @param headers http headers
 	 * @return запущенная задача
 	 * @throws NullPointerException если не установлен токен ({@link ParamsSet#setToken(AccessToken)})
@@ -100,6 +169,20 @@ public abstract class ParamsSet<T extends Method<T>> {
 		return method.call(this, consumer, headers);
 	}
 
+	/**
+	 * Вызывает метод и не дожидается ответа от вк апи<br>
+	 * Ответ читается прямо из потока при помощи reader. Если вк вернул ошибку, задача завершается с {@link VkApiException}<br>
+	 * @param reader чтение поля response
+	 * @param headers http headers
+	 * @param <R> тип результата
+	 * @return запущенная задача
+	 * @throws NullPointerException если не установлен токен ({@link ParamsSet#setToken(AccessToken)})
+	 */
+	public <R> CompletableFuture<R> call(ResponseReader<R> reader, Method.Header...headers){
+		Preconditions.checkNotNull(getToken(), "token");
+		return method.call(this, reader, headers);
+	}
+
 	public static String collectionToString(Collection<?> c) {
 		StringBuilder sb = new StringBuilder();
 		int i = 0;
@@ -0,0 +1,191 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.ApiVersion;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Неизменяемый запрос, параметры которого закодированы один раз.<br>
+ * Создается из набора параметров через {@link ParamsSet#prepare()} и может использоваться из разных потоков
+ * сколько угодно раз: каждый вызов ({@link #newCall()}) дописывает к готовым байтам только свои параметры,
+ * например получателя, и параметры, которые должны быть новыми для каждого вызова ({@link Method#getPerCallParams()}).
+ * Так одно сообщение с клавиатурой отправляется многим получателям без повторной сборки и кодирования
+ */
+public final class PreparedRequest<T extends Method<T>> {
+
+    private final Method<T> method;
+    private final ApiVersion version;
+    @Nullable
+    private final AccessToken token;
+    private final long timeout;
+    private final List<NameValuePair> params;
+    private final Set<String> names;
+    private final byte[] encoded;
+
+    PreparedRequest(ParamsSet<T> source) {
+        this.method = source.getMethod();
+        this.version = source.getVersion();
+        this.token = source.getToken();
+        this.timeout = source.getTimeout();
+        Set<String> perCall = new HashSet<>();
+        for (NameValuePair pair : method.getPerCallParams()) {
+            perCall.add(pair.getName());
+        }
+        List<NameValuePair> list = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (NameValuePair pair : source.getParams()) {
+            if (perCall.contains(pair.getName())) continue;
+            list.add(pair);
+            names.add(pair.getName());
+        }
+        this.params = Collections.unmodifiableList(list);
+        this.names = Collections.unmodifiableSet(names);
+        this.encoded = URLEncodedUtils.format(list, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Method<T> getMethod() {
+        return method;
+    }
+
+    public ApiVersion getVersion() {
+        return version;
+    }
+
+    /**
+     * @return токен из исходного набора параметров или null
+     */
+    @Nullable
+    public AccessToken getToken() {
+        return token;
+    }
+
+    /**
+     * @return закодированные заранее параметры
+     */
+    public List<NameValuePair> getParams() {
+        return params;
+    }
+
+    /**
+     * @return новый вызов этого запроса с токеном и временем вызова из исходного набора параметров
+     */
+    public Call newCall() {
+        return new Call();
+    }
+
+    /**
+     * Вызывает запрос без дополнительных параметров
+     * @param token токен
+     * @return запущенная задача
+     */
+    public CompletableFuture<String> call(AccessToken token) {
+        return newCall().setToken(token).call();
+    }
+
+    /**
+     * Один вызов подготовленного запроса. Создается на каждый вызов и не должен использоваться из разных потоков
+     */
+    public final class Call extends ParamsSet<T> {
+
+        private final List<NameValuePair> extra = new ArrayList<>(4);
+
+        private Call() {
+            super(method, token, version);
+            setTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Добавляет параметр только для этого вызова
+         * @param name имя параметра, которого нет среди закодированных заранее
+         * @param value значение
+         * @return этот вызов
+         * @throws IllegalArgumentException если параметр уже есть в запросе
+         */
+        public Call set(String name, Object value) {
+            Preconditions.checkNotNull(name, "name");
+            Preconditions.checkNotNull(value, "value");
+            Preconditions.checkArgument(!names.contains(name), "Parameter %s is already set in prepared request", name);
+            extra.add(new BasicNameValuePair(name, String.valueOf(value)));
+            return this;
+        }
+
+        /**
+         * @return параметры вызова. Закодированные заранее параметры не кодируются повторно при отправке
+         */
+        @Override
+        public List<NameValuePair> getParams() {
+            List<NameValuePair> own = new ArrayList<>(extra);
+            for (NameValuePair pair : method.getPerCallParams()) {
+                if (!isSet(pair.getName())) own.add(pair);
+            }
+            return new EncodedParams(PreparedRequest.this, own);
+        }
+
+        private boolean isSet(String name) {
+            for (NameValuePair pair : extra) {
+                if (pair.getName().equals(name)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Параметры подготовленного запроса и вызова. Для кеша и execute выглядят как обычный список,
+     * при отправке закодированная часть берется готовой
+     */
+    static final class EncodedParams extends AbstractList<NameValuePair> {
+
+        private final PreparedRequest<?> request;
+        private final List<NameValuePair> own;
+
+        private EncodedParams(PreparedRequest<?> request, List<NameValuePair> own) {
+            this.request = request;
+            this.own = own;
+        }
+
+        @Override
+        public NameValuePair get(int index) {
+            int prepared = request.params.size();
+            return index < prepared ? request.params.get(index) : own.get(index - prepared);
+        }
+
+        @Override
+        public int size() {
+            return request.params.size() + own.size();
+        }
+
+        /**
+         * @param token токен
+         * @param version версия апи
+         * @return тело запроса
+         */
+        byte[] encode(AccessToken token, ApiVersion version) {
+            List<NameValuePair> tail = new ArrayList<>(own.size() + 2);
+            tail.addAll(own);
+            tail.add(new BasicNameValuePair("access_token", token.getValue()));
+            tail.add(new BasicNameValuePair("v", version.getText()));
+            byte[] prefix = request.encoded;
+            byte[] suffix = URLEncodedUtils.format(tail, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+            if (prefix.length == 0) return suffix;
+            byte[] body = new byte[prefix.length + 1 + suffix.length];
+            System.arraycopy(prefix, 0, body, 0, prefix.length);
+            body[prefix.length] = '&';
+            System.arraycopy(suffix, 0, body, prefix.length + 1, suffix.length);
+            return body;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Объединяет одинаковые запросы, которые выполняются одновременно.<br>
+ * Пока запрос с тем же ключом не получил ответ, новые вызовы не идут в сеть, а получают ответ первого запроса.
+ * После ответа ключ освобождается, поэтому следующий вызов снова выполнит запрос.<br>
+ * Если все вызывающие отменили свои задачи или перестали ждать, общий запрос отменяется
+ */
+public class RequestCoalescer {
+
+    private final Map<Object, Shared<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Выполняет запрос или присоединяется к такому же запросу, который уже выполняется
+     * @param key ключ запроса, одинаковый для одинаковых запросов
+     * @param request запуск запроса, вызывается в текущем потоке, только если такого запроса еще нет
+     * @param <R> тип ответа
+     * @return задача, которая завершится ответом. У каждого вызывающего своя задача, поэтому ее отмена не затрагивает других,
+     * пока хотя бы один вызывающий ждет ответа
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> submit(Object key, Supplier<CompletableFuture<R>> request) {
+        Preconditions.checkNotNull(key, "key");
+        Preconditions.checkNotNull(request, "request");
+        while (true) {
+            Shared<R> shared = new Shared<>(key);
+            shared.subscribe();
+            Shared<R> existing = (Shared<R>) inFlight.putIfAbsent(key, shared);
+            if (existing != null) {
+                if (!existing.subscribe()) {
+                    // запрос уже отменен, но еще не убран
+                    inFlight.remove(key, existing);
+                    continue;
+                }
+                coalesced.incrementAndGet();
+                return subscriber(existing);
+            }
+            requests.incrementAndGet();
+            CompletableFuture<R> future;
+            try {
+                future = request.get();
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            shared.request = future;
+            future.whenComplete((r, t) -> {
+                inFlight.remove(key, shared);
+                if (t != null) shared.answer.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                else shared.answer.complete(r);
+            });
+            return subscriber(shared);
+        }
+    }
+
+    /**
+     * @return количество запросов, ожидающих ответа
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return количество запросов, отправленных в сеть
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return количество вызовов, получивших ответ чужого запроса
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    private <R> CompletableFuture<R> subscriber(Shared<R> shared) {
+        CompletableFuture<R> copy = new CompletableFuture<>();
+        shared.answer.whenComplete((r, t) -> {
+            if (t != null) copy.completeExceptionally(t);
+            else copy.complete(r);
+        });
+        copy.whenComplete((r, t) -> {
+            // вызывающий отменил задачу или перестал ждать раньше ответа
+            if (!shared.answer.isDone()) unsubscribe(shared);
+        });
+        return copy;
+    }
+
+    private void unsubscribe(Shared<?> shared) {
+        CompletableFuture<?> request;
+        synchronized (shared) {
+            if (--shared.subscribers > 0 || shared.request == null) return;
+            shared.abandoned = true;
+            request = shared.request;
+        }
+        inFlight.remove(shared.key, shared);
+        request.cancel(false);
+    }
+
+    private static class Shared<R> {
+        private final Object key;
+        private final CompletableFuture<R> answer = new CompletableFuture<>();
+        private volatile CompletableFuture<R> request;
+        private int subscribers;
+        private boolean abandoned;
+
+        private Shared(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * @return false, если запрос уже отменен
+         */
+        private synchronized boolean subscribe() {
+            if (abandoned) return false;
+            subscribers++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.AccessToken;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Очередь запросов к вк апи для каждого токена.<br>
+ * Запросы отправляются не чаще разрешенного для типа токена количества в секунду (token bucket).<br>
+ * Планировщик может сам повторять ответы с ошибкой 6 (слишком много запросов), ставя их в начало очереди токена
+ * с увеличивающейся задержкой. По умолчанию повторов нет: ошибку 6 повторяет {@link RetryPolicy}, расходуя бюджет повторов,
+ * а два слоя повторов умножали бы количество запросов
+ */
+public class RequestScheduler implements Closeable {
+
+    public static final int TOO_MANY_REQUESTS = 6;
+
+    private final Map<AccessToken.AccessTokenType, Double> rates = new EnumMap<>(AccessToken.AccessTokenType.class);
+    private final Map<String, TokenQueue> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private int maxRetries = 0;
+    private long retryDelay = 300L;
+
+    public RequestScheduler() {
+        rates.put(AccessToken.AccessTokenType.GROUP, 20D);
+        rates.put(AccessToken.AccessTokenType.USER, 3D);
+        rates.put(AccessToken.AccessTokenType.SERVICE, 3D);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "VK request scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param type тип токена
+     * @return сколько запросов в секунду разрешено для этого типа токена
+     */
+    public double getRate(AccessToken.AccessTokenType type) {
+        return rates.get(type);
+    }
+
+    /**
+     * Устанавливает количество запросов в секунду для токенов указанного типа.<br>
+     * Действует на очереди, созданные после вызова
+     * @param type тип токена
+     * @param rate запросов в секунду
+     * @return этот планировщик
+     */
+    public RequestScheduler setRate(AccessToken.AccessTokenType type, double rate) {
+        Preconditions.checkNotNull(type, "type");
+        Preconditions.checkArgument(rate > 0, "rate should be more than zero");
+        rates.put(type, rate);
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries сколько раз повторять запрос, получивший ошибку 6. 0 - не повторять
+     * @return этот планировщик
+     */
+    public RequestScheduler setMaxRetries(int maxRetries) {
+        Preconditions.checkArgument(maxRetries >= 0, "retries can not be negative");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * @param retryDelay задержка перед первым повтором в миллисекундах, каждый следующий повтор ждет вдвое дольше
+     * @return этот планировщик
+     */
+    public RequestScheduler setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+        return this;
+    }
+
+    /**
+     * Ставит запрос в очередь токена
+     * @param token токен
+     * @param request запрос, выполняемый в {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     * @param <R> тип ответа
+     * @return задача, которая завершится ответом вк
+     */
+    public <R> CompletableFuture<R> schedule(AccessToken token, Supplier<R> request) {
+        Preconditions.checkNotNull(request, "request");
+        return scheduleAsync(token, () -> CompletableFuture.supplyAsync(request));
+    }
+
+    /**
+     * Ставит запрос в очередь токена. В отличие от {@link #schedule(AccessToken, Supplier)} запрос сам запускает
+     * свою задачу и вызывается в потоке планировщика, поэтому не должен блокировать поток
+     * @param token токен
+     * @param request запуск запроса
+     * @param <R> тип ответа
+     * @return задача, которая завершится ответом вк
+     */
+    public <R> CompletableFuture<R> scheduleAsync(AccessToken token, Supplier<CompletableFuture<R>> request) {
+        Preconditions.checkNotNull(token, "token");
+        Preconditions.checkNotNull(request, "request");
+        Task<R> task = new Task<>(request);
+        queues.computeIfAbsent(token.getValue(), t -> new TokenQueue(getRate(token.getType()))).add(task, false);
+        return task.future;
+    }
+
+    /**
+     * @param token токен
+     * @return количество запросов, ожидающих отправки с этим токеном
+     */
+    public int getQueueSize(AccessToken token) {
+        TokenQueue queue = queues.get(token.getValue());
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @return количество запросов, ожидающих отправки со всеми токенами
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (TokenQueue queue : queues.values()) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+    }
+
+    /**
+     * @param answer ответ вк
+     * @param error ошибка выполнения запроса
+     * @return код ошибки вк или 0, если ответ без ошибки
+     */
+    static int getErrorCode(Object answer, Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof VkApiException) {
+            return ((VkApiException) error).getErrorCode();
+        }
+        return answer instanceof String ? getErrorCode((String) answer) : 0;
+    }
+
+    /**
+     * Ответ разбирается только если он начинается с ключа error, поэтому проверка обычного ответа ничего не стоит
+     * @param answer ответ вк
+     * @return код ошибки из ответа или 0, если ответ без ошибки
+     */
+    public static int getErrorCode(@Nullable String answer) {
+        if (answer == null) return 0;
+        int i = skipWhitespace(answer, 0);
+        if (i >= answer.length() || answer.charAt(i) != '{') return 0;
+        if (!answer.startsWith("\"error\"", skipWhitespace(answer, i + 1))) return 0;
+        try {
+            JsonElement error = JsonParser.parseString(answer).getAsJsonObject().get("error");
+            if (error == null || !error.isJsonObject()) return 0;
+            JsonObject e = error.getAsJsonObject();
+            return e.has("error_code") ? e.get("error_code").getAsInt() : 0;
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static int skipWhitespace(String s, int from) {
+        while (from < s.length() && Character.isWhitespace(s.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private static class Task<R> {
+        private final Supplier<CompletableFuture<R>> request;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private int attempt;
+
+        private Task(Supplier<CompletableFuture<R>> request) {
+            this.request = request;
+        }
+    }
+
+    private class TokenQueue {
+        private final double rate;
+        private final double capacity;
+        private final Deque<Task<?>> queue = new ArrayDeque<>();
+        private double permits;
+        private long lastRefill = System.nanoTime();
+        private boolean drainScheduled;
+
+        private TokenQueue(double rate) {
+            this.rate = rate;
+            this.capacity = Math.max(1, rate);
+            this.permits = capacity;
+        }
+
+        private synchronized int size() {
+            return queue.size();
+        }
+
+        private void add(Task<?> task, boolean first) {
+            synchronized (this) {
+                if (first) queue.addFirst(task);
+                else queue.addLast(task);
+            }
+            drain();
+        }
+
+        private void drain() {
+            synchronized (this) {
+                long now = System.nanoTime();
+                permits = Math.min(capacity, permits + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+                lastRefill = now;
+                while (!queue.isEmpty() && permits >= 1) {
+                    permits -= 1;
+                    run(queue.poll());
+                }
+                if (queue.isEmpty() || drainScheduled) return;
+                drainScheduled = true;
+                long wait = (long) Math.ceil((1 - permits) / rate * TimeUnit.SECONDS.toNanos(1));
+                timer.schedule(() -> {
+                    synchronized (this) {
+                        drainScheduled = false;
+                    }
+                    drain();
+                }, wait, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private <R> void run(Task<R> task) {
+            CompletableFuture<R> started;
+            try {
+                started = task.request.get();
+            } catch (Throwable t) {
+                started = new CompletableFuture<>();
+                started.completeExceptionally(t);
+            }
+            started.whenComplete((s, t) -> {
+                if (task.attempt < maxRetries && getErrorCode(s, t) == TOO_MANY_REQUESTS) {
+                    long delay = retryDelay << task.attempt;
+                    task.attempt++;
+                    timer.schedule(() -> add(task, true), delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (t != null) {
+                    task.future.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                    return;
+                }
+                task.future.complete(s);
+            });
+        }
+    }
+}
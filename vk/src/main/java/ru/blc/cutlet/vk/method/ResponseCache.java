@@ -0,0 +1,246 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.NameValuePair;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.ApiVersion;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Кэш ответов методов, которые только читают данные ({@link Method#getCacheTime()} больше нуля).<br>
+ * Ключ - метод, отсортированные параметры, токен и версия апи. Хранит не больше maxSize ответов,
+ * при переполнении вытесняет ответ, к которому дольше всех не обращались.
+ * Ответы с ошибкой не кэшируются
+ */
+public class ResponseCache {
+
+    private static final Comparator<NameValuePair> PARAMS_ORDER = Comparator.comparing(NameValuePair::getName)
+            .thenComparing(NameValuePair::getValue, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final int maxSize;
+    private final Map<String, Integer> cacheTimes = new ConcurrentHashMap<>();
+    private Function<String, Integer> cacheTimeSource = method -> -1;
+    private final LinkedHashMap<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize максимальное количество ответов в кэше
+     */
+    public ResponseCache(int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "max size should be more than zero");
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= ResponseCache.this.maxSize) return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Устанавливает время хранения ответов метода вместо {@link Method#getCacheTime()}
+     * @param method адрес метода, например users.get
+     * @param seconds сколько секунд хранить ответ, 0 чтобы не кэшировать метод
+     * @return этот кэш
+     */
+    public ResponseCache setCacheTime(String method, int seconds) {
+        Preconditions.checkNotNull(method, "method");
+        Preconditions.checkArgument(seconds >= 0, "cache time can not be negative");
+        cacheTimes.put(method, seconds);
+        return this;
+    }
+
+    /**
+     * Устанавливает источник времени хранения ответов, например конфигурацию.<br>
+     * Источник спрашивается один раз для каждого метода, отрицательное значение означает {@link Method#getCacheTime()}
+     * @param cacheTimeSource адрес метода -> сколько секунд хранить ответ
+     * @return этот кэш
+     */
+    public ResponseCache setCacheTimeSource(Function<String, Integer> cacheTimeSource) {
+        Preconditions.checkNotNull(cacheTimeSource, "cacheTimeSource");
+        this.cacheTimeSource = cacheTimeSource;
+        cacheTimes.clear();
+        return this;
+    }
+
+    /**
+     * @param method метод
+     * @return сколько секунд хранить ответы метода, 0 если метод не кэшируется
+     */
+    public int getCacheTime(Method<?> method) {
+        int time = cacheTimes.computeIfAbsent(method.getCallAdress(), cacheTimeSource);
+        return time < 0 ? method.getCacheTime() : time;
+    }
+
+    /**
+     * @param method метод
+     * @param params параметры без токена и версии апи
+     * @param token токен
+     * @param version версия апи
+     * @return ключ вызова, не зависящий от порядка параметров
+     */
+    public static String key(Method<?> method, List<NameValuePair> params, AccessToken token, ApiVersion version) {
+        List<NameValuePair> sorted = new ArrayList<>(params);
+        sorted.sort(PARAMS_ORDER);
+        StringBuilder key = new StringBuilder(method.getCallAdress()).append('?');
+        for (NameValuePair pair : sorted) {
+            key.append(pair.getName()).append('=').append(pair.getValue()).append('&');
+        }
+        return key.append("v=").append(version.getText()).append('#').append(token.getValue()).toString();
+    }
+
+    /**
+     * @param key ключ вызова
+     * @return сохраненный ответ или null, если его нет или время хранения истекло
+     */
+    @Nullable
+    public String get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                return entry.answer;
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Сохраняет ответ вк. Пустые ответы и ответы с ошибкой не сохраняются
+     * @param key ключ вызова
+     * @param method метод
+     * @param params параметры без токена и версии апи
+     * @param answer ответ вк
+     */
+    public void put(String key, Method<?> method, List<NameValuePair> params, @Nullable String answer) {
+        int time = getCacheTime(method);
+        if (time <= 0 || answer == null || answer.startsWith("{\"error\"")) {
+            return;
+        }
+        Entry entry = new Entry(method.getCallAdress(), params, answer, System.nanoTime() + TimeUnit.SECONDS.toNanos(time));
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Удаляет все ответы метода
+     * @param method метод
+     */
+    public void invalidate(Method<?> method) {
+        synchronized (entries) {
+            entries.values().removeIf(e -> e.method.equals(method.getCallAdress()));
+        }
+    }
+
+    /**
+     * Удаляет ответы метода, вызванного с указанным значением параметра.<br>
+     * Для параметров со списком через запятую достаточно, чтобы значение было в списке
+     * @param method метод
+     * @param param название параметра
+     * @param value значение параметра
+     */
+    public void invalidate(Method<?> method, String param, String value) {
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.method.equals(method.getCallAdress()) && entry.hasParam(param, value)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Удаляет все ответы
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return количество вызовов, получивших ответ из кэша
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return количество вызовов, ответа на которые не было в кэше
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return количество ответов, вытесненных из-за переполнения
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return доля вызовов, получивших ответ из кэша
+     */
+    public double getHitRate() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    private static class Entry {
+        private final String method;
+        private final List<NameValuePair> params;
+        private final String answer;
+        private final long expiresAt;
+
+        private Entry(String method, List<NameValuePair> params, String answer, long expiresAt) {
+            this.method = method;
+            this.params = params;
+            this.answer = answer;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean hasParam(String name, String value) {
+            for (NameValuePair pair : params) {
+                if (!pair.getName().equals(name) || pair.getValue() == null) continue;
+                for (String v : pair.getValue().split(",")) {
+                    if (v.trim().equals(value)) return true;
+                }
+            }
+            return false;
+        }
+    }
+}
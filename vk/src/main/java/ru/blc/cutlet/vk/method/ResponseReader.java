@@ -0,0 +1,95 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Читает значение поля response из ответа вк апи прямо из потока, без промежуточной строки
+ * @param <R> тип результата
+ */
+@FunctionalInterface
+public interface ResponseReader<R> {
+
+    ResponseReader<Integer> INTEGER = JsonReader::nextInt;
+    ResponseReader<Long> LONG = JsonReader::nextLong;
+    ResponseReader<String> STRING = JsonReader::nextString;
+    ResponseReader<Boolean> BOOLEAN = reader -> reader.peek() == JsonToken.BOOLEAN ? reader.nextBoolean() : reader.nextInt() == 1;
+    ResponseReader<JsonElement> TREE = JsonParser::parseReader;
+
+    /**
+     * Читает значение. Поток стоит на начале значения поля response
+     * @param reader поток json
+     * @return результат
+     * @throws IOException при ошибке чтения
+     */
+    R read(JsonReader reader) throws IOException;
+
+    /**
+     * @param element чтение одного элемента
+     * @param <E> тип элемента
+     * @return чтение json массива в список
+     */
+    static <E> ResponseReader<List<E>> listOf(ResponseReader<E> element) {
+        return reader -> {
+            List<E> result = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                result.add(element.read(reader));
+            }
+            reader.endArray();
+            return result;
+        };
+    }
+
+    /**
+     * Читает уже полученный ответ вк апи
+     * @param answer ответ
+     * @param reader чтение поля response
+     * @param <R> тип результата
+     * @return результат
+     * @throws VkApiException если вк вернул ошибку
+     * @throws UncheckedIOException если ответа нет или он не разобран
+     */
+    static <R> R readAnswer(String answer, ResponseReader<R> reader) {
+        try {
+            if (answer == null) {
+                throw new IOException("Empty answer");
+            }
+            return readAnswer(new JsonReader(new StringReader(answer)), reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Читает весь ответ вк апи
+     * @param json поток ответа
+     * @param reader чтение поля response
+     * @param <R> тип результата
+     * @return результат
+     * @throws VkApiException если вк вернул ошибку
+     * @throws IOException при ошибке чтения или если в ответе нет ни response, ни error
+     */
+    static <R> R readAnswer(JsonReader json, ResponseReader<R> reader) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("response")) {
+                return reader.read(json);
+            }
+            if (name.equals("error")) {
+                throw VkApiException.read(json);
+            }
+            json.skipValue();
+        }
+        throw new IOException("Answer contains neither response nor error");
+    }
+}
@@ -0,0 +1,276 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Повтор вызовов после временных ошибок.<br>
+ * Задержка перед повтором растет вдвое с каждой попыткой и выбирается случайно от нуля до этого значения (full jitter),
+ * чтобы повторы разных вызовов не приходили одновременно.<br>
+ * Ошибки вк делятся на два вида: {@link #setRejectedCodes(Set) отклоненные} - вызов не выполнялся, его можно повторить всегда,
+ * и {@link #setTransientCodes(Set) временные} - вызов мог выполниться, поэтому он повторяется, только если повтор
+ * безопасен ({@link Method#isRetrySafe()}). То же для ошибок соединения: если соединение не установлено, повтор безопасен,
+ * если оборвалось после отправки - только для безопасных методов.<br>
+ * Бюджет повторов ограничивает их долю от всех вызовов, поэтому при долгом сбое вк повторы не умножают нагрузку
+ */
+public class RetryPolicy implements Closeable {
+
+    private final ScheduledExecutorService timer;
+    private int maxAttempts = 3;
+    private long baseDelay = 200L;
+    private long maxDelay = 5000L;
+    private Set<Integer> rejectedCodes = ConcurrentHashMap.newKeySet();
+    private Set<Integer> transientCodes = ConcurrentHashMap.newKeySet();
+    private final Budget budget = new Budget(0.1D, 10D);
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder budgetRejected = new LongAdder();
+
+    public RetryPolicy() {
+        rejectedCodes.add(6);
+        rejectedCodes.add(9);
+        transientCodes.add(1);
+        transientCodes.add(10);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "VK retry timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts сколько всего попыток, включая первую. 1 - без повторов
+     * @return this
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        Preconditions.checkArgument(maxAttempts > 0, "max attempts should be more than zero");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * @param baseDelay наибольшая задержка перед первым повтором в миллисекундах
+     * @return this
+     */
+    public RetryPolicy setBaseDelay(long baseDelay) {
+        Preconditions.checkArgument(baseDelay >= 0, "delay can not be negative");
+        this.baseDelay = baseDelay;
+        return this;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @param maxDelay наибольшая задержка перед любым повтором в миллисекундах
+     * @return this
+     */
+    public RetryPolicy setMaxDelay(long maxDelay) {
+        Preconditions.checkArgument(maxDelay >= 0, "delay can not be negative");
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * @return коды ошибок, с которыми вк отклоняет вызов, не выполняя его
+     */
+    public Set<Integer> getRejectedCodes() {
+        return Collections.unmodifiableSet(rejectedCodes);
+    }
+
+    /**
+     * @param codes коды ошибок, с которыми вк отклоняет вызов, не выполняя его. По умолчанию 6 и 9
+     * @return this
+     */
+    public RetryPolicy setRejectedCodes(Set<Integer> codes) {
+        Set<Integer> set = ConcurrentHashMap.newKeySet();
+        set.addAll(codes);
+        this.rejectedCodes = set;
+        return this;
+    }
+
+    /**
+     * @param codes коды временных ошибок, после которых вызов мог выполниться. По умолчанию 1 и 10
+     * @return this
+     */
+    public RetryPolicy setTransientCodes(Set<Integer> codes) {
+        Set<Integer> set = ConcurrentHashMap.newKeySet();
+        set.addAll(codes);
+        this.transientCodes = set;
+        return this;
+    }
+
+    /**
+     * @param ratio сколько повторов разрешено на один вызов, например 0.1 - один повтор на десять вызовов
+     * @param reserve сколько повторов разрешено сверх доли, например сразу после включения
+     * @return this
+     */
+    public RetryPolicy setBudget(double ratio, double reserve) {
+        budget.set(ratio, reserve);
+        return this;
+    }
+
+    /**
+     * Выполняет вызов, повторяя его после временных ошибок
+     * @param method метод
+     * @param deadline срок вызова или null. Повтор, который не успеет до срока, не делается
+     * @param attempt одна попытка вызова
+     * @param <R> тип ответа
+     * @return задача, которая завершится ответом последней попытки
+     */
+    public <R> CompletableFuture<R> execute(Method<?> method, @Nullable Deadline deadline, Supplier<CompletableFuture<R>> attempt) {
+        Preconditions.checkNotNull(method, "method");
+        Preconditions.checkNotNull(attempt, "attempt");
+        budget.deposit();
+        CompletableFuture<R> result = new CompletableFuture<>();
+        run(method, deadline, attempt, result, 1);
+        return result;
+    }
+
+    private <R> void run(Method<?> method, @Nullable Deadline deadline, Supplier<CompletableFuture<R>> attempt,
+                         CompletableFuture<R> result, int number) {
+        if (result.isDone()) return;
+        CompletableFuture<R> future;
+        try {
+            future = attempt.get();
+        } catch (Throwable t) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(t);
+        }
+        future.whenComplete((answer, t) -> {
+            Throwable error = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (!result.isDone() && number < maxAttempts && shouldRetry(method, answer, error)) {
+                long delay = delay(number);
+                if (deadline == null || deadline.remaining(TimeUnit.MILLISECONDS) > delay) {
+                    if (budget.withdraw()) {
+                        retries.increment();
+                        timer.schedule(() -> CompletableFuture.runAsync(() -> run(method, deadline, attempt, result, number + 1)),
+                                delay, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    budgetRejected.increment();
+                }
+                exhausted.increment();
+            }
+            if (error != null) result.completeExceptionally(error);
+            else result.complete(answer);
+        });
+    }
+
+    /**
+     * @param method метод
+     * @param answer ответ вк или null
+     * @param error ошибка попытки или null
+     * @return можно ли повторить попытку
+     */
+    public boolean shouldRetry(Method<?> method, @Nullable Object answer, @Nullable Throwable error) {
+        if (error instanceof UncheckedIOException) error = error.getCause();
+        if (error instanceof IOException) {
+            if (isNotConnected((IOException) error)) return true;
+            return !(error instanceof InterruptedIOException) && method.isRetrySafe();
+        }
+        int code = RequestScheduler.getErrorCode(answer, error);
+        if (code == 0) return false;
+        if (rejectedCodes.contains(code)) return true;
+        return transientCodes.contains(code) && method.isRetrySafe();
+    }
+
+    private static boolean isNotConnected(IOException error) {
+        return error instanceof ConnectTimeoutException
+                || error instanceof ConnectException
+                || error instanceof UnknownHostException
+                || error instanceof NoHttpResponseException;
+    }
+
+    private long delay(int attempt) {
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @return сколько повторов сделано
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * @return сколько вызовов завершились ошибкой, которую можно было бы повторить, но попытки, время или бюджет кончились
+     */
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    /**
+     * @return сколько повторов не сделано из-за бюджета
+     */
+    public long getBudgetRejectedCount() {
+        return budgetRejected.sum();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+    }
+
+    /**
+     * Каждый вызов добавляет ratio повторов, каждый повтор тратит один. Накопить можно не больше reserve
+     */
+    private static class Budget {
+        private double ratio;
+        private double reserve;
+        private double balance;
+
+        private Budget(double ratio, double reserve) {
+            set(ratio, reserve);
+            this.balance = reserve;
+        }
+
+        private synchronized void set(double ratio, double reserve) {
+            Preconditions.checkArgument(ratio >= 0, "ratio can not be negative");
+            Preconditions.checkArgument(reserve >= 1, "reserve should be at least one");
+            this.ratio = ratio;
+            this.reserve = reserve;
+            this.balance = Math.min(balance, reserve);
+        }
+
+        private synchronized void deposit() {
+            balance = Math.min(reserve, balance + ratio);
+        }
+
+        private synchronized boolean withdraw() {
+            if (balance < 1) return false;
+            balance -= 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Сроки вызовов методов.<br>
+ * Срок вызова - самый ранний из: срока, заданного в {@link ParamsSet}, срока потока ({@link Deadline#current()})
+ * и времени по умолчанию для метода. Если срок истек, задача вызова завершается с {@link TimeoutException},
+ * а http запрос прерывается. Так зависший сервер вк не держит потоки бесконечно
+ */
+public class Timeouts implements Closeable {
+
+    private final ScheduledExecutorService timer;
+    private final Map<String, Long> timeouts = new ConcurrentHashMap<>();
+    private long defaultTimeout = 30000L;
+    private Function<String, Long> timeoutSource = method -> -1L;
+
+    public Timeouts() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "VK deadline timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return миллисекунд на вызов метода, для которого время не задано, 0 - без ограничения
+     */
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    public Timeouts setDefaultTimeout(long defaultTimeout) {
+        Preconditions.checkArgument(defaultTimeout >= 0, "timeout can not be negative");
+        this.defaultTimeout = defaultTimeout;
+        return this;
+    }
+
+    /**
+     * Заменяет время по умолчанию для метода
+     * @param method адрес метода, например messages.send
+     * @param timeout миллисекунд, 0 - без ограничения
+     * @return this
+     */
+    public Timeouts setTimeout(String method, long timeout) {
+        Preconditions.checkArgument(timeout >= 0, "timeout can not be negative");
+        timeouts.put(method, timeout);
+        return this;
+    }
+
+    /**
+     * @param timeoutSource время для метода по его адресу, отрицательное значение - не задано.
+     *                      Результат запоминается для каждого метода
+     * @return this
+     */
+    public Timeouts setTimeoutSource(Function<String, Long> timeoutSource) {
+        Preconditions.checkNotNull(timeoutSource, "timeoutSource");
+        this.timeoutSource = timeoutSource;
+        timeouts.clear();
+        return this;
+    }
+
+    /**
+     * @param method метод
+     * @return миллисекунд на вызов метода, 0 - без ограничения
+     */
+    public long getTimeout(Method<?> method) {
+        long timeout = timeouts.computeIfAbsent(method.getCallAdress(), timeoutSource);
+        if (timeout >= 0) return timeout;
+        return method.getTimeout() > 0 ? method.getTimeout() : defaultTimeout;
+    }
+
+    /**
+     * @param params параметры вызова
+     * @return срок вызова или null, если вызов не ограничен
+     */
+    @Nullable
+    public Deadline getDeadline(ParamsSet<?> params) {
+        Deadline deadline = Deadline.earliest(params.getDeadline(), Deadline.current());
+        long timeout = params.getTimeout() > 0 ? params.getTimeout() : getTimeout(params.getMethod());
+        if (timeout > 0) {
+            deadline = Deadline.earliest(deadline, Deadline.after(timeout, TimeUnit.MILLISECONDS));
+        }
+        return deadline;
+    }
+
+    /**
+     * Завершает задачу с {@link TimeoutException}, если она не завершилась к сроку.
+     * Отмена задачи или истекший срок прерывают http запрос
+     * @param future задача вызова
+     * @param deadline срок или null
+     * @param cancellation http запрос вызова
+     * @param method адрес метода для сообщения об ошибке
+     * @param <R> тип результата
+     * @return та же задача
+     */
+    <R> CompletableFuture<R> bound(CompletableFuture<R> future, @Nullable Deadline deadline, Cancellation cancellation, String method) {
+        ScheduledFuture<?> expire = deadline == null ? null : timer.schedule(() -> {
+            if (future.completeExceptionally(new TimeoutException("Deadline exceeded for method " + method))) {
+                cancellation.cancel();
+            }
+        }, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        future.whenComplete((r, t) -> {
+            if (future.isCancelled()) cancellation.cancel();
+            if (expire != null) expire.cancel(false);
+        });
+        return future;
+    }
+
+    /**
+     * Прерывает запрос по истечении срока, даже если соединение еще читает ответ
+     * @param deadline срок
+     * @param cancellation http запрос
+     * @return задача прерывания, которую нужно отменить после завершения запроса
+     */
+    ScheduledFuture<?> abortAt(Deadline deadline, Cancellation cancellation) {
+        return timer.schedule(cancellation::cancel, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void close() {
+        timer.shutdown();
+    }
+}
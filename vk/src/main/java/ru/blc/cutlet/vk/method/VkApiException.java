@@ -0,0 +1,60 @@
+package ru.blc.cutlet.vk.method;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Ошибка, которую вернул вк апи
+ */
+public class VkApiException extends RuntimeException {
+
+    private final int errorCode;
+    private final String errorMsg;
+
+    public VkApiException(int errorCode, String errorMsg) {
+        super("Error " + errorCode + ": " + errorMsg);
+        this.errorCode = errorCode;
+        this.errorMsg = errorMsg;
+    }
+
+    /**
+     * @return код ошибки. Описание кодов <a href="https://vk.com/dev/errors">https://vk.com/dev/errors</a>
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return описание ошибки от вк
+     */
+    public String getErrorMsg() {
+        return errorMsg;
+    }
+
+    /**
+     * Читает объект error из ответа вк апи
+     * @param reader поток, стоящий на начале объекта error
+     * @return ошибка
+     * @throws IOException при ошибке чтения
+     */
+    public static VkApiException read(JsonReader reader) throws IOException {
+        int code = 0;
+        String msg = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "error_code":
+                    code = reader.nextInt();
+                    break;
+                case "error_msg":
+                    msg = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new VkApiException(code, msg);
+    }
+}
@@ -4,6 +4,7 @@ import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
 import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.PageIterator;
 import ru.blc.cutlet.vk.method.ParamsSet;
 import ru.blc.cutlet.vk.objects.main.TopicComment;
 import ru.blc.cutlet.vk.objects.media.Poll;
@@ -12,9 +13,12 @@ import ru.blc.objconfig.json.JsonConfiguration;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class GetComments extends Method<GetComments> {
 
+	public static final int MAX_COUNT = 100;
+
 	public GetComments() {
 		super("board.getComments", AccessTokenType.USER);
 	}
@@ -24,6 +28,11 @@ public class GetComments extends Method<GetComments> {
 		return new GetCommentsParamsSet(this);
 	}
 
+	@Override
+	public boolean isIdempotent() {
+		return true;
+	}
+
 	public static class GetCommentsParamsSet extends ParamsSet<GetComments> {
 
 		private int groupId, topicId;
@@ -50,6 +59,22 @@ public class GetComments extends Method<GetComments> {
 			return params;
 		}
 
+		/**
+		 * Читает комментарии, начиная с offset, страницами по 100.<br>
+		 * Следующая страница запрашивается, пока обрабатывается текущая. Этот набор параметров не изменяется
+		 * @return комментарии
+		 */
+		public PageIterator<TopicComment> iterator() {
+			return new PageIterator<>(this, getOffset(), MAX_COUNT, r -> PageIterator.Page.load(r, TopicComment::load));
+		}
+
+		/**
+		 * @return поток комментариев, см. {@link #iterator()}
+		 */
+		public Stream<TopicComment> stream() {
+			return iterator().stream();
+		}
+
 		public int getGroupId() {
 			return groupId;
 		}
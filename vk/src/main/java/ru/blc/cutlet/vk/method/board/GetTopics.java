@@ -4,6 +4,7 @@ import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
 import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.PageIterator;
 import ru.blc.cutlet.vk.method.ParamsSet;
 import ru.blc.cutlet.vk.objects.main.Topic;
 import ru.blc.objconfig.ConfigurationSection;
@@ -11,9 +12,12 @@ import ru.blc.objconfig.json.JsonConfiguration;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class GetTopics extends Method<GetTopics> {
 
+	public static final int MAX_COUNT = 100;
+
 	public GetTopics() {
 		super("board.getTopics", AccessTokenType.USER);
 	}
@@ -23,6 +27,11 @@ public class GetTopics extends Method<GetTopics> {
 		return new GetTopicsParamsSet(this);
 	}
 
+	@Override
+	public int getCacheTime() {
+		return 60;
+	}
+
 	public static class GetTopicsParamsSet extends ParamsSet<GetTopics>{
 		
 		private int groupId;
@@ -49,6 +58,22 @@ public class GetTopics extends Method<GetTopics> {
 			return params;
 		}
 
+		/**
+		 * Читает темы, начиная с offset, страницами по 100.<br>
+		 * Следующая страница запрашивается, пока обрабатывается текущая. Этот набор параметров не изменяется
+		 * @return темы
+		 */
+		public PageIterator<Topic> iterator() {
+			return new PageIterator<>(this, offset == null ? 0 : offset, MAX_COUNT, r -> PageIterator.Page.load(r, Topic::load));
+		}
+
+		/**
+		 * @return поток тем, см. {@link #iterator()}
+		 */
+		public Stream<Topic> stream() {
+			return iterator().stream();
+		}
+
 		public int getGroupId() {
 			return groupId;
 		}
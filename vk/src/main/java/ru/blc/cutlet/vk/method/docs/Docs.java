@@ -0,0 +1,10 @@
+package ru.blc.cutlet.vk.method.docs;
+
+import ru.blc.cutlet.vk.method.MethodStore;
+
+public class Docs extends MethodStore {
+
+	public GetMessagesUploadServer getMessagesUploadServer = new GetMessagesUploadServer();
+	public Save save = new Save();
+
+}
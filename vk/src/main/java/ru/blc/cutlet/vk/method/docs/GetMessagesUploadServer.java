@@ -0,0 +1,62 @@
+package ru.blc.cutlet.vk.method.docs;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
+import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.ParamsSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class GetMessagesUploadServer extends Method<GetMessagesUploadServer> {
+
+	public GetMessagesUploadServer() {
+		super("docs.getMessagesUploadServer", AccessTokenType.USER, AccessTokenType.GROUP);
+	}
+
+	@Override
+	public GetMessagesUploadServerParamsSet getNewParamsSet() {
+		return new GetMessagesUploadServerParamsSet(this);
+	}
+
+	public static class GetMessagesUploadServerParamsSet extends ParamsSet<GetMessagesUploadServer> {
+
+		private int peerId;
+		private String type;
+
+		public GetMessagesUploadServerParamsSet(Method<GetMessagesUploadServer> method) {
+			super(method);
+		}
+
+		@Override
+		public List<NameValuePair> getParams() {
+			List<NameValuePair> params = new ArrayList<NameValuePair>();
+			params.add(new BasicNameValuePair("peer_id", String.valueOf(getPeerId())));
+			if (getType() != null) params.add(new BasicNameValuePair("type", getType()));
+			return params;
+		}
+
+		public int getPeerId() {
+			return peerId;
+		}
+
+		public GetMessagesUploadServerParamsSet setPeerId(int peerId) {
+			this.peerId = peerId;
+			return this;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @param type doc (по умолчанию), audio_message или graffiti
+		 * @return этот набор параметров
+		 */
+		public GetMessagesUploadServerParamsSet setType(String type) {
+			this.type = type;
+			return this;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package ru.blc.cutlet.vk.method.docs;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
+import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.ParamsSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Save extends Method<Save> {
+
+	public Save() {
+		super("docs.save", AccessTokenType.USER, AccessTokenType.GROUP);
+	}
+
+	@Override
+	public SaveParamsSet getNewParamsSet() {
+		return new SaveParamsSet(this);
+	}
+
+	public static class SaveParamsSet extends ParamsSet<Save> {
+
+		private String file, title, tags;
+
+		public SaveParamsSet(Method<Save> method) {
+			super(method);
+		}
+
+		@Override
+		public List<NameValuePair> getParams() {
+			List<NameValuePair> params = new ArrayList<NameValuePair>();
+			if (getFile() != null) params.add(new BasicNameValuePair("file", getFile()));
+			if (getTitle() != null) params.add(new BasicNameValuePair("title", getTitle()));
+			if (getTags() != null) params.add(new BasicNameValuePair("tags", getTags()));
+			return params;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public SaveParamsSet setFile(String file) {
+			this.file = file;
+			return this;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public SaveParamsSet setTitle(String title) {
+			this.title = title;
+			return this;
+		}
+
+		public String getTags() {
+			return tags;
+		}
+
+		public SaveParamsSet setTags(String tags) {
+			this.tags = tags;
+			return this;
+		}
+	}
+}
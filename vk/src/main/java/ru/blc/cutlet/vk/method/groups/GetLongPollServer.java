@@ -1,13 +1,16 @@
 package ru.blc.cutlet.vk.method.groups;
 
 import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonReader;
 import lombok.Getter;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import ru.blc.cutlet.vk.AccessToken;
 import ru.blc.cutlet.vk.method.Method;
 import ru.blc.cutlet.vk.method.ParamsSet;
+import ru.blc.cutlet.vk.method.ResponseReader;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,6 +20,11 @@ public class GetLongPollServer extends Method<GetLongPollServer> {
         super("groups.getLongPollServer", AccessToken.AccessTokenType.USER, AccessToken.AccessTokenType.GROUP);
     }
 
+    /**
+     * Чтение ответа groups.getLongPollServer
+     */
+    public static final ResponseReader<ServerData> SERVER_DATA = ServerData::read;
+
     @Override
     public GetLongPollServerParamSet getNewParamsSet() {
         return new GetLongPollServerParamSet(this);
@@ -44,4 +52,36 @@ public class GetLongPollServer extends Method<GetLongPollServer> {
             return this;
         }
     }
+
+    /**
+     * Данные для подключения к long poll серверу
+     */
+    @Getter
+    public static class ServerData {
+        private String key;
+        private String server;
+        private String ts;
+
+        public static ServerData read(JsonReader reader) throws IOException {
+            ServerData data = new ServerData();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "key":
+                        data.key = reader.nextString();
+                        break;
+                    case "server":
+                        data.server = reader.nextString();
+                        break;
+                    case "ts":
+                        data.ts = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return data;
+        }
+    }
 }
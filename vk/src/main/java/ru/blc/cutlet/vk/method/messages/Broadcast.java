@@ -0,0 +1,372 @@
+package ru.blc.cutlet.vk.method.messages;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.method.ParamsSet;
+import ru.blc.cutlet.vk.method.PreparedRequest;
+import ru.blc.cutlet.vk.method.VkApiException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Рассылка одного сообщения множеству получателей через messages.send с параметром peer_ids.<br>
+ * Получатели отправляются частями по {@link #MAX_PEERS}, частота запросов ограничивается
+ * планировщиком запросов ({@link ru.blc.cutlet.vk.method.RequestScheduler}).
+ * Для каждого получателя хранится результат доставки. Части, которые не удалось отправить целиком
+ * (ошибка соединения или ошибка вк на весь запрос), можно отправить повторно при помощи {@link #resume()}
+ * с тем же random_id, поэтому уже доставленные сообщения не повторятся
+ */
+public class Broadcast {
+
+    /**
+     * Максимальное количество получателей в одном messages.send
+     */
+    public static final int MAX_PEERS = 100;
+
+    public enum Status {
+        /**
+         * Отправка еще не завершена
+         */
+        PENDING,
+        /**
+         * Сообщение доставлено
+         */
+        SENT,
+        /**
+         * Вк отказался доставлять сообщение этому получателю
+         */
+        REJECTED,
+        /**
+         * Часть с этим получателем не удалось отправить, ее можно отправить повторно
+         */
+        FAILED
+    }
+
+    private final PreparedRequest<Send> template;
+    private final Iterator<Integer> peers;
+    private final int total;
+    private final Map<Integer, Delivery> deliveries = new ConcurrentHashMap<>();
+    private final Deque<Chunk> failedChunks = new ArrayDeque<>();
+    private final Deque<Chunk> retryChunks = new ArrayDeque<>();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private int parallelism = 1;
+    @Nullable private Consumer<Broadcast> progressListener;
+    private int inFlight;
+    private boolean filling;
+    private volatile boolean stopped;
+    private long startedAt;
+    private long finishedAt;
+    @Nullable private CompletableFuture<Broadcast> run;
+
+    /**
+     * @param template параметры сообщения. Получатели из него не используются
+     * @param peers получатели
+     */
+    public Broadcast(Send.SendParamsSet template, Collection<Integer> peers) {
+        this(template, peers.iterator(), peers.size());
+    }
+
+    /**
+     * @param template параметры сообщения. Получатели из него не используются
+     * @param peers получатели, читаются по мере отправки
+     */
+    public Broadcast(Send.SendParamsSet template, Iterator<Integer> peers) {
+        this(template, peers, -1);
+    }
+
+    private Broadcast(Send.SendParamsSet template, Iterator<Integer> peers, int total) {
+        Preconditions.checkNotNull(template, "template");
+        Preconditions.checkNotNull(template.getToken(), "token");
+        Preconditions.checkNotNull(peers, "peers");
+        this.template = template.copy()
+                .setUserId(null)
+                .setPeerId(null)
+                .setPeerIds((Integer[]) null)
+                .setChatId(null)
+                .setUserIds(null)
+                .setDomain(null)
+                .prepare();
+        this.peers = peers;
+        this.total = total;
+    }
+
+    /**
+     * @param parallelism сколько частей может ожидать ответа одновременно
+     * @return эта рассылка
+     */
+    public Broadcast setParallelism(int parallelism) {
+        Preconditions.checkArgument(parallelism > 0, "parallelism should be more than zero");
+        synchronized (this) {
+            this.parallelism = parallelism;
+        }
+        return this;
+    }
+
+    /**
+     * @param listener вызывается после обработки каждой части
+     * @return эта рассылка
+     */
+    public Broadcast onProgress(@Nullable Consumer<Broadcast> listener) {
+        this.progressListener = listener;
+        return this;
+    }
+
+    /**
+     * Запускает или продолжает рассылку
+     * @return задача, которая завершится, когда все получатели будут обработаны или рассылка будет остановлена
+     */
+    public synchronized CompletableFuture<Broadcast> start() {
+        if (run != null && !run.isDone()) return run;
+        stopped = false;
+        if (startedAt == 0) startedAt = System.nanoTime();
+        run = new CompletableFuture<>();
+        fill();
+        return run;
+    }
+
+    /**
+     * Повторно отправляет части, которые не удалось отправить, и продолжает рассылку
+     * @return задача, которая завершится, когда все получатели будут обработаны или рассылка будет остановлена
+     */
+    public synchronized CompletableFuture<Broadcast> resume() {
+        while (!failedChunks.isEmpty()) {
+            Chunk chunk = failedChunks.poll();
+            for (Integer peer : chunk.peers) {
+                deliveries.put(peer, Delivery.PENDING);
+            }
+            failed.addAndGet(-chunk.peers.size());
+            retryChunks.add(chunk);
+        }
+        return start();
+    }
+
+    /**
+     * Останавливает рассылку. Части, ожидающие ответа, будут обработаны.
+     * Продолжить рассылку можно при помощи {@link #start()}
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return общее количество получателей или -1, если оно неизвестно
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSentCount() {
+        return sent.get();
+    }
+
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return количество получателей, по которым уже известен результат
+     */
+    public int getProcessedCount() {
+        return sent.get() + rejected.get() + failed.get();
+    }
+
+    /**
+     * @return доля обработанных получателей от 0 до 1 или -1, если общее количество неизвестно
+     */
+    public double getProgress() {
+        if (total < 0) return -1;
+        return total == 0 ? 1 : (double) getProcessedCount() / total;
+    }
+
+    /**
+     * @return обработанных получателей в секунду с начала рассылки
+     */
+    public synchronized double getThroughput() {
+        if (startedAt == 0) return 0;
+        long end = run != null && run.isDone() ? finishedAt : System.nanoTime();
+        double seconds = (double) (end - startedAt) / TimeUnit.SECONDS.toNanos(1);
+        return seconds <= 0 ? 0 : getProcessedCount() / seconds;
+    }
+
+    /**
+     * @param peerId получатель
+     * @return результат доставки или null, если получатель еще не обрабатывался
+     */
+    @Nullable
+    public Delivery getDelivery(int peerId) {
+        return deliveries.get(peerId);
+    }
+
+    /**
+     * @return результаты доставки всех обработанных получателей
+     */
+    public Map<Integer, Delivery> getDeliveries() {
+        return Collections.unmodifiableMap(deliveries);
+    }
+
+    private void fill() {
+        // часть может завершиться прямо внутри send (например, при разомкнутой цепи),
+        // тогда ее место займет цикл ниже, а не вложенный вызов fill
+        if (filling) return;
+        filling = true;
+        try {
+            while (!stopped && inFlight < parallelism) {
+                Chunk chunk = nextChunk();
+                if (chunk == null) break;
+                inFlight++;
+                send(chunk);
+            }
+        } finally {
+            filling = false;
+        }
+        if (inFlight == 0 && run != null && !run.isDone()) {
+            finishedAt = System.nanoTime();
+            run.complete(this);
+        }
+    }
+
+    @Nullable
+    private Chunk nextChunk() {
+        if (!retryChunks.isEmpty()) return retryChunks.poll();
+        List<Integer> chunk = new ArrayList<>(MAX_PEERS);
+        while (chunk.size() < MAX_PEERS && peers.hasNext()) {
+            Integer peer = peers.next();
+            if (peer == null || deliveries.putIfAbsent(peer, Delivery.PENDING) != null) continue;
+            chunk.add(peer);
+        }
+        return chunk.isEmpty() ? null : new Chunk(chunk, Send.nextRandomId());
+    }
+
+    private void send(Chunk chunk) {
+        PreparedRequest<Send>.Call params = template.newCall()
+                .set("peer_ids", ParamsSet.collectionToString(chunk.peers))
+                .set("random_id", chunk.randomId);
+        CompletableFuture<List<Send.PeerResult>> future;
+        try {
+            future = params.call(Send.PEER_RESULTS);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((results, t) -> {
+            if (t != null) {
+                fail(chunk, t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            } else {
+                for (Send.PeerResult result : results) {
+                    if (!deliveries.containsKey(result.getPeerId())) continue;
+                    if (result.isSuccess()) {
+                        deliveries.put(result.getPeerId(), new Delivery(Status.SENT, result.getMessageId(), 0, null));
+                        sent.incrementAndGet();
+                    } else {
+                        deliveries.put(result.getPeerId(), new Delivery(Status.REJECTED, 0, result.getErrorCode(), result.getErrorDescription()));
+                        rejected.incrementAndGet();
+                    }
+                }
+                List<Integer> missing = new ArrayList<>();
+                for (Integer peer : chunk.peers) {
+                    if (deliveries.get(peer).getStatus() == Status.PENDING) missing.add(peer);
+                }
+                if (!missing.isEmpty()) {
+                    fail(new Chunk(missing, chunk.randomId), null);
+                }
+            }
+            Consumer<Broadcast> listener = progressListener;
+            if (listener != null) {
+                listener.accept(this);
+            }
+            synchronized (this) {
+                inFlight--;
+                fill();
+            }
+        });
+    }
+
+    private void fail(Chunk chunk, @Nullable Throwable error) {
+        int code = error instanceof VkApiException ? ((VkApiException) error).getErrorCode() : 0;
+        String description = error == null ? "No result for peer" : error.getMessage();
+        Delivery delivery = new Delivery(Status.FAILED, 0, code, description);
+        for (Integer peer : chunk.peers) {
+            deliveries.put(peer, delivery);
+        }
+        failed.addAndGet(chunk.peers.size());
+        synchronized (this) {
+            failedChunks.add(chunk);
+        }
+    }
+
+    /**
+     * Результат доставки сообщения одному получателю
+     */
+    public static class Delivery {
+
+        private static final Delivery PENDING = new Delivery(Status.PENDING, 0, 0, null);
+
+        private final Status status;
+        private final int messageId;
+        private final int errorCode;
+        @Nullable private final String errorDescription;
+
+        private Delivery(Status status, int messageId, int errorCode, @Nullable String errorDescription) {
+            this.status = status;
+            this.messageId = messageId;
+            this.errorCode = errorCode;
+            this.errorDescription = errorDescription;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return id отправленного сообщения или 0
+         */
+        public int getMessageId() {
+            return messageId;
+        }
+
+        /**
+         * @return код ошибки вк или 0
+         */
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        @Nullable
+        public String getErrorDescription() {
+            return errorDescription;
+        }
+    }
+
+    private static class Chunk {
+        private final List<Integer> peers;
+        private final int randomId;
+
+        private Chunk(List<Integer> peers, int randomId) {
+            this.peers = peers;
+            this.randomId = randomId;
+        }
+    }
+}
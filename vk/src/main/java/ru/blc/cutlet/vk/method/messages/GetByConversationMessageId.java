@@ -20,6 +20,11 @@ public class GetByConversationMessageId extends Method<GetByConversationMessageI
 		return new GetByConversationMessageIdParamsSet(this);
 	}
 
+	@Override
+	public boolean isIdempotent() {
+		return true;
+	}
+
 	public static class GetByConversationMessageIdParamsSet extends ParamsSet<GetByConversationMessageId> {
 
 		public GetByConversationMessageIdParamsSet(Method<GetByConversationMessageId> method) {
@@ -22,6 +22,11 @@ public class GetChat extends Method<GetChat> {
         return new GetChatParamsSet(this);
     }
 
+    @Override
+    public int getCacheTime() {
+        return 60;
+    }
+
     @Getter
     public static class GetChatParamsSet extends ParamsSet<GetChat>{
 
@@ -19,6 +19,11 @@ public class GetConversationMembers extends Method<GetConversationMembers>{
 	public GetConversationsParamsSet getNewParamsSet() {
 		return new GetConversationsParamsSet(this);
 	}
+
+	@Override
+	public int getCacheTime() {
+		return 60;
+	}
 	
 	public static class GetConversationsParamsSet extends ParamsSet<GetConversationMembers> {
 
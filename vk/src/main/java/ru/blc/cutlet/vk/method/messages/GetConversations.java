@@ -4,13 +4,19 @@ import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
 import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.PageIterator;
 import ru.blc.cutlet.vk.method.ParamsSet;
+import ru.blc.cutlet.vk.objects.main.Message;
+import ru.blc.objconfig.ConfigurationSection;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class GetConversations extends Method<GetConversations>{
 
+	public static final int MAX_COUNT = 200;
+
 	public GetConversations() {
 		super("messages.getConversations", AccessTokenType.GROUP, AccessTokenType.USER);
 	}
@@ -19,6 +25,11 @@ public class GetConversations extends Method<GetConversations>{
 	public GetConversationsParamsSet getNewParamsSet() {
 		return new GetConversationsParamsSet(this);
 	}
+
+	@Override
+	public boolean isIdempotent() {
+		return true;
+	}
 	
 	public static class GetConversationsParamsSet extends ParamsSet<GetConversations> {
 
@@ -47,6 +58,22 @@ public class GetConversations extends Method<GetConversations>{
 			if (getGroupId()!=0) params.add(new BasicNameValuePair("group_id", String.valueOf(getGroupId())));
 			return params;
 		}
+
+		/**
+		 * Читает беседы, начиная с offset, страницами по 200.<br>
+		 * Следующая страница запрашивается, пока обрабатывается текущая. Этот набор параметров не изменяется
+		 * @return беседы
+		 */
+		public PageIterator<ConversationItem> iterator() {
+			return new PageIterator<>(this, getOffset(), MAX_COUNT, r -> PageIterator.Page.load(r, ConversationItem::new));
+		}
+
+		/**
+		 * @return поток бесед, см. {@link #iterator()}
+		 */
+		public Stream<ConversationItem> stream() {
+			return iterator().stream();
+		}
 		
 		public int getOffset() {
 			return offset;
@@ -118,4 +145,35 @@ public class GetConversations extends Method<GetConversations>{
 		
 	}
 
+	/**
+	 * Беседа из ответа messages.getConversations вместе с последним сообщением
+	 */
+	public static class ConversationItem {
+
+		private final ConfigurationSection conversation;
+		private final Message lastMessage;
+
+		public ConversationItem(ConfigurationSection config) {
+			this.conversation = config.getConfigurationSection("conversation");
+			this.lastMessage = Message.load(config.getConfigurationSection("last_message"));
+		}
+
+		public int getPeerId() {
+			return conversation.getInt("peer.id");
+		}
+
+		/**
+		 * @return объект conversation из ответа вк
+		 */
+		public ConfigurationSection getConversation() {
+			return conversation;
+		}
+
+		/**
+		 * @return последнее сообщение или null
+		 */
+		public Message getLastMessage() {
+			return lastMessage;
+		}
+	}
 }
@@ -5,13 +5,18 @@ import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import ru.blc.cutlet.vk.AccessToken;
 import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.PageIterator;
 import ru.blc.cutlet.vk.method.ParamsSet;
+import ru.blc.cutlet.vk.objects.main.Message;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class GetHistory extends Method<GetHistory> {
 
+    public static final int MAX_COUNT = 200;
+
     public GetHistory() {
         super("messages.getHistory", AccessToken.AccessTokenType.USER, AccessToken.AccessTokenType.GROUP);
     }
@@ -21,6 +26,11 @@ public class GetHistory extends Method<GetHistory> {
         return new GetHistoryParamSet(this);
     }
 
+    @Override
+    public boolean isIdempotent() {
+        return true;
+    }
+
     public static class GetHistoryParamSet extends ParamsSet<GetHistory>{
 
         private int offset;
@@ -52,6 +62,22 @@ public class GetHistory extends Method<GetHistory> {
             return params;
         }
 
+        /**
+         * Читает историю, начиная с offset, страницами по 200 сообщений.<br>
+         * Следующая страница запрашивается, пока обрабатывается текущая. Этот набор параметров не изменяется
+         * @return сообщения
+         */
+        public PageIterator<Message> iterator() {
+            return new PageIterator<>(this, getOffset(), MAX_COUNT, r -> PageIterator.Page.load(r, Message::load));
+        }
+
+        /**
+         * @return поток сообщений, см. {@link #iterator()}
+         */
+        public Stream<Message> stream() {
+            return iterator().stream();
+        }
+
         public int getOffset() {
             return offset;
         }
@@ -66,7 +92,7 @@ public class GetHistory extends Method<GetHistory> {
         }
 
         public GetHistoryParamSet setCount(int count) {
-            Preconditions.checkArgument(count<=200, "200 is max count");
+            Preconditions.checkArgument(count<=MAX_COUNT, "200 is max count");
             this.count = count;
             return this;
         }
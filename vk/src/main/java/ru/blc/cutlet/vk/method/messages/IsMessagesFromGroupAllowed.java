@@ -20,6 +20,11 @@ public class IsMessagesFromGroupAllowed extends Method<IsMessagesFromGroupAllowe
 		return new IsMessagesFromGroupAllowedParamsSet(this);
 	}
 
+	@Override
+	public boolean isIdempotent() {
+		return true;
+	}
+
 	public static class IsMessagesFromGroupAllowedParamsSet extends ParamsSet<IsMessagesFromGroupAllowed> {
 
 		public IsMessagesFromGroupAllowedParamsSet(Method<IsMessagesFromGroupAllowed> method) {
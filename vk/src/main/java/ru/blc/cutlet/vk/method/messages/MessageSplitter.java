@@ -0,0 +1,83 @@
+package ru.blc.cutlet.vk.method.messages;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Делит длинный текст на части, которые вк примет в одном сообщении.<br>
+ * Часть заканчивается на переносе строки, если он есть во второй половине части, иначе на пробеле, иначе
+ * обрезается по длине. Суррогатные пары UTF-16 никогда не разрываются. Работает за линейное время
+ */
+public final class MessageSplitter {
+
+    /**
+     * Максимальная длина текста одного сообщения
+     */
+    public static final int MAX_LENGTH = 4096;
+
+    private MessageSplitter() {
+    }
+
+    /**
+     * @param text текст
+     * @return части не длиннее {@link #MAX_LENGTH}
+     */
+    public static List<String> split(String text) {
+        return split(text, MAX_LENGTH);
+    }
+
+    /**
+     * @param text текст
+     * @param limit максимальная длина части
+     * @return части не длиннее limit. Перенос строки или пробел, на котором текст разделен, в части не входит
+     */
+    public static List<String> split(String text, int limit) {
+        Preconditions.checkNotNull(text, "text");
+        Preconditions.checkArgument(limit > 1, "limit should be more than one");
+        List<String> parts = new ArrayList<>(text.length() / limit + 1);
+        int start = 0;
+        int length = text.length();
+        while (length - start > limit) {
+            int end = start + limit;
+            int min = start + limit / 2;
+            int cut = lastIndexOf(text, '\n', min, end);
+            if (cut < 0) {
+                cut = lastWhitespace(text, min, end);
+            }
+            int next;
+            if (cut < 0) {
+                cut = end;
+                if (Character.isHighSurrogate(text.charAt(cut - 1)) && Character.isLowSurrogate(text.charAt(cut))) {
+                    cut--;
+                }
+                next = cut;
+            } else {
+                next = cut + 1;
+            }
+            if (cut > start) {
+                parts.add(text.substring(start, cut));
+            }
+            start = next;
+        }
+        if (start < length) {
+            parts.add(text.substring(start));
+        }
+        return parts;
+    }
+
+    private static int lastIndexOf(String text, char c, int from, int to) {
+        for (int i = to; i >= from; i--) {
+            if (text.charAt(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private static int lastWhitespace(String text, int from, int to) {
+        for (int i = to; i >= from; i--) {
+            if (Character.isWhitespace(text.charAt(i))) return i;
+        }
+        return -1;
+    }
+}
@@ -1,18 +1,26 @@
 package ru.blc.cutlet.vk.method.messages;
 
+import com.google.gson.stream.JsonReader;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
 import ru.blc.cutlet.vk.method.Method;
 import ru.blc.cutlet.vk.method.ParamsSet;
+import ru.blc.cutlet.vk.method.RequestScheduler;
+import ru.blc.cutlet.vk.method.ResponseReader;
 import ru.blc.cutlet.vk.objects.main.keyboard.Keyboard;
 import ru.blc.cutlet.vk.objects.media.Attachment;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Send extends Method<Send> {
 
@@ -20,11 +28,47 @@ public class Send extends Method<Send> {
 		super("messages.send", AccessTokenType.USER, AccessTokenType.GROUP);
 	}
 
+	/**
+	 * Чтение ответа messages.send с параметром peer_ids
+	 */
+	public static final ResponseReader<List<PeerResult>> PEER_RESULTS = ResponseReader.listOf(PeerResult::read);
+
+	private static final AtomicInteger RANDOM_IDS = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
 	@Override
 	public SendParamsSet getNewParamsSet() {
 		return new SendParamsSet(this);
 	}
 
+	/**
+	 * Повтор безопасен: у каждого вызова свой random_id, и вк не отправит сообщение с ним второй раз
+	 */
+	@Override
+	public boolean isRetrySafe() {
+		return true;
+	}
+
+	/**
+	 * random_id подготовленного запроса ({@link ru.blc.cutlet.vk.method.PreparedRequest}) свой для каждого вызова
+	 */
+	@Override
+	public List<NameValuePair> getPerCallParams() {
+		return Collections.singletonList(new BasicNameValuePair("random_id", String.valueOf(nextRandomId())));
+	}
+
+	/**
+	 * Уникальный в пределах процесса random_id. Начальное значение случайно, поэтому после перезапуска
+	 * значения не совпадают с отправленными ранее
+	 * @return положительный random_id
+	 */
+	public static int nextRandomId() {
+		int id;
+		do {
+			id = RANDOM_IDS.incrementAndGet() & Integer.MAX_VALUE;
+		} while (id == 0);
+		return id;
+	}
+
 	public static class SendParamsSet extends ParamsSet<Send> {
 
 		public SendParamsSet(Method<Send> method) {
@@ -54,7 +98,7 @@ public class Send extends Method<Send> {
 		public List<NameValuePair> getParams() {
 			List<NameValuePair> params = new ArrayList<NameValuePair>();
 			if (getUserId() != null) params.add(new BasicNameValuePair("user_id", String.valueOf(getUserId())));
-			params.add(new BasicNameValuePair("random_id", String.valueOf(getRandomId())));
+			params.add(new BasicNameValuePair("random_id", String.valueOf(getRandomId() != 0 ? getRandomId() : nextRandomId())));
 			if (getPeerId() != null) params.add(new BasicNameValuePair("peer_id", String.valueOf(getPeerId())));
 			if (getPeerIds() != null) params.add(new BasicNameValuePair("peer_ids", collectionToString(Arrays.asList(getPeerIds()))));
 			if (getDomain() != null) params.add(new BasicNameValuePair("domain", getDomain()));
@@ -77,21 +121,107 @@ public class Send extends Method<Send> {
 			return params;
 		}
 
+		/**
+		 * Отправляет сообщение. Текст длиннее {@link MessageSplitter#MAX_LENGTH} отправляется несколькими сообщениями
+		 * по порядку, каждое следующее после ответа на предыдущее. Если вк вернул ошибку, оставшиеся части не отправляются
+		 * @param headers http headers
+		 * @return задача, завершающаяся ответом на последнюю отправленную часть
+		 */
 		@Override
 		public CompletableFuture<String> call(Header... headers) {
-			if(getMessage()!=null && getMessage().length()>2000){
-				return CompletableFuture.supplyAsync(() -> {
-					String[] msgs = getMessage().split("(?<=\\G(?s).{1800,2000}\\n)");
-					for (int i = 0; i < msgs.length-1; i++) {
-						String msg = msgs[i];
-						setMessage(msg);
-						super.callAwait();
-					}
-					setMessage(msgs[msgs.length-1]);
-					return super.callAwait();
-				});
+			if (getMessage()==null || getMessage().length()<=MessageSplitter.MAX_LENGTH) {
+				return super.call(headers);
+			}
+			List<SendParamsSet> parts = splitParts();
+			CompletableFuture<String> result = parts.get(0).call(headers);
+			for (int i = 1; i < parts.size(); i++) {
+				SendParamsSet part = parts.get(i);
+				result = result.thenCompose(answer -> answer == null || RequestScheduler.getErrorCode(answer) != 0
+						? CompletableFuture.completedFuture(answer)
+						: part.call(headers));
+			}
+			return result;
+		}
+
+		/**
+		 * Отправляет сообщение и читает его id прямо из ответа
+		 * @return задача, завершающаяся id отправленного сообщения (последней части, если сообщение было разбито)
+		 */
+		public CompletableFuture<Integer> callMessageId() {
+			if (getMessage()!=null && getMessage().length()>MessageSplitter.MAX_LENGTH) {
+				return callMessageIds().thenApply(ids -> ids.get(ids.size() - 1));
+			}
+			return call(ResponseReader.INTEGER);
+		}
+
+		/**
+		 * Отправляет сообщение, разбивая длинный текст на части, и собирает id всех отправленных сообщений.<br>
+		 * Части отправляются по порядку без блокировки потоков. Если вк вернул ошибку, задача завершается с {@link ru.blc.cutlet.vk.method.VkApiException}
+		 * @return задача, завершающаяся id сообщений в порядке отправки
+		 */
+		public CompletableFuture<List<Integer>> callMessageIds() {
+			List<SendParamsSet> parts = getMessage()!=null && getMessage().length()>MessageSplitter.MAX_LENGTH
+					? splitParts()
+					: Collections.singletonList(this);
+			CompletableFuture<List<Integer>> result = CompletableFuture.completedFuture(new ArrayList<>(parts.size()));
+			for (SendParamsSet part : parts) {
+				result = result.thenCompose(ids -> part.call(ResponseReader.INTEGER).thenApply(id -> {
+					ids.add(id);
+					return ids;
+				}));
 			}
-			return super.call(headers);
+			return result;
+		}
+
+		/**
+		 * Делит сообщение на части по {@link MessageSplitter}. Ответ на сообщение остается у первой части,
+		 * вложения, пересланные сообщения, стикер и клавиатура переходят к последней
+		 * @return наборы параметров для каждой части, этот набор не изменяется
+		 */
+		private List<SendParamsSet> splitParts() {
+			List<String> texts = MessageSplitter.split(getMessage());
+			List<SendParamsSet> parts = new ArrayList<>(texts.size());
+			for (int i = 0; i < texts.size(); i++) {
+				SendParamsSet part = copy().setMessage(texts.get(i));
+				if (getRandomId() != 0) part.setRandomId(getRandomId() + i);
+				if (i > 0) part.setReplyTo(null);
+				if (i < texts.size() - 1) {
+					part.setAttachments(new ArrayList<>());
+					part.setForwardMessages(null);
+					part.setStickerId(null);
+					part.setKeyboard(null);
+				}
+				parts.add(part);
+			}
+			return parts;
+		}
+
+		/**
+		 * @return новый набор с такими же параметрами, токеном и версией апи
+		 */
+		public SendParamsSet copy() {
+			SendParamsSet copy = new SendParamsSet(getMethod());
+			copy.setToken(getToken()).setVersion(getVersion());
+			copy.setTimeout(getTimeout(), TimeUnit.MILLISECONDS).setDeadline(getDeadline());
+			copy.userId = userId;
+			copy.randomId = randomId;
+			copy.peerId = peerId;
+			copy.peerIds = peerIds == null ? null : peerIds.clone();
+			copy.domain = domain;
+			copy.chatId = chatId;
+			copy.userIds = userIds == null ? null : userIds.clone();
+			copy.message = message;
+			copy.lat = lat;
+			copy.longg = longg;
+			copy.attachments = new ArrayList<>(attachments);
+			copy.replyTo = replyTo;
+			copy.forwardMessages = forwardMessages == null ? null : forwardMessages.clone();
+			copy.stickerId = stickerId;
+			copy.keyboard = keyboard;
+			copy.payload = payload;
+			copy.parseLinks = parseLinks;
+			copy.disableMentions = disableMentions;
+			return copy;
 		}
 
 		public Integer getUserId() {
@@ -103,6 +233,9 @@ public class Send extends Method<Send> {
 			return this;
 		}
 
+		/**
+		 * @return random_id или 0, если он создается автоматически для каждого вызова
+		 */
 		public long getRandomId() {
 			return randomId;
 		}
@@ -281,4 +414,83 @@ public class Send extends Method<Send> {
 			return this;
 		}
 	}
+
+	/**
+	 * Результат отправки сообщения одному получателю при вызове с peer_ids
+	 */
+	public static class PeerResult {
+		private int peerId;
+		private int messageId;
+		private int conversationMessageId;
+		private int errorCode;
+		private String errorDescription;
+
+		public static PeerResult read(JsonReader reader) throws IOException {
+			PeerResult result = new PeerResult();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+					case "peer_id":
+						result.peerId = reader.nextInt();
+						break;
+					case "message_id":
+						result.messageId = reader.nextInt();
+						break;
+					case "conversation_message_id":
+						result.conversationMessageId = reader.nextInt();
+						break;
+					case "error":
+						reader.beginObject();
+						while (reader.hasNext()) {
+							switch (reader.nextName()) {
+								case "code":
+									result.errorCode = reader.nextInt();
+									break;
+								case "description":
+									result.errorDescription = reader.nextString();
+									break;
+								default:
+									reader.skipValue();
+							}
+						}
+						reader.endObject();
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return result;
+		}
+
+		public int getPeerId() {
+			return peerId;
+		}
+
+		/**
+		 * @return id отправленного сообщения или 0, если отправить не удалось
+		 */
+		public int getMessageId() {
+			return messageId;
+		}
+
+		public int getConversationMessageId() {
+			return conversationMessageId;
+		}
+
+		/**
+		 * @return код ошибки или 0, если сообщение отправлено
+		 */
+		public int getErrorCode() {
+			return errorCode;
+		}
+
+		public String getErrorDescription() {
+			return errorDescription;
+		}
+
+		public boolean isSuccess() {
+			return errorCode == 0 && messageId > 0;
+		}
+	}
 }
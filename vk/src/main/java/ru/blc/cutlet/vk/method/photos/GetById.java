@@ -0,0 +1,64 @@
+package ru.blc.cutlet.vk.method.photos;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
+import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.ParamsSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class GetById extends Method<GetById> {
+
+	/**
+	 * Максимальное количество фотографий в одном запросе
+	 */
+	public static final int MAX_PHOTOS = 100;
+
+	public GetById() {
+		super("photos.getById", AccessTokenType.USER, AccessTokenType.SERVICE);
+	}
+
+	@Override
+	public GetByIdParamsSet getNewParamsSet() {
+		return new GetByIdParamsSet(this);
+	}
+
+
+	public static class GetByIdParamsSet extends ParamsSet<GetById> {
+
+		private List<String> photos = new ArrayList<>();
+
+		public GetByIdParamsSet(Method<GetById> method) {
+			super(method);
+		}
+
+		@Override
+		public List<NameValuePair> getParams() {
+			List<NameValuePair> params = new ArrayList<NameValuePair>();
+			params.add(new BasicNameValuePair("photos", String.join(",", getPhotos())));
+			return params;
+		}
+
+
+		public List<String> getPhotos() {
+			return photos;
+		}
+
+		/**
+		 * @param photos идентификаторы {owner}_{id} или {owner}_{id}_{access_key}
+		 * @return this
+		 */
+		public GetByIdParamsSet setPhotos(List<String> photos) {
+			this.photos = photos;
+			return this;
+		}
+
+		public GetByIdParamsSet setPhotos(String... photos) {
+			return setPhotos(new ArrayList<>(Arrays.asList(photos)));
+		}
+	}
+
+}
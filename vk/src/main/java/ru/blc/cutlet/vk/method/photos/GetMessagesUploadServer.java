@@ -32,7 +32,7 @@ public class GetMessagesUploadServer extends Method<GetMessagesUploadServer> {
 		@Override
 		public List<NameValuePair> getParams() {
 			List<NameValuePair> params = new ArrayList<NameValuePair>();
-			params.add(new BasicNameValuePair("group_id", String.valueOf(getPeerId())));
+			params.add(new BasicNameValuePair("peer_id", String.valueOf(getPeerId())));
 			return params;
 		}
 		
@@ -8,5 +8,6 @@ public class Photos extends MethodStore {
 	public SaveWallPhoto saveWallPhoto = new SaveWallPhoto();
 	public GetMessagesUploadServer getMessagesUploadServer = new GetMessagesUploadServer();
 	public SaveMessagesPhoto saveMessagesPhoto = new SaveMessagesPhoto();
+	public GetById getById = new GetById();
 
 }
@@ -5,9 +5,12 @@ import org.apache.http.message.BasicNameValuePair;
 import ru.blc.cutlet.vk.AccessToken.AccessTokenType;
 import ru.blc.cutlet.vk.method.Method;
 import ru.blc.cutlet.vk.method.ParamsSet;
+import ru.blc.cutlet.vk.method.ResponseReader;
+import ru.blc.cutlet.vk.objects.main.User;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Get extends Method<Get> {
 
@@ -15,11 +18,25 @@ public class Get extends Method<Get> {
 		super("users.get", AccessTokenType.SERVICE, AccessTokenType.GROUP, AccessTokenType.USER);
 	}
 
+	/**
+	 * Чтение ответа users.get в список пользователей только с основными полями ({@link User#read})
+	 */
+	public static final ResponseReader<List<User>> USERS = ResponseReader.listOf(User::read);
+	/**
+	 * Чтение ответа users.get в список пользователей со всеми полями в {@link User#getSource()}
+	 */
+	public static final ResponseReader<List<User>> USERS_WITH_SOURCE = ResponseReader.listOf(User::readWithSource);
+
 	@Override
 	public GetParamsSet getNewParamsSet() {
 		return new GetParamsSet(this);
 	}
 
+	@Override
+	public int getCacheTime() {
+		return 300;
+	}
+
 	public static class GetParamsSet extends ParamsSet<Get> {
 
 		private List<String> userIds = new ArrayList<>();
@@ -39,6 +56,15 @@ public class Get extends Method<Get> {
 			return params;
 		}
 
+		/**
+		 * Вызывает метод и читает пользователей прямо из ответа.
+		 * Если запрошены дополнительные поля, они доступны через {@link User#getSource()}
+		 * @return задача, завершающаяся списком пользователей
+		 */
+		public CompletableFuture<List<User>> callUsers() {
+			return call(getFields().isEmpty() ? USERS : USERS_WITH_SOURCE);
+		}
+
 		public List<String> getUserIds() {
 			return userIds;
 		}
@@ -0,0 +1,155 @@
+package ru.blc.cutlet.vk.method.users;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.objects.main.User;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загружает пользователей по одному, но отправляет в вк один запрос users.get
+ * на всех пользователей, запрошенных с одним токеном за короткое время.<br>
+ * В запрос попадают все поля, которые запросил хотя бы один вызывающий
+ */
+public class UserLoader implements Closeable {
+
+    /**
+     * Максимальное количество пользователей в одном users.get
+     */
+    public static final int MAX_IDS = 1000;
+
+    private final long tick;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    /**
+     * @param tick сколько миллисекунд собирать запросы перед отправкой
+     */
+    public UserLoader(long tick) {
+        Preconditions.checkArgument(tick >= 0, "tick can not be negative");
+        this.tick = tick;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "VK user loader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Загружает пользователя
+     * @param token токен
+     * @param userId id пользователя
+     * @param fields дополнительные поля, они доступны через {@link User#getSource()}
+     * @return задача, которая завершится пользователем или null, если вк его не вернул
+     */
+    public CompletableFuture<User> load(AccessToken token, int userId, String... fields) {
+        return load(token, userId, null, fields);
+    }
+
+    /**
+     * Загружает пользователя
+     * @param token токен
+     * @param userId id пользователя
+     * @param nameCase падеж имени или null для именительного
+     * @param fields дополнительные поля, они доступны через {@link User#getSource()}
+     * @return задача, которая завершится пользователем или null, если вк его не вернул
+     */
+    public CompletableFuture<User> load(AccessToken token, int userId, @Nullable Get.NameCase nameCase, String... fields) {
+        Preconditions.checkNotNull(token, "token");
+        Preconditions.checkArgument(VkModule.METHODS.users.get.isTokenAllowed(token),
+                "Token type " + token.getType().name() + " is not allowed for method users.get");
+        CompletableFuture<User> future = new CompletableFuture<>();
+        String key = token.getValue() + ':' + nameCase;
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(token, nameCase);
+                batches.put(key, batch);
+                Batch scheduled = batch;
+                timer.schedule(() -> flush(key, scheduled), tick, TimeUnit.MILLISECONDS);
+            }
+            batch.waiting.computeIfAbsent(userId, id -> new ArrayList<>(1)).add(future);
+            batch.fields.addAll(Arrays.asList(fields));
+            if (batch.waiting.size() >= MAX_IDS) {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            full.send();
+        }
+        return future;
+    }
+
+    private void flush(String key, Batch batch) {
+        synchronized (batches) {
+            if (batches.get(key) != batch) return;
+            batches.remove(key);
+        }
+        batch.send();
+    }
+
+    /**
+     * Отправляет все накопленные запросы и останавливает таймер
+     */
+    @Override
+    public void close() {
+        List<Batch> rest;
+        synchronized (batches) {
+            rest = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        rest.forEach(Batch::send);
+        timer.shutdown();
+    }
+
+    private static class Batch {
+        private final AccessToken token;
+        @Nullable private final Get.NameCase nameCase;
+        private final Map<Integer, List<CompletableFuture<User>>> waiting = new LinkedHashMap<>();
+        private final Set<String> fields = new LinkedHashSet<>();
+
+        private Batch(AccessToken token, @Nullable Get.NameCase nameCase) {
+            this.token = token;
+            this.nameCase = nameCase;
+        }
+
+        private void send() {
+            Get.GetParamsSet params = VkModule.METHODS.users.get.getNewParamsSet();
+            waiting.keySet().forEach(params::addUserId);
+            fields.forEach(params::addField);
+            params.setNameCase(nameCase).setToken(token);
+            params.callUsers().whenComplete((users, t) -> {
+                Map<Integer, User> byId = new HashMap<>();
+                if (users != null) {
+                    users.forEach(u -> byId.put(u.getId(), u));
+                }
+                waiting.forEach((id, futures) -> {
+                    for (CompletableFuture<User> future : futures) {
+                        if (t != null) future.completeExceptionally(t);
+                        else future.complete(byId.get(id));
+                    }
+                });
+            });
+        }
+    }
+}
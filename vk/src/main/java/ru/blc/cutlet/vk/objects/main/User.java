@@ -1,8 +1,12 @@
 package ru.blc.cutlet.vk.objects.main;
 
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import ru.blc.objconfig.ConfigurationSection;
 import ru.blc.objconfig.json.JsonConfiguration;
 
+import java.io.IOException;
+
 public class User {
 	
 	private JsonConfiguration source;
@@ -35,6 +39,62 @@ public class User {
 		return result;
 	}
 	
+	/**
+	 * Читает пользователя прямо из потока json.<br>
+	 * Читаются только id, имя, фамилия, deactivated, is_closed и can_access_closed, остальные поля пропускаются,
+	 * и {@link User#getSource()} возвращает null. Если запрошены дополнительные поля, используйте {@link #readWithSource(JsonReader)}
+	 * @param reader поток, стоящий на начале объекта пользователя
+	 * @return пользователь
+	 * @throws IOException при ошибке чтения
+	 */
+	public static User read(JsonReader reader) throws IOException {
+		User result = new User();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "id":
+					result.id = reader.nextInt();
+					break;
+				case "first_name":
+					result.firstName = reader.nextString();
+					break;
+				case "last_name":
+					result.lastName = reader.nextString();
+					break;
+				case "deactivated":
+					result.deactivated = reader.nextString();
+					break;
+				case "is_closed":
+					result.closed = reader.nextBoolean();
+					break;
+				case "can_access_closed":
+					result.canAccessClosed = reader.nextBoolean();
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return result;
+	}
+
+	/**
+	 * Читает пользователя из потока json вместе со всеми полями, они доступны через {@link User#getSource()}
+	 * @param reader поток, стоящий на начале объекта пользователя
+	 * @return пользователь
+	 * @throws IOException при ошибке чтения
+	 */
+	public static User readWithSource(JsonReader reader) throws IOException {
+		try {
+			return load(JsonParser.parseReader(reader).toString());
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed user", e);
+		}
+	}
+
+	/**
+	 * @return исходный json пользователя или null, если пользователь прочитан из потока через {@link #read(JsonReader)}
+	 */
 	public JsonConfiguration getSource() {
 		return source;
 	}
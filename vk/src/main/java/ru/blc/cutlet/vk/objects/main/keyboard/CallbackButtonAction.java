@@ -77,7 +77,7 @@ public class CallbackButtonAction extends ButtonAction{
                     .setUserId(message.getFromId())
                     .setPeerId(message.getPeerId())
                     .setEventData("{\"type\": \"show_snackbar\", \"text\":\""+text+"\"}")
-                    .setToken(bot.getDefaultToken())
+                    .setToken(bot.nextToken())
                     .call();
         }
     }
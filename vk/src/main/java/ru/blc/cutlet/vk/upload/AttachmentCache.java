@@ -0,0 +1,338 @@
+package ru.blc.cutlet.vk.upload;
+
+import com.google.common.base.Preconditions;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.method.ResponseReader;
+import ru.blc.cutlet.vk.method.photos.GetById;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сохраняемый на диск кеш загруженных фотографий: хеш содержимого файла и получатель (сообщения или стена)
+ * отображаются в строку вложения photo{owner}_{id}. Повторная отправка того же файла не загружает его заново,
+ * в том числе после перезапуска.<br>
+ * Файл кеша - журнал строк "ключ\tвложение\tвремя сохранения", удаление записывается отдельной строкой
+ * "ключ\t-". Журнал перезаписывается без удаленных записей при загрузке, если мусора больше, чем записей, и при закрытии.<br>
+ * Фотографии, удаленные в вк, вычищаются через {@link #verify(AccessToken)} или {@link #invalidate(String)},
+ * например, когда вк отказался отправлять сообщение с вложением
+ */
+public class AttachmentCache implements AutoCloseable {
+
+    private static final String REMOVED = "-";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ResponseReader<Set<String>> PHOTO_IDS = reader -> {
+        Set<String> ids = new HashSet<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int ownerId = 0;
+            int id = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "owner_id":
+                        ownerId = reader.nextInt();
+                        break;
+                    case "id":
+                        id = reader.nextInt();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            ids.add(ownerId + "_" + id);
+        }
+        reader.endArray();
+        return ids;
+    };
+
+    private final Path file;
+    private final int maxSize;
+    private final long maxAge;
+    private final LinkedHashMap<String, Entry> entries;
+    private BufferedWriter journal;
+    private int garbage;
+    private long hitCount, missCount;
+
+    /**
+     * Открывает кеш и читает записи из файла, если он есть
+     * @param file файл кеша
+     * @param maxSize максимальное количество записей, давно не использованные вытесняются первыми
+     * @param maxAge сколько секунд хранить запись, 0 - без ограничения
+     * @throws UncheckedIOException если файл не удалось прочитать или открыть для записи
+     */
+    public AttachmentCache(Path file, int maxSize, long maxAge) {
+        Preconditions.checkNotNull(file, "file");
+        Preconditions.checkArgument(maxSize > 0, "max size should be more than zero");
+        Preconditions.checkArgument(maxAge >= 0, "max age can not be negative");
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxAge = TimeUnit.SECONDS.toMillis(maxAge);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= AttachmentCache.this.maxSize) return false;
+                garbage++;
+                return true;
+            }
+        };
+        try {
+            load();
+            if (garbage > entries.size()) {
+                compact();
+            } else {
+                journal = open();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param target куда загружается файл
+     * @param scope для кого: группа для стены или токен для сообщений
+     * @param source файл
+     * @return ключ записи
+     */
+    static String key(String target, String scope, UploadSource source) {
+        return target + ':' + scope + ':' + source.digest();
+    }
+
+    /**
+     * Токен в ключе хранится только хешем, чтобы не записывать его на диск
+     * @param token токен
+     * @return часть ключа для токена
+     */
+    static String scope(AccessToken token) {
+        Preconditions.checkNotNull(token, "token");
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getValue().getBytes(StandardCharsets.UTF_8));
+            return hex(hash).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param key ключ записи
+     * @return строка вложения или null, если файл не загружался или запись устарела
+     */
+    public synchronized String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && maxAge > 0 && System.currentTimeMillis() - entry.savedAt > maxAge) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.attachment;
+    }
+
+    /**
+     * @param key ключ записи
+     * @param attachment строка вложения
+     */
+    public synchronized void put(String key, String attachment) {
+        Preconditions.checkNotNull(attachment, "attachment");
+        Preconditions.checkArgument(attachment.indexOf('\t') < 0 && attachment.indexOf('\n') < 0, "Wrong attachment %s", attachment);
+        Entry entry = new Entry(attachment, System.currentTimeMillis());
+        if (entries.put(key, entry) != null) garbage++;
+        write(key + '\t' + attachment + '\t' + entry.savedAt);
+    }
+
+    /**
+     * Удаляет все записи с этим вложением
+     * @param attachment строка вложения, с access_key или без
+     * @return количество удаленных записей
+     */
+    public synchronized int invalidate(String attachment) {
+        String id = photoId(attachment);
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (photoId(entry.getValue().attachment).equals(id)) keys.add(entry.getKey());
+        }
+        keys.forEach(this::remove);
+        return keys.size();
+    }
+
+    /**
+     * Проверяет все сохраненные фотографии через photos.getById, пачками по {@link GetById#MAX_PHOTOS},
+     * и удаляет те, которых в вк больше нет
+     * @param token токен пользователя или сервисный токен
+     * @return задача, которая завершится количеством удаленных записей
+     */
+    public CompletableFuture<Integer> verify(AccessToken token) {
+        Preconditions.checkNotNull(token, "token");
+        List<String> attachments;
+        synchronized (this) {
+            Set<String> unique = new HashSet<>();
+            entries.values().forEach(entry -> unique.add(entry.attachment.substring("photo".length())));
+            attachments = new ArrayList<>(unique);
+        }
+        List<CompletableFuture<Integer>> checks = new ArrayList<>();
+        for (int from = 0; from < attachments.size(); from += GetById.MAX_PHOTOS) {
+            List<String> batch = attachments.subList(from, Math.min(from + GetById.MAX_PHOTOS, attachments.size()));
+            checks.add(VkModule.METHODS.photos.getById.getNewParamsSet()
+                    .setPhotos(new ArrayList<>(batch))
+                    .setToken(token)
+                    .call(PHOTO_IDS)
+                    .thenApply(existing -> {
+                        int removed = 0;
+                        for (String photo : batch) {
+                            if (!existing.contains(photoId("photo" + photo).substring("photo".length()))) {
+                                removed += invalidate("photo" + photo);
+                            }
+                        }
+                        return removed;
+                    }));
+        }
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture[0]))
+                .thenApply(v -> checks.stream().mapToInt(CompletableFuture::join).sum());
+    }
+
+    /**
+     * Перезаписывает файл без удаленных записей
+     */
+    public synchronized void compact() {
+        try {
+            if (journal != null) journal.close();
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.write(entry.getKey() + '\t' + entry.getValue().attachment + '\t' + entry.getValue().savedAt);
+                    out.newLine();
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            garbage = 0;
+            journal = open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Перезаписывает файл без удаленных записей и закрывает его. После закрытия записи не сохраняются на диск
+     */
+    @Override
+    public synchronized void close() {
+        compact();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            journal = null;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private void remove(String key) {
+        if (entries.remove(key) == null) return;
+        garbage += 2;
+        write(key + '\t' + REMOVED);
+    }
+
+    private void write(String line) {
+        if (journal == null) return;
+        try {
+            journal.write(line);
+            journal.newLine();
+            journal.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) return;
+        long now = System.currentTimeMillis();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 2 && parts[1].equals(REMOVED)) {
+                    entries.remove(parts[0]);
+                    garbage += 2;
+                    continue;
+                }
+                long savedAt;
+                try {
+                    savedAt = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+                } catch (NumberFormatException e) {
+                    savedAt = -1;
+                }
+                if (savedAt < 0 || (maxAge > 0 && now - savedAt > maxAge)) {
+                    garbage++;
+                    continue;
+                }
+                if (entries.put(parts[0], new Entry(parts[1], savedAt)) != null) garbage++;
+            }
+        }
+    }
+
+    private BufferedWriter open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        return Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static String photoId(String attachment) {
+        int first = attachment.indexOf('_');
+        int second = first < 0 ? -1 : attachment.indexOf('_', first + 1);
+        return second < 0 ? attachment : attachment.substring(0, second);
+    }
+
+    private static class Entry {
+        private final String attachment;
+        private final long savedAt;
+
+        private Entry(String attachment, long savedAt) {
+            this.attachment = attachment;
+            this.savedAt = savedAt;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package ru.blc.cutlet.vk.upload;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.jetbrains.annotations.Nullable;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.method.ResponseReader;
+import ru.blc.cutlet.vk.method.VkApiException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Загрузка фотографий и документов в вк.<br>
+ * Адрес сервера загрузки запоминается для каждого токена и получателя на serverTtl секунд,
+ * поэтому повторные загрузки делают два запроса вместо трех. Если загрузка не удалась из-за ошибки соединения
+ * или истекшего адреса, адрес запрашивается заново и загрузка повторяется один раз.
+ * Файлы передаются потоком, без чтения в память целиком, в собственном пуле потоков загрузчика,
+ * поэтому медленные загрузки не занимают {@link java.util.concurrent.ForkJoinPool#commonPool()}. Если задан {@link AttachmentCache}, фотография
+ * с тем же содержимым для того же получателя повторно не загружается. Результат - строка вложения
+ * для {@link ru.blc.cutlet.vk.method.messages.Send.SendParamsSet#addAttachment(String)}
+ * или {@link ru.blc.cutlet.vk.method.wall.Post}
+ */
+public class MediaUploader implements Closeable {
+
+    /**
+     * Отправка файла на сервер загрузки
+     */
+    @FunctionalInterface
+    public interface Sender {
+        /**
+         * @param url адрес сервера загрузки
+         * @param field имя поля файла
+         * @param source файл
+         * @return ответ сервера загрузки
+         * @throws IOException при ошибке соединения или если адрес загрузки истек. Такая загрузка повторяется
+         * @throws VkApiException если сервер не принял файл
+         */
+        JsonObject send(String url, String field, UploadSource source) throws IOException;
+    }
+
+    private static final ResponseReader<String> UPLOAD_URL = reader -> {
+        String url = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("upload_url")) url = reader.nextString();
+            else reader.skipValue();
+        }
+        reader.endObject();
+        return url;
+    };
+
+    private static final ResponseReader<String> PHOTO_ATTACHMENT = reader -> {
+        String attachment = null;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (attachment == null) attachment = readAttachment("photo", reader);
+            else reader.skipValue();
+        }
+        reader.endArray();
+        return attachment;
+    };
+
+    private static final ResponseReader<String> DOC_ATTACHMENT = reader -> {
+        String attachment = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) attachment = readAttachment(name, reader);
+            else reader.skipValue();
+        }
+        reader.endObject();
+        return attachment;
+    };
+
+    private final long serverTtl;
+    private final Map<String, CachedServer> servers = new ConcurrentHashMap<>();
+    @Nullable
+    private final AttachmentCache attachments;
+    private final ExecutorService executor;
+    private final Sender sender;
+
+    /**
+     * @param serverTtl сколько секунд использовать полученный адрес сервера загрузки
+     */
+    public MediaUploader(int serverTtl) {
+        this(serverTtl, null);
+    }
+
+    /**
+     * @param serverTtl сколько секунд использовать полученный адрес сервера загрузки
+     * @param attachments кеш загруженных фотографий или null
+     */
+    public MediaUploader(int serverTtl, @Nullable AttachmentCache attachments) {
+        this(serverTtl, attachments, 4);
+    }
+
+    /**
+     * @param serverTtl сколько секунд использовать полученный адрес сервера загрузки
+     * @param attachments кеш загруженных фотографий или null
+     * @param threads сколько файлов загружается одновременно
+     */
+    public MediaUploader(int serverTtl, @Nullable AttachmentCache attachments, int threads) {
+        this(serverTtl, attachments, threads, MediaUploader::post);
+    }
+
+    /**
+     * @param serverTtl сколько секунд использовать полученный адрес сервера загрузки
+     * @param attachments кеш загруженных фотографий или null
+     * @param threads сколько файлов загружается одновременно
+     * @param sender отправка файла на сервер загрузки
+     */
+    public MediaUploader(int serverTtl, @Nullable AttachmentCache attachments, int threads, Sender sender) {
+        Preconditions.checkArgument(serverTtl >= 0, "server ttl can not be negative");
+        Preconditions.checkArgument(threads > 0, "threads should be more than zero");
+        Preconditions.checkNotNull(sender, "sender");
+        this.serverTtl = TimeUnit.SECONDS.toNanos(serverTtl);
+        this.attachments = attachments;
+        this.sender = sender;
+        AtomicInteger number = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "VK upload " + number.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Nullable
+    public AttachmentCache getAttachmentCache() {
+        return attachments;
+    }
+
+    /**
+     * Загружает фотографию для отправки в сообщении
+     * @param token токен
+     * @param peerId получатель
+     * @param source файл
+     * @return задача, которая завершится строкой вложения photo{owner}_{id}
+     */
+    public CompletableFuture<String> uploadMessagePhoto(AccessToken token, int peerId, UploadSource source) {
+        return cached(Target.MESSAGES_PHOTO, AttachmentCache.scope(token), source,
+                () -> upload(Target.MESSAGES_PHOTO, token, peerId, source, true)
+                        .thenCompose(json -> VkModule.METHODS.photos.saveMessagesPhoto.getNewParamsSet()
+                                .setServer(json.get("server").getAsInt())
+                                .setPhoto(json.get("photo").getAsString())
+                                .setHash(json.get("hash").getAsString())
+                                .setToken(token)
+                                .call(PHOTO_ATTACHMENT)));
+    }
+
+    /**
+     * Загружает несколько фотографий для одного сообщения параллельно
+     * @param token токен
+     * @param peerId получатель
+     * @param sources файлы
+     * @return задача, которая завершится строками вложений в том же порядке
+     */
+    public CompletableFuture<List<String>> uploadMessagePhotos(AccessToken token, int peerId, List<UploadSource> sources) {
+        return all(sources, source -> uploadMessagePhoto(token, peerId, source));
+    }
+
+    /**
+     * Загружает фотографию для записи на стене группы
+     * @param token токен пользователя
+     * @param groupId группа
+     * @param source файл
+     * @return задача, которая завершится строкой вложения photo{owner}_{id}
+     */
+    public CompletableFuture<String> uploadWallPhoto(AccessToken token, int groupId, UploadSource source) {
+        return cached(Target.WALL_PHOTO, String.valueOf(groupId), source,
+                () -> upload(Target.WALL_PHOTO, token, groupId, source, true)
+                        .thenCompose(json -> VkModule.METHODS.photos.saveWallPhoto.getNewParamsSet()
+                                .setGroupId(groupId)
+                                .setServer(json.get("server").getAsInt())
+                                .setPhoto(json.get("photo").getAsString())
+                                .setHash(json.get("hash").getAsString())
+                                .setToken(token)
+                                .call(PHOTO_ATTACHMENT)));
+    }
+
+    /**
+     * Загружает несколько фотографий для одной записи на стене параллельно
+     * @param token токен пользователя
+     * @param groupId группа
+     * @param sources файлы
+     * @return задача, которая завершится строками вложений в том же порядке
+     */
+    public CompletableFuture<List<String>> uploadWallPhotos(AccessToken token, int groupId, List<UploadSource> sources) {
+        return all(sources, source -> uploadWallPhoto(token, groupId, source));
+    }
+
+    /**
+     * Загружает документ для отправки в сообщении
+     * @param token токен
+     * @param peerId получатель
+     * @param source файл
+     * @param title название документа или null для имени файла
+     * @return задача, которая завершится строкой вложения doc{owner}_{id}
+     */
+    public CompletableFuture<String> uploadMessageDocument(AccessToken token, int peerId, UploadSource source, @Nullable String title) {
+        return upload(Target.MESSAGES_DOC, token, peerId, source, true)
+                .thenCompose(json -> VkModule.METHODS.docs.save.getNewParamsSet()
+                        .setFile(json.get("file").getAsString())
+                        .setTitle(title == null ? source.getFileName() : title)
+                        .setToken(token)
+                        .call(DOC_ATTACHMENT));
+    }
+
+    /**
+     * Забывает все адреса серверов загрузки
+     */
+    public void invalidateServers() {
+        servers.clear();
+    }
+
+    private CompletableFuture<String> cached(Target target, String scope, UploadSource source, Supplier<CompletableFuture<String>> upload) {
+        AttachmentCache cache = attachments;
+        if (cache == null) return upload.get();
+        return CompletableFuture.supplyAsync(() -> AttachmentCache.key(target.name(), scope, source), executor)
+                .thenCompose(key -> {
+                    String attachment = cache.get(key);
+                    if (attachment != null) return CompletableFuture.completedFuture(attachment);
+                    return upload.get().thenApply(result -> {
+                        if (result != null) cache.put(key, result);
+                        return result;
+                    });
+                });
+    }
+
+    private CompletableFuture<JsonObject> upload(Target target, AccessToken token, int id, UploadSource source, boolean retry) {
+        Preconditions.checkNotNull(token, "token");
+        Preconditions.checkNotNull(source, "source");
+        String key = target.name() + ':' + token.getValue() + ':' + id;
+        return getUploadUrl(key, target, token, id)
+                .thenCompose(url -> CompletableFuture.supplyAsync(() -> send(url, target.field, source), executor)
+                        .handle((json, t) -> {
+                            if (t == null) return CompletableFuture.completedFuture(json);
+                            Throwable error = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                            // ошибка соединения или истекший адрес. Если сервер не принял файл, новый адрес не поможет
+                            if (error instanceof UncheckedIOException) {
+                                servers.computeIfPresent(key, (k, server) -> url.equals(server.url.getNow(null)) ? null : server);
+                                if (retry) return upload(target, token, id, source, false);
+                            }
+                            CompletableFuture<JsonObject> failed = new CompletableFuture<>();
+                            failed.completeExceptionally(error);
+                            return failed;
+                        })
+                        .thenCompose(Function.identity()));
+    }
+
+    private JsonObject send(String url, String field, UploadSource source) {
+        try {
+            return sender.send(url, field, source);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CompletableFuture<String> getUploadUrl(String key, Target target, AccessToken token, int id) {
+        long now = System.nanoTime();
+        return servers.compute(key, (k, server) -> {
+            if (server != null && server.expiresAt - now > 0 && !server.url.isCompletedExceptionally()) return server;
+            return new CachedServer(requestUploadUrl(target, token, id), now + serverTtl);
+        }).url;
+    }
+
+    private CompletableFuture<String> requestUploadUrl(Target target, AccessToken token, int id) {
+        switch (target) {
+            case MESSAGES_PHOTO:
+                return VkModule.METHODS.photos.getMessagesUploadServer.getNewParamsSet()
+                        .setPeerId(id).setToken(token).call(UPLOAD_URL);
+            case WALL_PHOTO:
+                return VkModule.METHODS.photos.getWallUploadServer.getNewParamsSet()
+                        .setGroupId(id).setToken(token).call(UPLOAD_URL);
+            case MESSAGES_DOC:
+                return VkModule.METHODS.docs.getMessagesUploadServer.getNewParamsSet()
+                        .setPeerId(id).setToken(token).call(UPLOAD_URL);
+            default:
+                throw new IllegalArgumentException("Unknown upload target " + target);
+        }
+    }
+
+    /**
+     * Отправляет файл через общий http клиент. Тело multipart пишется прямо из файла, поэтому
+     * загрузка не идет через {@link ru.blc.cutlet.vk.http.HttpTransport}, которому нужно готовое тело запроса
+     */
+    private static JsonObject post(String url, String field, UploadSource source) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(MultipartEntityBuilder.create()
+                .setMode(HttpMultipartMode.BROWSER_COMPATIBLE)
+                .addPart(field, source.toBody())
+                .build());
+        JsonObject json = VkModule.getHttpClient().getClient().execute(post, response -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 403 || status == 404 || status == 410) {
+                throw new IOException("Upload address expired, status " + status);
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Empty answer from upload server");
+            }
+            JsonElement element = JsonParser.parseReader(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8));
+            if (!element.isJsonObject()) {
+                throw new IOException("Unexpected answer from upload server: " + element);
+            }
+            return element.getAsJsonObject();
+        });
+        if (json.has("error")) {
+            String error = json.get("error").toString();
+            if (error.toLowerCase(Locale.ROOT).contains("expired")) {
+                throw new IOException("Upload address expired: " + error);
+            }
+            throw new VkApiException(0, error);
+        }
+        if (json.has("photo") && "[]".equals(json.get("photo").getAsString())) {
+            throw new VkApiException(0, "Upload server did not accept photo " + source.getFileName());
+        }
+        return json;
+    }
+
+    /**
+     * Останавливает потоки загрузки. Начатые загрузки завершаются
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static String readAttachment(String type, JsonReader reader) throws IOException {
+        int ownerId = 0;
+        int id = 0;
+        String accessKey = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "owner_id":
+                    ownerId = reader.nextInt();
+                    break;
+                case "id":
+                    id = reader.nextInt();
+                    break;
+                case "access_key":
+                    accessKey = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return type + ownerId + '_' + id + (accessKey == null ? "" : "_" + accessKey);
+    }
+
+    private static <T> CompletableFuture<List<String>> all(List<T> sources, Function<T, CompletableFuture<String>> upload) {
+        List<CompletableFuture<String>> futures = new ArrayList<>(sources.size());
+        for (T source : sources) {
+            futures.add(upload.apply(source));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<String> attachments = new ArrayList<>(futures.size());
+            futures.forEach(f -> attachments.add(f.join()));
+            return attachments;
+        });
+    }
+
+    private enum Target {
+        MESSAGES_PHOTO("photo"),
+        WALL_PHOTO("photo"),
+        MESSAGES_DOC("file");
+
+        private final String field;
+
+        Target(String field) {
+            this.field = field;
+        }
+    }
+
+    private static class CachedServer {
+        private final CompletableFuture<String> url;
+        private final long expiresAt;
+
+        private CachedServer(CompletableFuture<String> url, long expiresAt) {
+            this.url = url;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
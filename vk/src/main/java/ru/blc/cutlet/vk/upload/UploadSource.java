@@ -0,0 +1,144 @@
+package ru.blc.cutlet.vk.upload;
+
+import com.google.common.base.Preconditions;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Файл для загрузки в вк. Содержимое не читается в память целиком, а передается прямо в соединение
+ */
+public abstract class UploadSource {
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final String fileName;
+    private volatile String digest;
+
+    protected UploadSource(String fileName) {
+        Preconditions.checkNotNull(fileName, "fileName");
+        this.fileName = fileName;
+    }
+
+    /**
+     * @param file файл на диске
+     * @return источник, читающий файл во время отправки
+     */
+    public static UploadSource of(Path file) {
+        Preconditions.checkNotNull(file, "file");
+        Preconditions.checkArgument(Files.isRegularFile(file), "%s is not a file", file);
+        return new UploadSource(file.getFileName().toString()) {
+            @Override
+            ContentBody toBody() {
+                return new FileBody(file.toFile(), ContentType.APPLICATION_OCTET_STREAM, getFileName());
+            }
+        };
+    }
+
+    /**
+     * @param data содержимое файла от position до limit. Буфер не изменяется
+     * @param fileName имя файла с расширением, по нему вк определяет тип
+     * @return источник, записывающий буфер во время отправки
+     */
+    public static UploadSource of(ByteBuffer data, String fileName) {
+        Preconditions.checkNotNull(data, "data");
+        ByteBuffer content = data.asReadOnlyBuffer();
+        return new UploadSource(fileName) {
+            @Override
+            ContentBody toBody() {
+                return new ByteBufferBody(content.duplicate(), getFileName());
+            }
+        };
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Хеш содержимого для {@link AttachmentCache}. Считается один раз, при первом вызове, тем же потоком,
+     * которым файл отправляется
+     * @return SHA-256 содержимого в шестнадцатеричном виде
+     */
+    public String digest() {
+        String result = digest;
+        if (result == null) {
+            MessageDigest sha;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            try (OutputStream out = new DigestOutputStream(NULL_STREAM, sha)) {
+                toBody().writeTo(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            result = AttachmentCache.hex(sha.digest());
+            digest = result;
+        }
+        return result;
+    }
+
+    abstract ContentBody toBody();
+
+    private static class ByteBufferBody extends AbstractContentBody {
+
+        private static final int CHUNK = 8192;
+
+        private final ByteBuffer data;
+        private final String fileName;
+
+        private ByteBufferBody(ByteBuffer data, String fileName) {
+            super(ContentType.APPLICATION_OCTET_STREAM);
+            this.data = data;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public String getFilename() {
+            return fileName;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer buffer = data.duplicate();
+            byte[] chunk = new byte[Math.min(CHUNK, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return MIME.ENC_BINARY;
+        }
+
+        @Override
+        public long getContentLength() {
+            return data.remaining();
+        }
+    }
+}
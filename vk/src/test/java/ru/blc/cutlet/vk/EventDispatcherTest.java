@@ -0,0 +1,74 @@
+package ru.blc.cutlet.vk;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EventDispatcherTest {
+
+    @Test(timeout = 5000)
+    public void keepsOrderOfOnePeer() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(4, 100);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            int number = i;
+            dispatcher.dispatch(2000000001L, () -> {
+                handled.add(number);
+                done.countDown();
+            });
+        }
+        Assert.assertTrue(done.await(3, TimeUnit.SECONDS));
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(Integer.valueOf(i), handled.get(i));
+        }
+        dispatcher.close();
+    }
+
+    @Test(timeout = 5000)
+    public void slowPeerDoesNotBlockOthers() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(2, 100);
+        long slow = 1;
+        long fast = 2;
+        while (EventDispatcher.shard(fast, 2) == EventDispatcher.shard(slow, 2)) fast++;
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch handled = new CountDownLatch(1);
+        dispatcher.dispatch(slow, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        dispatcher.dispatch(fast, handled::countDown);
+        Assert.assertTrue(handled.await(3, TimeUnit.SECONDS));
+        release.countDown();
+        dispatcher.close();
+    }
+
+    @Test(timeout = 5000)
+    public void closeFinishesQueuedEvents() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(2, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        dispatcher.dispatch(1, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            int number = i;
+            dispatcher.dispatch(1, () -> handled.add(number));
+        }
+        dispatcher.close();
+        Assert.assertFalse(dispatcher.awaitTermination(50, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(dispatcher.awaitTermination(3, TimeUnit.SECONDS));
+        Assert.assertEquals(10, handled.size());
+    }
+}
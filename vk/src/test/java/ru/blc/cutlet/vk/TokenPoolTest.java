@@ -0,0 +1,103 @@
+package ru.blc.cutlet.vk;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+import ru.blc.cutlet.vk.method.Method;
+import ru.blc.cutlet.vk.method.ParamsSet;
+import ru.blc.cutlet.vk.method.RetryPolicy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TokenPoolTest {
+
+    @Test
+    public void alternatesTokens() {
+        AccessToken first = new AccessToken("first", AccessToken.AccessTokenType.GROUP);
+        AccessToken second = new AccessToken("second", AccessToken.AccessTokenType.GROUP);
+        try (TokenPool pool = new TokenPool(first, second)) {
+            Assert.assertSame(first, pool.next());
+            Assert.assertSame(second, pool.next());
+            Assert.assertSame(first, pool.next());
+        }
+    }
+
+    @Test
+    public void retiresTokenAfterAuthError() {
+        AccessToken first = new AccessToken("auth-first", AccessToken.AccessTokenType.GROUP);
+        AccessToken second = new AccessToken("auth-second", AccessToken.AccessTokenType.GROUP);
+        try (TokenPool pool = new TokenPool(first, second)) {
+            TokenPool.record(first, 5, false);
+            Assert.assertTrue(pool.getStats(first).isRetired());
+            for (int i = 0; i < 4; i++) {
+                Assert.assertSame(second, pool.next());
+            }
+            Assert.assertEquals(5, pool.getStats(first).getLastErrorCode());
+        }
+    }
+
+    @Test
+    public void usesRetiredTokenWhenNoOtherLeft() {
+        AccessToken only = new AccessToken("rate-only", AccessToken.AccessTokenType.GROUP);
+        try (TokenPool pool = new TokenPool(only)) {
+            TokenPool.record(only, 6, false);
+            Assert.assertSame(only, pool.next());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tokenBelongsToOnePool() {
+        AccessToken token = new AccessToken("shared", AccessToken.AccessTokenType.GROUP);
+        try (TokenPool pool = new TokenPool(token)) {
+            new TokenPool(token);
+        }
+    }
+
+    @Test
+    public void retriesWithNextToken() throws Exception {
+        AccessToken first = new AccessToken("retry-first", AccessToken.AccessTokenType.GROUP);
+        AccessToken second = new AccessToken("retry-second", AccessToken.AccessTokenType.GROUP);
+        List<String> used = Collections.synchronizedList(new ArrayList<>());
+        VkModule.setTransport(new LoopbackTransport(request -> {
+            String token = request.getFormParams().get("access_token");
+            used.add(token);
+            return LoopbackTransport.Response.ok(token.equals("retry-first")
+                    ? "{\"error\":{\"error_code\":6,\"error_msg\":\"Too many requests per second\"}}"
+                    : "{\"response\":1}");
+        }));
+        try (TokenPool pool = new TokenPool(first, second); RetryPolicy policy = new RetryPolicy().setBaseDelay(1)) {
+            VkModule.setRetryPolicy(policy);
+            Lookup lookup = new Lookup();
+            ParamsSet<Lookup> params = lookup.getNewParamsSet();
+            params.setToken(first);
+            Assert.assertEquals("{\"response\":1}", params.call().get(5, TimeUnit.SECONDS));
+            // пул вывел первый токен после ошибки частоты запросов, повтор ушел со вторым
+            Assert.assertEquals(Arrays.asList("retry-first", "retry-second"), used);
+        } finally {
+            VkModule.setRetryPolicy(null);
+            VkModule.setTransport(null);
+        }
+    }
+
+    private static class Lookup extends Method<Lookup> {
+        private Lookup() {
+            super("test.lookup", AccessToken.AccessTokenType.GROUP);
+        }
+
+        @Override
+        public ParamsSet<Lookup> getNewParamsSet() {
+            return new ParamsSet<Lookup>(this) {
+                @Override
+                public List<NameValuePair> getParams() {
+                    return Collections.singletonList(new BasicNameValuePair("id", "1"));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ru.blc.cutlet.vk.http;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+public class ContentEncodingTest {
+    @Test
+    public void decodesGzipAndCountsBytes() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("{\"ts\":").append(i).append(",\"updates\":[]}");
+        }
+        byte[] plain = text.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(wire)) {
+            out.write(plain);
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(wire.toByteArray());
+        entity.setContentEncoding("gzip");
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(entity);
+
+        ContentEncoding encoding = new ContentEncoding(true);
+        encoding.process(response, null);
+
+        Assert.assertEquals(text.toString(), EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+        Assert.assertEquals(wire.size(), encoding.getWireBytes());
+        Assert.assertEquals(plain.length, encoding.getDecodedBytes());
+        Assert.assertEquals(1, encoding.getCompressedResponseCount());
+    }
+}
@@ -0,0 +1,36 @@
+package ru.blc.cutlet.vk.http;
+
+import com.google.common.io.ByteStreams;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+public class LoopbackTransportTest {
+
+    @Test
+    public void routesRequestToHandler() throws IOException {
+        LoopbackTransport transport = new LoopbackTransport(request -> {
+            Map<String, String> params = request.getFormParams();
+            return LoopbackTransport.Response.ok("{\"response\":\"" + params.get("message") + "\"}");
+        });
+        TransportRequest request = TransportRequest.form("https://api.vk.com/method/messages.send",
+                Arrays.asList(new BasicNameValuePair("message", "привет & пока"), new BasicNameValuePair("v", "5.131")));
+        String answer = transport.newCall(request).execute((status, body) -> new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8));
+        Assert.assertEquals("{\"response\":\"привет & пока\"}", answer);
+        Assert.assertEquals(1, transport.getRequestCount());
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void abortedCallFails() throws IOException {
+        LoopbackTransport transport = new LoopbackTransport(request -> LoopbackTransport.Response.ok("{}"));
+        HttpTransport.TransportCall call = transport.newCall(TransportRequest.form("https://api.vk.com/method/users.get", Arrays.asList()));
+        call.abort();
+        call.execute((status, body) -> status);
+    }
+}
@@ -0,0 +1,129 @@
+package ru.blc.cutlet.vk.http;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class NioHttpClientTest {
+
+    @Test(timeout = 10000)
+    public void readsChunkedAndSizedAnswersOverOneConnection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             NioHttpClient client = new NioHttpClient(1, 1000, new ContentEncoding(false))) {
+            CompletableFuture<Void> served = CompletableFuture.runAsync(() -> {
+                try (Socket socket = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    OutputStream out = socket.getOutputStream();
+                    Assert.assertEquals("GET /wh1?act=a_check&ts=1 HTTP/1.1", readRequest(in));
+                    out.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                            + "5\r\n{\"ts\"\r\n6\r\n:\"2\"}\n\r\n0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    Assert.assertEquals("GET /wh1?act=a_check&ts=2 HTTP/1.1", readRequest(in));
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n{\"ts\":\"3\"}".getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            String base = "http://127.0.0.1:" + server.getLocalPort() + "/wh1?act=a_check&ts=";
+            NioHttpClient.Response first = client.get(base + 1, 5000, 0).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(200, first.getStatus());
+            Assert.assertEquals("{\"ts\":\"2\"}\n", new String(ByteStreams.toByteArray(first.getBody()), StandardCharsets.UTF_8));
+            NioHttpClient.Response second = client.get(base + 2, 5000, 0).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals("{\"ts\":\"3\"}", new String(ByteStreams.toByteArray(second.getBody()), StandardCharsets.UTF_8));
+            served.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failsWhenServerDoesNotAnswer() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             NioHttpClient client = new NioHttpClient(1, 1000, new ContentEncoding(false))) {
+            CompletableFuture<NioHttpClient.Response> answer = client.get("http://127.0.0.1:" + server.getLocalPort() + "/", 200, 0);
+            try (Socket ignored = server.accept()) {
+                answer.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void readsAnswerArrivingInPieces() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             NioHttpClient client = new NioHttpClient(1, 1000, new ContentEncoding(false))) {
+            CompletableFuture<Void> served = CompletableFuture.runAsync(() -> {
+                try (Socket socket = server.accept()) {
+                    socket.setTcpNoDelay(true);
+                    readRequest(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)));
+                    OutputStream out = socket.getOutputStream();
+                    String answer = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                            + "5\r\n{\"ts\"\r\n5\r\n:\"2\"}\r\n0\r\n\r\n";
+                    for (byte b : answer.getBytes(StandardCharsets.ISO_8859_1)) {
+                        out.write(b);
+                        out.flush();
+                        Thread.sleep(1);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            NioHttpClient.Response answer = client.get("http://localhost:" + server.getLocalPort() + "/", 5000, 0).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals("{\"ts\":\"2\"}", new String(ByteStreams.toByteArray(answer.getBody()), StandardCharsets.UTF_8));
+            served.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsAnswerOverLimit() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             NioHttpClient client = new NioHttpClient(1, 1000, new ContentEncoding(false)).setMaxResponseSize(1024)) {
+            CompletableFuture<Void> served = CompletableFuture.runAsync(() -> {
+                try (Socket socket = server.accept()) {
+                    readRequest(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1)));
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    byte[] chunk = new byte[512];
+                    for (int i = 0; i < 4; i++) {
+                        out.write("200\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                        out.write(chunk);
+                        out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    // клиент закрыл соединение
+                }
+            });
+            try {
+                client.get("http://127.0.0.1:" + server.getLocalPort() + "/", 5000, 0).get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+                Assert.assertTrue(e.getCause().getMessage().startsWith("Response is larger than"));
+            }
+            served.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static String readRequest(BufferedReader in) throws IOException {
+        String requestLine = in.readLine();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            // заголовки не проверяются
+        }
+        return requestLine;
+    }
+}
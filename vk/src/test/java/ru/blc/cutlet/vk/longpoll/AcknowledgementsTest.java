@@ -0,0 +1,59 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class AcknowledgementsTest {
+
+    private final List<String> acknowledged = new ArrayList<>();
+    private final Acknowledgements acknowledgements = new Acknowledgements(acknowledged::add);
+
+    @Test
+    public void waitsForEarlierEvents() {
+        long first = acknowledgements.start();
+        long second = acknowledgements.start();
+        acknowledgements.checkpoint(2, "2");
+        long third = acknowledgements.start();
+        acknowledgements.checkpoint(3, "3");
+
+        // события разных бесед завершаются не по порядку
+        acknowledgements.handled(third);
+        acknowledgements.handled(second);
+        Assert.assertEquals(Collections.emptyList(), acknowledged);
+        acknowledgements.handled(first);
+        Assert.assertEquals(Collections.singletonList("3"), acknowledged);
+        Assert.assertEquals(3, acknowledgements.getHandled());
+    }
+
+    @Test
+    public void acknowledgesEachAnswer() {
+        long first = acknowledgements.start();
+        acknowledgements.checkpoint(1, "1");
+        long second = acknowledgements.start();
+        acknowledgements.checkpoint(2, "2");
+        acknowledgements.handled(first);
+        acknowledgements.handled(second);
+        Assert.assertEquals(Arrays.asList("1", "2"), acknowledged);
+    }
+
+    @Test
+    public void skippedEventsAreNotAwaited() {
+        long first = acknowledgements.start();
+        acknowledgements.skipped(2);
+        acknowledgements.checkpoint(3, "3");
+        Assert.assertEquals(Collections.emptyList(), acknowledged);
+        acknowledgements.handled(first);
+        Assert.assertEquals(Collections.singletonList("3"), acknowledged);
+    }
+
+    @Test
+    public void emptyAnswerIsAcknowledgedAtOnce() {
+        acknowledgements.checkpoint(0, "1");
+        Assert.assertEquals(Collections.singletonList("1"), acknowledged);
+    }
+}
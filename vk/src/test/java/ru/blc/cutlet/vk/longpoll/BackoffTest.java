@@ -0,0 +1,32 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackoffTest {
+
+    @Test
+    public void doublesWithinJitter() {
+        Backoff backoff = new Backoff(1000, 60000);
+        for (int i = 0; i < 100; i++) {
+            long first = backoff.delay(1);
+            Assert.assertTrue(first >= 500 && first <= 1000);
+            long third = backoff.delay(3);
+            Assert.assertTrue(third >= 2000 && third <= 4000);
+        }
+    }
+
+    @Test
+    public void limitedByMaxDelay() {
+        Backoff backoff = new Backoff(1000, 60000);
+        for (int failures : new int[]{7, 20, 64, Integer.MAX_VALUE}) {
+            long delay = backoff.delay(failures);
+            Assert.assertTrue(delay >= 30000 && delay <= 60000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxBelowBase() {
+        new Backoff(1000, 500);
+    }
+}
@@ -0,0 +1,37 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CheckpointStoreTest {
+
+    @Test
+    public void survivesReopen() throws IOException {
+        Path file = Files.createTempDirectory("longpoll").resolve("longpoll.checkpoints");
+        try (CheckpointStore store = new CheckpointStore(file, 60000)) {
+            store.acknowledge(1, "10");
+            store.acknowledge(1, "12");
+            store.acknowledge(2, "5");
+            Assert.assertFalse(Files.exists(file));
+        }
+        try (CheckpointStore store = new CheckpointStore(file, 0)) {
+            Assert.assertEquals("12", store.get(1));
+            Assert.assertEquals("5", store.get(2));
+            Assert.assertNull(store.get(3));
+            store.acknowledge(2, "6");
+            Assert.assertEquals(1, store.getFlushCount());
+        }
+    }
+
+    @Test
+    public void countsEventsBetweenTs() {
+        Assert.assertEquals(15, CheckpointStore.distance("10", "25"));
+        Assert.assertEquals(0, CheckpointStore.distance("25", "10"));
+        Assert.assertEquals(-1, CheckpointStore.distance("abc", "10"));
+        Assert.assertEquals(-1, CheckpointStore.distance(null, "10"));
+    }
+}
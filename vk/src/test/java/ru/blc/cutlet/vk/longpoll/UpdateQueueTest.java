@@ -0,0 +1,58 @@
+package ru.blc.cutlet.vk.longpoll;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class UpdateQueueTest {
+
+    @Test
+    public void dropsOldestWhenFull() throws InterruptedException {
+        UpdateQueue<Integer> queue = new UpdateQueue<>(2, UpdateQueue.Overflow.DROP_OLDEST);
+        queue.offer(1);
+        queue.offer(2);
+        Assert.assertEquals(1, queue.offer(3));
+        Assert.assertEquals(Integer.valueOf(2), queue.take());
+        Assert.assertEquals(Integer.valueOf(3), queue.take());
+        Assert.assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropsNewestWhenFull() throws InterruptedException {
+        UpdateQueue<Integer> queue = new UpdateQueue<>(1, UpdateQueue.Overflow.DROP_NEWEST);
+        queue.offer(1);
+        Assert.assertEquals(1, queue.offer(2));
+        Assert.assertEquals(Integer.valueOf(1), queue.take());
+        Assert.assertEquals(0, queue.getSize());
+    }
+
+    @Test(timeout = 5000)
+    public void blocksUntilTaken() throws Exception {
+        UpdateQueue<Integer> queue = new UpdateQueue<>(1, UpdateQueue.Overflow.BLOCK);
+        queue.offer(1);
+        CompletableFuture<Integer> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.offer(2);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(Integer.valueOf(1), queue.take());
+        Assert.assertEquals(Integer.valueOf(0), second.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Integer.valueOf(2), queue.take());
+        Assert.assertEquals(1, queue.getMaxSize());
+    }
+
+    @Test(timeout = 5000)
+    public void closedQueueIsDrained() throws InterruptedException {
+        UpdateQueue<Integer> queue = new UpdateQueue<>(4, UpdateQueue.Overflow.BLOCK);
+        queue.offer(1);
+        queue.close();
+        Assert.assertEquals(Integer.valueOf(1), queue.take());
+        Assert.assertNull(queue.take());
+    }
+}
@@ -0,0 +1,57 @@
+package ru.blc.cutlet.vk.method;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CircuitBreakerTest {
+    private static final String INTERNAL = "{\"error\":{\"error_code\":10,\"error_msg\":\"Internal server error\"}}";
+    private static final String ACCESS_DENIED = "{\"error\":{\"error_code\":15,\"error_msg\":\"Access denied\"}}";
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+
+    @Test
+    public void opensAfterFailuresInARow() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        Execute method = new Execute();
+        breaker.execute(method, TOKEN, () -> CompletableFuture.completedFuture(INTERNAL)).join();
+        breaker.execute(method, TOKEN, () -> CompletableFuture.completedFuture(INTERNAL)).join();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(method, TOKEN));
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            breaker.execute(method, TOKEN, () -> {
+                attempts.incrementAndGet();
+                return CompletableFuture.completedFuture("{\"response\":1}");
+            }).join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+        Assert.assertEquals(0, attempts.get());
+        Assert.assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void ignoresClientErrors() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        Execute method = new Execute();
+        breaker.execute(method, TOKEN, () -> CompletableFuture.completedFuture(ACCESS_DENIED)).join();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(method, TOKEN));
+    }
+
+    @Test
+    public void closesAfterSuccessfulProbe() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        Execute method = new Execute();
+        AtomicInteger changes = new AtomicInteger();
+        breaker.setListener((m, token, from, to) -> changes.incrementAndGet());
+        breaker.execute(method, TOKEN, () -> CompletableFuture.completedFuture(INTERNAL)).join();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(method, TOKEN));
+        breaker.execute(method, TOKEN, () -> CompletableFuture.completedFuture("{\"response\":1}")).join();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(method, TOKEN));
+        Assert.assertEquals(3, changes.get());
+    }
+}
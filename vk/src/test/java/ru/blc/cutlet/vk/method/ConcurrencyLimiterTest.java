@@ -0,0 +1,74 @@
+package ru.blc.cutlet.vk.method;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConcurrencyLimiterTest {
+    private static final String TOO_MANY = "{\"error\":{\"error_code\":6,\"error_msg\":\"Too many requests per second\"}}";
+
+    @Test
+    public void queuesCallsAboveLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> running = limiter.execute(null, () -> first);
+        CompletableFuture<String> waiting = limiter.execute(null, () -> CompletableFuture.completedFuture("second"));
+        Assert.assertEquals(1, limiter.getInFlight());
+        Assert.assertEquals(1, limiter.getQueueSize());
+        first.complete("first");
+        Assert.assertEquals("first", running.join());
+        Assert.assertEquals("second", waiting.join());
+        Assert.assertEquals(0, limiter.getQueueSize());
+    }
+
+    @Test
+    public void decreasesLimitOnOverload() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 10).setBackoff(0.5);
+        limiter.execute(null, () -> CompletableFuture.completedFuture(TOO_MANY)).join();
+        Assert.assertEquals(5, limiter.getLimit());
+        Assert.assertEquals(1, limiter.getDecreaseCount());
+    }
+
+    @Test
+    public void skipsCancelledCalls() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        limiter.execute(null, () -> first);
+        AtomicBoolean started = new AtomicBoolean();
+        CompletableFuture<String> cancelled = limiter.execute(null, () -> {
+            started.set(true);
+            return CompletableFuture.completedFuture("second");
+        });
+        CompletableFuture<String> third = limiter.execute(null, () -> CompletableFuture.completedFuture("third"));
+        cancelled.cancel(false);
+        first.complete("first");
+        Assert.assertEquals("third", third.get(5, TimeUnit.SECONDS));
+        Assert.assertFalse(started.get());
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (limiter.getInFlight() > 0 && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void skipsExpiredCalls() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10);
+        CompletableFuture<String> first = new CompletableFuture<>();
+        limiter.execute(null, () -> first);
+        CompletableFuture<String> waiting = limiter.execute(Deadline.after(0, TimeUnit.MILLISECONDS),
+                () -> CompletableFuture.completedFuture("second"));
+        first.complete("first");
+        try {
+            waiting.join();
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertEquals(1, limiter.getExpiredCount());
+    }
+}
@@ -0,0 +1,78 @@
+package ru.blc.cutlet.vk.method;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ExecuteBatcherTest {
+    @Test
+    public void splitsExecuteAnswer() {
+        String answer = "{\"response\":[15,false,[{\"id\":1}]],"
+                + "\"execute_errors\":[{\"method\":\"messages.delete\",\"error_code\":15,\"error_msg\":\"Access denied\"}]}";
+        List<String> split = ExecuteBatcher.splitAnswer(answer, 3);
+        Assert.assertEquals("{\"response\":15}", split.get(0));
+        Assert.assertEquals("{\"error\":{\"method\":\"messages.delete\",\"error_code\":15,\"error_msg\":\"Access denied\"}}", split.get(1));
+        Assert.assertEquals("{\"response\":[{\"id\":1}]}", split.get(2));
+    }
+
+    @Test
+    public void sharesTopLevelError() {
+        String answer = "{\"error\":{\"error_code\":6,\"error_msg\":\"Too many requests per second\"}}";
+        List<String> split = ExecuteBatcher.splitAnswer(answer, 2);
+        Assert.assertEquals(answer, split.get(0));
+        Assert.assertEquals(answer, split.get(1));
+    }
+
+    @Test
+    public void limiterDoesNotHoldBatchedCalls() throws Exception {
+        // мест в ограничителе столько же, сколько вызовов в execute: сам execute все равно должен получить место
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 2);
+        ExecuteBatcher batcher = new ExecuteBatcher(200);
+        LoopbackTransport transport = new LoopbackTransport(request -> LoopbackTransport.Response.ok("{\"response\":[1,2]}"));
+        VkModule.setTransport(transport);
+        VkModule.setConcurrencyLimiter(limiter);
+        VkModule.setExecuteBatcher(batcher);
+        try {
+            AccessToken token = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+            Ping ping = new Ping();
+            CompletableFuture<String> first = ping.getNewParamsSet().setToken(token).call();
+            CompletableFuture<String> second = ping.getNewParamsSet().setToken(token).call();
+            Assert.assertEquals("{\"response\":1}", first.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("{\"response\":2}", second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, transport.getRequestCount());
+            Assert.assertEquals(0, limiter.getInFlight());
+        } finally {
+            VkModule.setExecuteBatcher(null);
+            VkModule.setConcurrencyLimiter(null);
+            VkModule.setTransport(null);
+            batcher.close();
+        }
+    }
+
+    private static class Ping extends Method<Ping> {
+        private Ping() {
+            super("test.ping", AccessToken.AccessTokenType.GROUP);
+        }
+
+        @Override
+        public ParamsSet<Ping> getNewParamsSet() {
+            return new ParamsSet<Ping>(this) {
+                @Override
+                public List<NameValuePair> getParams() {
+                    List<NameValuePair> params = new ArrayList<>();
+                    params.add(new BasicNameValuePair("n", "1"));
+                    return params;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ru.blc.cutlet.vk.method;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.HttpTransport;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PageIteratorTest {
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+
+    private final List<String> offsets = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void reset() {
+        VkModule.setTransport(null);
+        VkModule.setRequestCoalescer(null);
+    }
+
+    @Test
+    public void readsPagesUntilCount() {
+        VkModule.setTransport(items(5, 5));
+        List<Integer> read = new ArrayList<>();
+        try (PageIterator<Integer> pages = iterator(2)) {
+            pages.forEachRemaining(read::add);
+        }
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), read);
+        // после последней страницы следующая не запрашивается
+        Assert.assertEquals(Arrays.asList("0", "2", "4"), offsets);
+    }
+
+    @Test
+    public void stopsOnEmptyPage() {
+        // count обещает 10 элементов, но после второго список пуст
+        VkModule.setTransport(items(10, 2));
+        List<Integer> read = new ArrayList<>();
+        try (PageIterator<Integer> pages = iterator(2)) {
+            pages.forEachRemaining(read::add);
+        }
+        Assert.assertEquals(Arrays.asList(0, 1), read);
+        Assert.assertEquals(Arrays.asList("0", "2"), offsets);
+    }
+
+    @Test
+    public void prefetchesNextPage() throws Exception {
+        VkModule.setTransport(items(6, 6));
+        try (PageIterator<Integer> pages = iterator(2)) {
+            Assert.assertEquals(0, (int) pages.next());
+            // вторая страница запрашивается, хотя первая еще не прочитана, а третья ждет чтения второй
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (offsets.size() < 2 && System.nanoTime() < end) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            Assert.assertEquals(Arrays.asList("0", "2"), offsets);
+        }
+    }
+
+    @Test
+    public void closeAbortsPrefetchedPage() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch aborted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        LoopbackTransport items = items(4, 4);
+        VkModule.setTransport(request -> new HttpTransport.TransportCall() {
+            @Override
+            public <R> R execute(HttpTransport.BodyHandler<R> handler) throws IOException {
+                if (request.getFormParams().containsKey("offset")) {
+                    started.countDown();
+                    try {
+                        // страница ждет, пока ее не прервут
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return items.newCall(request).execute(handler);
+            }
+
+            @Override
+            public void abort() {
+                aborted.countDown();
+                release.countDown();
+            }
+        });
+        // страницы идемпотентного метода объединяются, и close должен прервать общий запрос
+        VkModule.setRequestCoalescer(new RequestCoalescer());
+        PageIterator<Integer> pages = iterator(2);
+        Assert.assertEquals(0, (int) pages.next());
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        pages.close();
+        Assert.assertTrue(aborted.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(pages.hasNext());
+    }
+
+    @Test
+    public void withPageKeepsTemplate() {
+        ParamsSet<Items> template = new Items().getNewParamsSet();
+        template.setToken(TOKEN);
+        List<NameValuePair> before = template.getParams();
+        ParamsSet<Items> page = PageIterator.withPage(template, 200, 100);
+
+        Assert.assertEquals(before, template.getParams());
+        Assert.assertEquals(TOKEN, page.getToken());
+        Assert.assertEquals(template.getVersion(), page.getVersion());
+        Assert.assertEquals(Arrays.asList(
+                new BasicNameValuePair("owner_id", "1"),
+                new BasicNameValuePair("offset", "200"),
+                new BasicNameValuePair("count", "100")), page.getParams());
+    }
+
+    private static PageIterator<Integer> iterator(int pageSize) {
+        ParamsSet<Items> template = new Items().getNewParamsSet();
+        template.setToken(TOKEN);
+        return new PageIterator<>(template, 0, pageSize, response -> PageIterator.Page.load(response, item -> item.getInt("id")));
+    }
+
+    /**
+     * @param count количество элементов, которое сообщает вк
+     * @param available сколько элементов на самом деле можно прочитать
+     */
+    private LoopbackTransport items(int count, int available) {
+        return new LoopbackTransport(request -> {
+            Map<String, String> params = request.getFormParams();
+            int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+            offsets.add(String.valueOf(offset));
+            StringBuilder answer = new StringBuilder("{\"response\":{\"count\":").append(count).append(",\"items\":[");
+            int end = Math.min(available, offset + Integer.parseInt(params.get("count")));
+            for (int i = offset; i < end; i++) {
+                if (i > offset) answer.append(',');
+                answer.append("{\"id\":").append(i).append('}');
+            }
+            return LoopbackTransport.Response.ok(answer.append("]}}").toString());
+        });
+    }
+
+    private static class Items extends Method<Items> {
+        private Items() {
+            super("test.items", AccessToken.AccessTokenType.GROUP);
+        }
+
+        @Override
+        public int getCacheTime() {
+            return 60;
+        }
+
+        @Override
+        public ParamsSet<Items> getNewParamsSet() {
+            return new ParamsSet<Items>(this) {
+                @Override
+                public List<NameValuePair> getParams() {
+                    List<NameValuePair> params = new ArrayList<>();
+                    params.add(new BasicNameValuePair("owner_id", "1"));
+                    params.add(new BasicNameValuePair("count", "50"));
+                    return params;
+                }
+            };
+        }
+    }
+}
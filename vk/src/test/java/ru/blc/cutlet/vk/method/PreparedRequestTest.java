@@ -0,0 +1,54 @@
+package ru.blc.cutlet.vk.method;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.ApiVersion;
+import ru.blc.cutlet.vk.method.messages.Send;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PreparedRequestTest {
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+
+    @Test
+    public void encodesLikeParamsSet() {
+        PreparedRequest<Send> prepared = new Send().getNewParamsSet().setMessage("Меню & кнопки").prepare();
+        PreparedRequest<Send>.Call call = prepared.newCall().set("peer_id", 42);
+        List<NameValuePair> params = call.getParams();
+        byte[] body = ((PreparedRequest.EncodedParams) params).encode(TOKEN, ApiVersion.LAST);
+
+        List<NameValuePair> expected = new ArrayList<>(params);
+        expected.add(new BasicNameValuePair("access_token", TOKEN.getValue()));
+        expected.add(new BasicNameValuePair("v", ApiVersion.LAST.getText()));
+        Assert.assertEquals(URLEncodedUtils.format(expected, StandardCharsets.UTF_8), new String(body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void createsRandomIdForEveryCall() {
+        PreparedRequest<Send> prepared = new Send().getNewParamsSet().setMessage("text").setRandomId(5).prepare();
+        Assert.assertNotEquals(randomId(prepared.newCall().getParams()), randomId(prepared.newCall().getParams()));
+        Assert.assertEquals("7", randomId(prepared.newCall().set("random_id", 7).getParams()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void doesNotOverridePreparedParams() {
+        new Send().getNewParamsSet().setMessage("text").prepare().newCall().set("message", "other");
+    }
+
+    private static String randomId(List<NameValuePair> params) {
+        String value = null;
+        for (NameValuePair pair : params) {
+            if (pair.getName().equals("random_id")) {
+                Assert.assertNull("random_id is duplicated", value);
+                value = pair.getValue();
+            }
+        }
+        return value;
+    }
+}
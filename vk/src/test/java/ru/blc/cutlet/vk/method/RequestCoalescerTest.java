@@ -0,0 +1,114 @@
+package ru.blc.cutlet.vk.method;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestCoalescerTest {
+    @Test
+    public void sharesInFlightRequest() {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<String> answer = new CompletableFuture<>();
+        CompletableFuture<String> first = coalescer.submit("users.get?user_ids=1", () -> {
+            sent.incrementAndGet();
+            return answer;
+        });
+        CompletableFuture<String> second = coalescer.submit("users.get?user_ids=1", () -> {
+            sent.incrementAndGet();
+            return answer;
+        });
+        answer.complete("{\"response\":[]}");
+        Assert.assertEquals(1, sent.get());
+        Assert.assertEquals("{\"response\":[]}", first.join());
+        Assert.assertEquals("{\"response\":[]}", second.join());
+        Assert.assertEquals(0, coalescer.getInFlightCount());
+
+        coalescer.submit("users.get?user_ids=1", () -> {
+            sent.incrementAndGet();
+            return CompletableFuture.completedFuture("{\"response\":[]}");
+        }).join();
+        Assert.assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void cancelsRequestAfterLastSubscriber() {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        CompletableFuture<String> answer = new CompletableFuture<>();
+        CompletableFuture<String> first = coalescer.submit("users.get?user_ids=1", () -> answer);
+        CompletableFuture<String> second = coalescer.submit("users.get?user_ids=1", () -> answer);
+        first.cancel(false);
+        // второй вызов еще ждет ответа
+        Assert.assertFalse(answer.isCancelled());
+        second.cancel(false);
+        Assert.assertTrue(answer.isCancelled());
+        Assert.assertEquals(0, coalescer.getInFlightCount());
+
+        CompletableFuture<String> next = coalescer.submit("users.get?user_ids=1", () -> CompletableFuture.completedFuture("{\"response\":[]}"));
+        Assert.assertEquals("{\"response\":[]}", next.join());
+        Assert.assertEquals(2, coalescer.getRequestCount());
+    }
+
+    @Test
+    public void sharesAnswerBetweenReaders() throws Exception {
+        CountDownLatch submitted = new CountDownLatch(1);
+        LoopbackTransport transport = new LoopbackTransport(request -> {
+            try {
+                submitted.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return LoopbackTransport.Response.ok("{\"response\":7}");
+        });
+        VkModule.setTransport(transport);
+        VkModule.setRequestCoalescer(new RequestCoalescer());
+        try {
+            AccessToken token = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+            Lookup lookup = new Lookup();
+            ParamsSet<Lookup> params = lookup.getNewParamsSet();
+            params.setToken(token);
+            // у каждого вызова свой reader, но запрос один
+            CompletableFuture<Integer> first = params.call(reader -> reader.nextInt());
+            CompletableFuture<Integer> second = params.call(reader -> reader.nextInt() * 2);
+            submitted.countDown();
+            Assert.assertEquals(7, (int) first.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(14, (int) second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, transport.getRequestCount());
+        } finally {
+            VkModule.setRequestCoalescer(null);
+            VkModule.setTransport(null);
+        }
+    }
+
+    private static class Lookup extends Method<Lookup> {
+        private Lookup() {
+            super("test.lookup", AccessToken.AccessTokenType.GROUP);
+        }
+
+        @Override
+        public int getCacheTime() {
+            return 60;
+        }
+
+        @Override
+        public ParamsSet<Lookup> getNewParamsSet() {
+            return new ParamsSet<Lookup>(this) {
+                @Override
+                public List<NameValuePair> getParams() {
+                    return Collections.singletonList(new BasicNameValuePair("id", "1"));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ru.blc.cutlet.vk.method;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class RequestSchedulerTest {
+    private static final String TOO_MANY_REQUESTS = "{\"error\":{\"error_code\":6,\"error_msg\":\"Too many requests per second\"}}";
+
+    @Test
+    public void pacesEachTokenSeparately() throws Exception {
+        try (RequestScheduler scheduler = new RequestScheduler().setRate(AccessToken.AccessTokenType.GROUP, 5)) {
+            AccessToken first = new AccessToken("first", AccessToken.AccessTokenType.GROUP);
+            AccessToken second = new AccessToken("second", AccessToken.AccessTokenType.GROUP);
+            long start = System.nanoTime();
+            List<CompletableFuture<Long>> firstCalls = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                firstCalls.add(scheduler.schedule(first, System::nanoTime));
+            }
+            List<CompletableFuture<Long>> secondCalls = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                secondCalls.add(scheduler.schedule(second, System::nanoTime));
+            }
+            long[] sent = new long[firstCalls.size()];
+            for (int i = 0; i < sent.length; i++) {
+                sent[i] = firstCalls.get(i).get(5, TimeUnit.SECONDS);
+            }
+
+            // 5 запросов сразу, остальные по одному в 200 мс. С темпом первые 5 заняли бы 800 мс
+            Assert.assertTrue(millis(sent[0], sent[4]) < 600);
+            for (int i = 5; i < sent.length; i++) {
+                // за t секунд токен отдает не больше 5 + 5 * t запросов
+                Assert.assertTrue("call " + i, millis(start, sent[i]) >= (i - 4) * 200 - 20);
+            }
+            // очередь первого токена не задерживает второй
+            Assert.assertTrue(secondCalls.get(4).get(5, TimeUnit.SECONDS) < sent[5]);
+        }
+    }
+
+    @Test
+    public void retriesAtHeadOfQueue() throws Exception {
+        try (RequestScheduler scheduler = new RequestScheduler()
+                .setRate(AccessToken.AccessTokenType.GROUP, 5)
+                .setMaxRetries(1)
+                .setRetryDelay(50)) {
+            AccessToken token = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            AtomicBoolean limited = new AtomicBoolean(true);
+            CompletableFuture<String> retried = scheduler.schedule(token, () -> {
+                order.add("retried");
+                return limited.getAndSet(false) ? TOO_MANY_REQUESTS : "{\"response\":1}";
+            });
+            for (int i = 0; i < 4; i++) {
+                scheduler.schedule(token, () -> "{\"response\":0}");
+            }
+            // разрешения кончились, этот запрос ждет в очереди
+            CompletableFuture<String> queued = scheduler.schedule(token, () -> {
+                order.add("queued");
+                return "{\"response\":2}";
+            });
+
+            Assert.assertEquals("{\"response\":1}", retried.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("{\"response\":2}", queued.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(3, order.size());
+            Assert.assertEquals("retried", order.get(1));
+            Assert.assertEquals("queued", order.get(2));
+        }
+    }
+
+    @Test
+    public void doesNotRetryByDefault() throws Exception {
+        try (RequestScheduler scheduler = new RequestScheduler()) {
+            AccessToken token = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+            Assert.assertEquals(TOO_MANY_REQUESTS, scheduler.schedule(token, () -> TOO_MANY_REQUESTS).get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static long millis(long from, long to) {
+        return TimeUnit.NANOSECONDS.toMillis(to - from);
+    }
+}
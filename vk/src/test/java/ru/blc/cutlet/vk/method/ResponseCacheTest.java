@@ -0,0 +1,128 @@
+package ru.blc.cutlet.vk.method;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.ApiVersion;
+import ru.blc.cutlet.vk.JsonHandler;
+import ru.blc.cutlet.vk.VkModule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ResponseCacheTest {
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+    private static final String ANSWER = "{\"response\":{\"count\":1}}";
+
+    @Test
+    public void expiresAfterCacheTime() throws Exception {
+        Method<?> method = VkModule.METHODS.messages.getConversationMembers;
+        ResponseCache cache = new ResponseCache(10).setCacheTime(method.getCallAdress(), 1);
+        List<NameValuePair> params = params("peer_id", "2000000001");
+        String key = ResponseCache.key(method, params, TOKEN, ApiVersion.LAST);
+        cache.put(key, method, params, ANSWER);
+        Assert.assertEquals(ANSWER, cache.get(key));
+        Thread.sleep(1100);
+        Assert.assertNull(cache.get(key));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        Method<?> method = VkModule.METHODS.messages.getConversationMembers;
+        ResponseCache cache = new ResponseCache(2).setCacheTime(method.getCallAdress(), 60);
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            List<NameValuePair> params = params("peer_id", String.valueOf(i));
+            keys[i] = ResponseCache.key(method, params, TOKEN, ApiVersion.LAST);
+            if (i == 2) {
+                // первый ответ использовался позже второго
+                Assert.assertNotNull(cache.get(keys[0]));
+            }
+            cache.put(keys[i], method, params, ANSWER);
+        }
+        Assert.assertNotNull(cache.get(keys[0]));
+        Assert.assertNull(cache.get(keys[1]));
+        Assert.assertNotNull(cache.get(keys[2]));
+        Assert.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void keepsAnswersOfEachToken() {
+        Method<?> method = VkModule.METHODS.messages.getConversationMembers;
+        ResponseCache cache = new ResponseCache(10).setCacheTime(method.getCallAdress(), 60);
+        AccessToken other = new AccessToken("other", AccessToken.AccessTokenType.GROUP);
+        List<NameValuePair> params = params("peer_id", "2000000001");
+        String key = ResponseCache.key(method, params, TOKEN, ApiVersion.LAST);
+        String otherKey = ResponseCache.key(method, params, other, ApiVersion.LAST);
+        Assert.assertNotEquals(key, otherKey);
+        cache.put(key, method, params, ANSWER);
+        Assert.assertNull(cache.get(otherKey));
+        cache.put(otherKey, method, params, "{\"response\":{\"count\":2}}");
+        Assert.assertEquals(ANSWER, cache.get(key));
+        Assert.assertEquals("{\"response\":{\"count\":2}}", cache.get(otherKey));
+    }
+
+    @Test
+    public void keyDoesNotDependOnParamsOrder() {
+        Method<?> method = VkModule.METHODS.messages.getConversationMembers;
+        List<NameValuePair> params = Arrays.asList(new BasicNameValuePair("peer_id", "1"), new BasicNameValuePair("offset", "0"));
+        List<NameValuePair> reversed = Arrays.asList(params.get(1), params.get(0));
+        Assert.assertEquals(ResponseCache.key(method, params, TOKEN, ApiVersion.LAST), ResponseCache.key(method, reversed, TOKEN, ApiVersion.LAST));
+    }
+
+    @Test
+    public void chatEventsInvalidateChatAnswers() {
+        Method<?> members = VkModule.METHODS.messages.getConversationMembers;
+        Method<?> chat = VkModule.METHODS.messages.getChat;
+        ResponseCache cache = new ResponseCache(10)
+                .setCacheTime(members.getCallAdress(), 60)
+                .setCacheTime(chat.getCallAdress(), 60);
+        List<NameValuePair> changed = params("peer_id", "2000000001");
+        List<NameValuePair> other = params("peer_id", "2000000002");
+        List<NameValuePair> chatParams = params("chat_id", "1");
+        String changedKey = ResponseCache.key(members, changed, TOKEN, ApiVersion.LAST);
+        String otherKey = ResponseCache.key(members, other, TOKEN, ApiVersion.LAST);
+        String chatKey = ResponseCache.key(chat, chatParams, TOKEN, ApiVersion.LAST);
+        cache.put(changedKey, members, changed, ANSWER);
+        cache.put(otherKey, members, other, ANSWER);
+        cache.put(chatKey, chat, chatParams, ANSWER);
+
+        VkModule.setResponseCache(cache);
+        try {
+            new ChatHandler().chatChanged(2000000001);
+        } finally {
+            VkModule.setResponseCache(null);
+        }
+        Assert.assertNull(cache.get(changedKey));
+        Assert.assertNotNull(cache.get(otherKey));
+        Assert.assertNull(cache.get(chatKey));
+    }
+
+    @Test
+    public void doesNotStoreErrors() {
+        Method<?> method = VkModule.METHODS.messages.getConversationMembers;
+        ResponseCache cache = new ResponseCache(10).setCacheTime(method.getCallAdress(), 60);
+        List<NameValuePair> params = params("peer_id", "1");
+        String key = ResponseCache.key(method, params, TOKEN, ApiVersion.LAST);
+        cache.put(key, method, params, "{\"error\":{\"error_code\":917,\"error_msg\":\"You don't have access to this chat\"}}");
+        Assert.assertNull(cache.get(key));
+    }
+
+    private static List<NameValuePair> params(String name, String value) {
+        return Collections.singletonList(new BasicNameValuePair(name, value));
+    }
+
+    private static class ChatHandler extends JsonHandler {
+        private ChatHandler() {
+            super(null);
+        }
+
+        private void chatChanged(int peerId) {
+            invalidateChatCache(peerId);
+        }
+    }
+}
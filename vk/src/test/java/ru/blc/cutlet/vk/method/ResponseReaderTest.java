@@ -0,0 +1,53 @@
+package ru.blc.cutlet.vk.method;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.objects.main.User;
+
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResponseReaderTest {
+    private static final ResponseReader<List<Integer>> INTEGERS = ResponseReader.listOf(ResponseReader.INTEGER);
+
+    @Test
+    public void readsResponse() {
+        // поля до response пропускаются
+        String answer = "{\"execute_errors\":[{\"method\":\"users.get\"}],\"response\":[1,2,3]}";
+        Assert.assertEquals(Arrays.asList(1, 2, 3), ResponseReader.readAnswer(answer, INTEGERS));
+    }
+
+    @Test
+    public void throwsApiError() {
+        String answer = "{\"error\":{\"error_code\":15,\"error_msg\":\"Access denied\",\"request_params\":[]}}";
+        try {
+            ResponseReader.readAnswer(answer, INTEGERS);
+            Assert.fail();
+        } catch (VkApiException e) {
+            Assert.assertEquals(15, e.getErrorCode());
+            Assert.assertEquals("Access denied", e.getErrorMsg());
+        }
+    }
+
+    @Test
+    public void failsOnMalformedStream() {
+        for (String answer : Arrays.asList("{\"response\":[1,2", "{\"count\":1}", "not json", null)) {
+            try {
+                ResponseReader.readAnswer(answer, INTEGERS);
+                Assert.fail(answer);
+            } catch (UncheckedIOException e) {
+                // ответ не разобран
+            }
+        }
+    }
+
+    @Test
+    public void userReadSkipsOtherFields() {
+        String answer = "{\"response\":[{\"id\":1,\"photo_100\":{\"url\":\"https://vk.com/images/1.jpg\"},\"first_name\":\"Name\",\"last_name\":\"Surname\"}]}";
+        User user = ResponseReader.readAnswer(answer, ResponseReader.listOf(User::read)).get(0);
+        Assert.assertEquals(1, user.getId());
+        Assert.assertEquals("Surname", user.getLastName());
+        Assert.assertNull(user.getSource());
+    }
+}
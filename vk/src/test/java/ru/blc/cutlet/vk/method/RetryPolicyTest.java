@@ -0,0 +1,47 @@
+package ru.blc.cutlet.vk.method;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryPolicyTest {
+    private static final String TOO_MANY = "{\"error\":{\"error_code\":6,\"error_msg\":\"Too many requests per second\"}}";
+    private static final String INTERNAL = "{\"error\":{\"error_code\":10,\"error_msg\":\"Internal server error\"}}";
+
+    @Test
+    public void repeatsRejectedCall() {
+        try (RetryPolicy policy = new RetryPolicy().setBaseDelay(1)) {
+            AtomicInteger attempts = new AtomicInteger();
+            String answer = policy.execute(new Execute(), null,
+                    () -> CompletableFuture.completedFuture(attempts.incrementAndGet() < 3 ? TOO_MANY : "{\"response\":1}")).join();
+            Assert.assertEquals("{\"response\":1}", answer);
+            Assert.assertEquals(3, attempts.get());
+        }
+    }
+
+    @Test
+    public void doesNotRepeatUnsafeCallAfterInternalError() {
+        try (RetryPolicy policy = new RetryPolicy().setBaseDelay(1)) {
+            AtomicInteger attempts = new AtomicInteger();
+            String answer = policy.execute(new Execute(), null,
+                    () -> CompletableFuture.completedFuture(attempts.incrementAndGet() == 1 ? INTERNAL : "{\"response\":1}")).join();
+            Assert.assertEquals(INTERNAL, answer);
+            Assert.assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void stopsWhenBudgetIsSpent() {
+        try (RetryPolicy policy = new RetryPolicy().setBaseDelay(1).setMaxAttempts(10).setBudget(0, 2)) {
+            AtomicInteger attempts = new AtomicInteger();
+            policy.execute(new Execute(), null, () -> {
+                attempts.incrementAndGet();
+                return CompletableFuture.completedFuture(TOO_MANY);
+            }).join();
+            Assert.assertEquals(3, attempts.get());
+            Assert.assertEquals(1, policy.getBudgetRejectedCount());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ru.blc.cutlet.vk.method;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TimeoutsTest {
+    @Test
+    public void completesWithTimeoutAndCancelsRequest() throws InterruptedException {
+        try (Timeouts timeouts = new Timeouts()) {
+            Cancellation cancellation = new Cancellation();
+            CompletableFuture<String> future = timeouts.bound(new CompletableFuture<>(),
+                    Deadline.after(20, TimeUnit.MILLISECONDS), cancellation, "test.method");
+            try {
+                future.get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            // запрос прерывается в потоке таймера сразу после завершения задачи
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!cancellation.isCancelled() && System.nanoTime() < end) {
+                Thread.sleep(1);
+            }
+            Assert.assertTrue(cancellation.isCancelled());
+        }
+    }
+
+    @Test
+    public void cancelAbortsRequest() {
+        try (Timeouts timeouts = new Timeouts()) {
+            Cancellation cancellation = new Cancellation();
+            CompletableFuture<String> future = timeouts.bound(new CompletableFuture<>(), null, cancellation, "test.method");
+            future.cancel(false);
+            Assert.assertTrue(cancellation.isCancelled());
+        }
+    }
+
+    @Test
+    public void threadDeadlineKeepsEarliest() {
+        Deadline near = Deadline.after(1, TimeUnit.SECONDS);
+        Deadline far = Deadline.after(1, TimeUnit.HOURS);
+        Deadline.with(near, () -> Deadline.with(far, () -> Assert.assertSame(near, Deadline.current())));
+        Assert.assertNull(Deadline.current());
+    }
+}
@@ -0,0 +1,140 @@
+package ru.blc.cutlet.vk.method.messages;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+import ru.blc.cutlet.vk.method.CircuitBreaker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BroadcastTest {
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+
+    @After
+    public void reset() {
+        VkModule.setCircuitBreaker(null);
+        VkModule.setTransport(null);
+    }
+
+    @Test
+    public void sendsPeersInChunks() throws Exception {
+        List<String> peerIds = Collections.synchronizedList(new ArrayList<>());
+        VkModule.setTransport(new LoopbackTransport(request -> {
+            String peers = request.getFormParams().get("peer_ids");
+            peerIds.add(peers);
+            return LoopbackTransport.Response.ok(answer(peers.split(","), -1));
+        }));
+        List<Integer> peers = new ArrayList<>();
+        for (int peer = 1; peer <= 250; peer++) {
+            peers.add(peer);
+        }
+        Broadcast broadcast = new Broadcast(template(), peers);
+        broadcast.start().get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(3, peerIds.size());
+        for (String chunk : peerIds) {
+            Assert.assertTrue(chunk.split(",").length <= Broadcast.MAX_PEERS);
+        }
+        Assert.assertEquals(250, broadcast.getSentCount());
+        Assert.assertEquals(1.0, broadcast.getProgress(), 0);
+        Assert.assertEquals(Broadcast.Status.SENT, broadcast.getDelivery(250).getStatus());
+        Assert.assertEquals(250, broadcast.getDelivery(250).getMessageId());
+    }
+
+    @Test
+    public void keepsResultOfEveryPeer() throws Exception {
+        // вк отказал получателю 2 и не вернул результат для получателя 3
+        VkModule.setTransport(new LoopbackTransport(request -> LoopbackTransport.Response.ok(answer(new String[]{"1", "2"}, 2))));
+        Broadcast broadcast = new Broadcast(template(), peers(1, 3));
+        broadcast.start().get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(Broadcast.Status.SENT, broadcast.getDelivery(1).getStatus());
+        Broadcast.Delivery rejected = broadcast.getDelivery(2);
+        Assert.assertEquals(Broadcast.Status.REJECTED, rejected.getStatus());
+        Assert.assertEquals(901, rejected.getErrorCode());
+        Assert.assertEquals(Broadcast.Status.FAILED, broadcast.getDelivery(3).getStatus());
+        Assert.assertEquals(1, broadcast.getSentCount());
+        Assert.assertEquals(1, broadcast.getRejectedCount());
+        Assert.assertEquals(1, broadcast.getFailedCount());
+    }
+
+    @Test
+    public void resumesFailedChunkWithSameRandomId() throws Exception {
+        List<String> randomIds = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean down = new AtomicBoolean(true);
+        VkModule.setTransport(new LoopbackTransport(request -> {
+            Map<String, String> params = request.getFormParams();
+            randomIds.add(params.get("random_id"));
+            if (down.get()) throw new IOException("Connection reset");
+            return LoopbackTransport.Response.ok(answer(params.get("peer_ids").split(","), -1));
+        }));
+        Broadcast broadcast = new Broadcast(template(), peers(1, 5));
+        broadcast.start().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(5, broadcast.getFailedCount());
+
+        down.set(false);
+        broadcast.resume().get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, broadcast.getFailedCount());
+        Assert.assertEquals(5, broadcast.getSentCount());
+        Assert.assertEquals(2, randomIds.size());
+        Assert.assertEquals(randomIds.get(0), randomIds.get(1));
+    }
+
+    @Test
+    public void survivesChunksFailingImmediately() throws Exception {
+        // после первой ошибки цепь разомкнута, и остальные части завершаются прямо внутри отправки
+        VkModule.setCircuitBreaker(new CircuitBreaker(1, TimeUnit.MINUTES.toMillis(1)));
+        VkModule.setTransport(new LoopbackTransport(request ->
+                LoopbackTransport.Response.ok("{\"error\":{\"error_code\":10,\"error_msg\":\"Internal server error\"}}")));
+        Broadcast broadcast = new Broadcast(template(), peers(1, 1_000_000));
+        broadcast.start().get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(1_000_000, broadcast.getFailedCount());
+    }
+
+    private static Send.SendParamsSet template() {
+        Send.SendParamsSet template = new Send().getNewParamsSet().setMessage("text");
+        template.setToken(TOKEN);
+        return template;
+    }
+
+    private static Iterator<Integer> peers(int from, int to) {
+        return new Iterator<Integer>() {
+            private int next = from;
+
+            @Override
+            public boolean hasNext() {
+                return next <= to;
+            }
+
+            @Override
+            public Integer next() {
+                return next++;
+            }
+        };
+    }
+
+    private static String answer(String[] peers, int rejected) {
+        StringBuilder answer = new StringBuilder("{\"response\":[");
+        for (int i = 0; i < peers.length; i++) {
+            if (i > 0) answer.append(',');
+            int peer = Integer.parseInt(peers[i]);
+            answer.append("{\"peer_id\":").append(peer);
+            if (peer == rejected) {
+                answer.append(",\"error\":{\"code\":901,\"description\":\"Can't send messages for users without permission\"}}");
+            } else {
+                answer.append(",\"message_id\":").append(peer).append('}');
+            }
+        }
+        return answer.append("]}").toString();
+    }
+}
@@ -0,0 +1,33 @@
+package ru.blc.cutlet.vk.method.messages;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class MessageSplitterTest {
+    @Test
+    public void splitsOnNewLineThenSpace() {
+        Assert.assertEquals(Arrays.asList("aaaa", "bb cc", "dd"), MessageSplitter.split("aaaa\nbb cc dd", 6));
+    }
+
+    @Test
+    public void cutsTextWithoutBreaks() {
+        Assert.assertEquals(Arrays.asList("abcd", "efgh", "ij"), MessageSplitter.split("abcdefghij", 4));
+    }
+
+    @Test
+    public void keepsSurrogatePairs() {
+        String smile = "😀";
+        List<String> parts = MessageSplitter.split("abc" + smile + "def", 4);
+        Assert.assertEquals("abc", parts.get(0));
+        Assert.assertEquals(smile + "de", parts.get(1));
+        Assert.assertEquals("f", parts.get(2));
+    }
+
+    @Test
+    public void keepsShortText() {
+        Assert.assertEquals(Arrays.asList("hello"), MessageSplitter.split("hello"));
+    }
+}
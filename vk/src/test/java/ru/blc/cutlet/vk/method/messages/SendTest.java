@@ -0,0 +1,45 @@
+package ru.blc.cutlet.vk.method.messages;
+
+import com.google.common.base.Strings;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+
+import java.util.concurrent.TimeUnit;
+
+public class SendTest {
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+
+    @After
+    public void reset() {
+        VkModule.setTransport(null);
+    }
+
+    @Test
+    public void sendsAllPartsOfLongMessage() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport(request -> LoopbackTransport.Response.ok("{\"response\":1}"));
+        VkModule.setTransport(transport);
+        Assert.assertEquals("{\"response\":1}", longMessage().call().get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, transport.getRequestCount());
+    }
+
+    @Test
+    public void stopsAfterErrorOnPart() throws Exception {
+        String error = "{ \"error\": {\"error_code\": 901, \"error_msg\": \"Can't send messages for users without permission\"}}";
+        LoopbackTransport transport = new LoopbackTransport(request -> LoopbackTransport.Response.ok(error));
+        VkModule.setTransport(transport);
+        Assert.assertEquals(error, longMessage().call().get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, transport.getRequestCount());
+    }
+
+    private static Send.SendParamsSet longMessage() {
+        Send.SendParamsSet params = new Send().getNewParamsSet()
+                .setPeerId(1)
+                .setMessage(Strings.repeat("a ", MessageSplitter.MAX_LENGTH));
+        params.setToken(TOKEN);
+        return params;
+    }
+}
@@ -0,0 +1,134 @@
+package ru.blc.cutlet.vk.method.users;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+import ru.blc.cutlet.vk.objects.main.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class UserLoaderTest {
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+
+    private final List<Map<String, String>> requests = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void reset() {
+        VkModule.setTransport(null);
+    }
+
+    @Test
+    public void mergesCallsOfOneTick() throws Exception {
+        VkModule.setTransport(users(-1));
+        try (UserLoader loader = new UserLoader(100)) {
+            CompletableFuture<User> first = loader.load(TOKEN, 1, "sex");
+            CompletableFuture<User> second = loader.load(TOKEN, 2, "city", "sex");
+            CompletableFuture<User> again = loader.load(TOKEN, 1);
+            Assert.assertEquals(1, first.get(5, TimeUnit.SECONDS).getId());
+            Assert.assertEquals(2, second.get(5, TimeUnit.SECONDS).getId());
+            Assert.assertEquals(1, again.get(5, TimeUnit.SECONDS).getId());
+        }
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals("1,2", requests.get(0).get("user_ids"));
+        Assert.assertEquals(Arrays.asList("sex", "city"), Arrays.asList(requests.get(0).get("fields").split(",")));
+    }
+
+    @Test
+    public void readsRequestedFields() throws Exception {
+        VkModule.setTransport(users(-1));
+        try (UserLoader loader = new UserLoader(50)) {
+            User user = loader.load(TOKEN, 1, "photo_100").get(5, TimeUnit.SECONDS);
+            Assert.assertEquals("Name", user.getFirstName());
+            Assert.assertNotNull(user.getSource());
+            Assert.assertEquals("https://vk.com/images/1.jpg", user.getSource().getString("photo_100"));
+        }
+    }
+
+    @Test
+    public void completesMissingUserWithNull() throws Exception {
+        VkModule.setTransport(users(2));
+        try (UserLoader loader = new UserLoader(50)) {
+            CompletableFuture<User> found = loader.load(TOKEN, 1);
+            CompletableFuture<User> missing = loader.load(TOKEN, 2);
+            Assert.assertEquals(1, found.get(5, TimeUnit.SECONDS).getId());
+            Assert.assertNull(missing.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void sendsFullBatchWithoutWaiting() throws Exception {
+        VkModule.setTransport(users(-1));
+        CompletableFuture<User> next;
+        try (UserLoader loader = new UserLoader(TimeUnit.MINUTES.toMillis(1))) {
+            List<CompletableFuture<User>> batch = new ArrayList<>();
+            for (int id = 1; id <= UserLoader.MAX_IDS; id++) {
+                batch.add(loader.load(TOKEN, id));
+            }
+            next = loader.load(TOKEN, UserLoader.MAX_IDS + 1);
+            Assert.assertEquals(UserLoader.MAX_IDS, batch.get(UserLoader.MAX_IDS - 1).get(5, TimeUnit.SECONDS).getId());
+            Assert.assertEquals(1, requests.size());
+            try {
+                next.get(200, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (TimeoutException e) {
+                // ждет следующего тика
+            }
+        }
+        // close отправляет неполную часть
+        Assert.assertEquals(UserLoader.MAX_IDS + 1, next.get(5, TimeUnit.SECONDS).getId());
+        Assert.assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void failsEveryCallOfBatch() throws Exception {
+        VkModule.setTransport(new LoopbackTransport(request -> {
+            throw new IOException("Connection reset");
+        }));
+        try (UserLoader loader = new UserLoader(50)) {
+            List<CompletableFuture<User>> calls = Arrays.asList(loader.load(TOKEN, 1), loader.load(TOKEN, 2), loader.load(TOKEN, 2));
+            for (CompletableFuture<User> call : calls) {
+                try {
+                    call.get(5, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    // ошибка запроса досталась каждому вызову
+                }
+            }
+        }
+    }
+
+    /**
+     * @param missing пользователь, которого вк не вернет, или -1
+     */
+    private LoopbackTransport users(int missing) {
+        return new LoopbackTransport(request -> {
+            Map<String, String> params = request.getFormParams();
+            requests.add(params);
+            StringBuilder answer = new StringBuilder("{\"response\":[");
+            boolean first = true;
+            for (String id : params.get("user_ids").split(",")) {
+                if (Integer.parseInt(id) == missing) continue;
+                if (!first) answer.append(',');
+                first = false;
+                answer.append("{\"id\":").append(id).append(",\"first_name\":\"Name\",\"last_name\":\"Surname\"");
+                if (params.containsKey("fields")) {
+                    answer.append(",\"photo_100\":\"https://vk.com/images/").append(id).append(".jpg\"");
+                }
+                answer.append('}');
+            }
+            return LoopbackTransport.Response.ok(answer.append("]}").toString());
+        });
+    }
+}
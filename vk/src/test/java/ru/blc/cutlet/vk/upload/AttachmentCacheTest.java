@@ -0,0 +1,38 @@
+package ru.blc.cutlet.vk.upload;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class AttachmentCacheTest {
+    @Test
+    public void survivesReopen() throws IOException {
+        Path file = Files.createTempDirectory("attachments").resolve("attachments.cache");
+        try (AttachmentCache cache = new AttachmentCache(file, 10, 0)) {
+            cache.put("WALL_PHOTO:1:aa", "photo-1_10");
+            cache.put("WALL_PHOTO:1:bb", "photo-1_11_key");
+            cache.invalidate("photo-1_11");
+        }
+        try (AttachmentCache cache = new AttachmentCache(file, 10, 0)) {
+            Assert.assertEquals("photo-1_10", cache.get("WALL_PHOTO:1:aa"));
+            Assert.assertNull(cache.get("WALL_PHOTO:1:bb"));
+            Assert.assertEquals(1, cache.size());
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        Path file = Files.createTempDirectory("attachments").resolve("attachments.cache");
+        try (AttachmentCache cache = new AttachmentCache(file, 2, 0)) {
+            cache.put("a", "photo1_1");
+            cache.put("b", "photo1_2");
+            cache.get("a");
+            cache.put("c", "photo1_3");
+            Assert.assertNull(cache.get("b"));
+            Assert.assertEquals("photo1_1", cache.get("a"));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ru.blc.cutlet.vk.upload;
+
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.blc.cutlet.vk.AccessToken;
+import ru.blc.cutlet.vk.VkModule;
+import ru.blc.cutlet.vk.http.LoopbackTransport;
+import ru.blc.cutlet.vk.method.VkApiException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MediaUploaderTest {
+    private static final AccessToken TOKEN = new AccessToken("token", AccessToken.AccessTokenType.GROUP);
+
+    private final AtomicInteger servers = new AtomicInteger();
+    private final List<String> posted = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void reset() {
+        VkModule.setTransport(null);
+    }
+
+    @Test
+    public void reusesServerWithinTtl() throws Exception {
+        VkModule.setTransport(api());
+        try (MediaUploader uploader = new MediaUploader(60, null, 2, this::accept)) {
+            Assert.assertEquals("photo1_10", upload(uploader));
+            Assert.assertEquals("photo1_10", upload(uploader));
+        }
+        Assert.assertEquals(1, servers.get());
+        Assert.assertEquals(Arrays.asList("https://upload.vk.com/1", "https://upload.vk.com/1"), posted);
+    }
+
+    @Test
+    public void requestsServerAfterTtl() throws Exception {
+        VkModule.setTransport(api());
+        try (MediaUploader uploader = new MediaUploader(0, null, 2, this::accept)) {
+            upload(uploader);
+            upload(uploader);
+        }
+        Assert.assertEquals(2, servers.get());
+    }
+
+    @Test
+    public void retriesOnceOnConnectionError() throws Exception {
+        VkModule.setTransport(api());
+        MediaUploader.Sender sender = (url, field, source) -> {
+            if (posted.isEmpty()) {
+                posted.add(url);
+                throw new IOException("Connection reset");
+            }
+            return accept(url, field, source);
+        };
+        try (MediaUploader uploader = new MediaUploader(60, null, 2, sender)) {
+            Assert.assertEquals("photo1_10", upload(uploader));
+        }
+        // адрес, на который загрузка не удалась, запрошен заново
+        Assert.assertEquals(2, servers.get());
+        Assert.assertEquals(Arrays.asList("https://upload.vk.com/1", "https://upload.vk.com/2"), posted);
+    }
+
+    @Test
+    public void retriesOnlyOnce() throws Exception {
+        VkModule.setTransport(api());
+        MediaUploader.Sender sender = (url, field, source) -> {
+            posted.add(url);
+            throw new IOException("Connection reset");
+        };
+        try (MediaUploader uploader = new MediaUploader(60, null, 2, sender)) {
+            upload(uploader);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getCause() instanceof IOException);
+        }
+        Assert.assertEquals(2, posted.size());
+    }
+
+    @Test
+    public void doesNotRetryRejectedFile() throws Exception {
+        VkModule.setTransport(api());
+        MediaUploader.Sender sender = (url, field, source) -> {
+            posted.add(url);
+            throw new VkApiException(0, "Upload server did not accept photo");
+        };
+        try (MediaUploader uploader = new MediaUploader(60, null, 2, sender)) {
+            upload(uploader);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof VkApiException);
+        }
+        Assert.assertEquals(1, posted.size());
+        Assert.assertEquals(1, servers.get());
+    }
+
+    private static String upload(MediaUploader uploader) throws Exception {
+        UploadSource source = UploadSource.of(ByteBuffer.wrap("photo".getBytes(StandardCharsets.UTF_8)), "photo.jpg");
+        return uploader.uploadMessagePhoto(TOKEN, 1, source).get(5, TimeUnit.SECONDS);
+    }
+
+    private JsonObject accept(String url, String field, UploadSource source) {
+        posted.add(url);
+        JsonObject json = new JsonObject();
+        json.addProperty("server", 1);
+        json.addProperty("photo", "[{\"photo\":\"data\"}]");
+        json.addProperty("hash", "hash");
+        return json;
+    }
+
+    private LoopbackTransport api() {
+        return new LoopbackTransport(request -> {
+            if (request.getUrl().endsWith("photos.getMessagesUploadServer")) {
+                return LoopbackTransport.Response.ok("{\"response\":{\"upload_url\":\"https://upload.vk.com/" + servers.incrementAndGet() + "\"}}");
+            }
+            return LoopbackTransport.Response.ok("{\"response\":[{\"id\":10,\"owner_id\":1}]}");
+        });
+    }
+}